@@ -0,0 +1,55 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole-body compression as done for in-memory responses. The input is HTML-like text,
+ * which compresses about as well as the pages and JSON the server usually sends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    @Param({ "1024", "16384", "262144" })
+    public int size;
+
+    @Param({ "GZIP", "DEFLATE" })
+    public Compression.Coding coding;
+
+    private ByteBuffer body;
+
+    @Setup
+    public void setup() {
+        StringBuilder text = new StringBuilder(size + 128);
+        int row = 0;
+        while (text.length() < size) {
+            text.append("<tr><td class=\"id\">").append(row).append("</td><td class=\"name\">item-")
+                .append(row * 7919 % 1000).append("</td><td>").append(row % 3 == 0 ? "available" : "sold out")
+                .append("</td></tr>\n");
+            row++;
+        }
+        body = ByteBuffer.wrap(text.substring(0, size).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return Compression.compress(body, coding);
+    }
+}
@@ -0,0 +1,112 @@
+package httpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * An upload to /files/ as the handler does it, the body spooled to a temp file and then
+ * committed, from 16 threads at once, in each durability mode. Throughput is uploads per
+ * second. The sample-time run gives the latency percentiles, p99 included.
+ *
+ * The files go to {@code bench.filesDir}, {@code benchmarks/target/file-store-bench} by
+ * default. That directory should be on the same kind of disk as the server's {@code files/},
+ * since a tmpfs makes every fsync free.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class FileStoreBenchmark {
+    @Param({ "ASYNC", "BATCHED", "SYNC" })
+    public FileStore.Durability durability;
+
+    @Param({ "4096" })
+    public int size;
+
+    // Holds the store's directory and, next to it, its journal
+    private Path root;
+    private Path directory;
+    private FileStore store;
+
+    @Setup
+    public void setup() throws IOException {
+        root = Paths.get(System.getProperty("bench.filesDir", "benchmarks/target/file-store-bench"), durability.name());
+        directory = root.resolve("files");
+        Files.createDirectories(directory);
+        store = new FileStore(directory, durability, ServerConfig.FILE_COMMIT_BATCH, ServerConfig.FILE_JOURNAL_BYTES,
+                ServerConfig.FILE_JOURNAL_MAX_ENTRY_BYTES);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        // Nothing may still be journaling or renaming into the tree being deleted
+        store.close();
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // Each thread uploads over its own few names, so commits to one name also queue behind each other
+    @State(Scope.Thread)
+    public static class Uploader {
+        private static int threads;
+
+        private ByteBuffer body;
+        private String prefix;
+        private int next;
+
+        @Setup
+        public void setup(FileStoreBenchmark benchmark) {
+            body = ByteBuffer.allocate(benchmark.size);
+            while (body.hasRemaining()) {
+                body.put((byte) ('a' + body.position() % 26));
+            }
+            synchronized (Uploader.class) {
+                prefix = "upload-" + threads++ + "-";
+            }
+        }
+
+        String nextName() {
+            return prefix + (next++ & 7) + ".bin";
+        }
+    }
+
+    @Benchmark
+    public void upload(Uploader uploader) throws IOException {
+        Path upload = store.createUpload();
+        try (FileChannel channel = FileChannel.open(upload, StandardOpenOption.WRITE)) {
+            ByteBuffer body = uploader.body.duplicate().flip();
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+        }
+        store.commit(upload, store.resolve(uploader.nextName()));
+    }
+}
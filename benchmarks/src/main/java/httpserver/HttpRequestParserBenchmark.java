@@ -0,0 +1,149 @@
+package httpserver;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Request-line and header parsing, from bytes already in the connection buffer to a
+ * populated {@link HttpRequest}, with and without decoding the values a handler reads.
+ *
+ * {@code legacyParse} is the parser the server started with, kept as the baseline: a
+ * {@code BufferedReader.readLine} per line, {@code split(" ")} on the request line and a
+ * lower-cased copy of every header line. It decodes the same values as {@code parseAndRead},
+ * so those two are the before and after. Its readers are built per operation, as the old
+ * server built them per connection, so their buffers count as if every request had its own
+ * connection. Allocation is most of the difference; run with
+ * JMH's GC profiler to see it per operation:
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar HttpRequestParser -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpRequestParserBenchmark {
+    private static final String CURL =
+            "GET /echo/hello HTTP/1.1\r\n" +
+            "Host: localhost:4221\r\n" +
+            "User-Agent: curl/8.5.0\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+    private static final String BROWSER =
+            "GET /files/index.html HTTP/1.1\r\n" +
+            "Host: localhost:4221\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Cache-Control: max-age=0\r\n" +
+            "sec-ch-ua: \"Chromium\";v=\"128\", \"Not;A=Brand\";v=\"24\"\r\n" +
+            "sec-ch-ua-mobile: ?0\r\n" +
+            "sec-ch-ua-platform: \"Linux\"\r\n" +
+            "Upgrade-Insecure-Requests: 1\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/128.0.0.0 Safari/537.36\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n" +
+            "Sec-Fetch-Site: none\r\n" +
+            "Sec-Fetch-Mode: navigate\r\n" +
+            "Sec-Fetch-Dest: document\r\n" +
+            "Accept-Encoding: gzip, deflate, br, zstd\r\n" +
+            "Accept-Language: en-US,en;q=0.9\r\n" +
+            "If-None-Match: \"5f2a-18f3c2a1b00\"\r\n" +
+            "If-Modified-Since: Tue, 14 May 2024 09:12:44 GMT\r\n" +
+            "\r\n";
+
+    @Param({ "curl", "browser" })
+    public String request;
+
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private HttpRequestParser parser;
+    private HttpRequest parsed;
+
+    @Setup
+    public void setup() {
+        String head = "curl".equals(request) ? CURL : BROWSER;
+        bytes = head.getBytes(StandardCharsets.US_ASCII);
+        buffer = ByteBuffer.wrap(bytes);
+        parser = new HttpRequestParser(ServerConfig.MAX_HEADER_BYTES);
+        parsed = new HttpRequest();
+    }
+
+    @Benchmark
+    public boolean parse() throws HttpRequestParser.ParseException {
+        buffer.rewind();
+        return parser.parse(buffer, parsed);
+    }
+
+    @Benchmark
+    public void parseAndRead(Blackhole blackhole) throws HttpRequestParser.ParseException {
+        buffer.rewind();
+        parser.parse(buffer, parsed);
+        blackhole.consume(parsed.getPath());
+        blackhole.consume(parsed.getUserAgent());
+        blackhole.consume(parsed.getAcceptEncoding());
+        blackhole.consume(parsed.isConnectionClose());
+    }
+
+    @Benchmark
+    public void legacyParse(Blackhole blackhole) throws IOException {
+        // As the first version of Main.handleConnection read a request from the socket
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
+        String requestLine = in.readLine();
+        blackhole.consume(requestLine.split(" ")[0]);
+        blackhole.consume(requestLine.split(" ")[1]);
+
+        String userAgent = null;
+        String acceptEncoding = null;
+        String connectionHeader = null;
+        String upgradeHeader = null;
+        String webSocketKey = null;
+        String webSocketVersion = null;
+        int contentLength = 0;
+        String headerLine;
+        while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
+            String lowerHeader = headerLine.toLowerCase();
+            if (lowerHeader.startsWith("user-agent:")) {
+                userAgent = headerLine.substring("user-agent:".length()).trim();
+            } else if (lowerHeader.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(headerLine.substring("content-length:".length()).trim());
+            } else if (lowerHeader.startsWith("accept-encoding:")) {
+                acceptEncoding = headerLine.substring("accept-encoding:".length()).trim();
+            } else if (lowerHeader.startsWith("connection:")) {
+                connectionHeader = headerLine.substring("connection:".length()).trim();
+            } else if (lowerHeader.startsWith("upgrade:")) {
+                upgradeHeader = headerLine.substring("upgrade:".length()).trim();
+            } else if (lowerHeader.startsWith("sec-websocket-key:")) {
+                webSocketKey = headerLine.substring("sec-websocket-key:".length()).trim();
+            } else if (lowerHeader.startsWith("sec-websocket-version:")) {
+                webSocketVersion = headerLine.substring("sec-websocket-version:".length()).trim();
+            }
+        }
+        blackhole.consume(userAgent);
+        blackhole.consume(acceptEncoding);
+        blackhole.consume(connectionHeader != null && connectionHeader.toLowerCase().contains("close"));
+        blackhole.consume(contentLength);
+        blackhole.consume(upgradeHeader);
+        blackhole.consume(webSocketKey);
+        blackhole.consume(webSocketVersion);
+    }
+}
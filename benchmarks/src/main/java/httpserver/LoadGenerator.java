@@ -0,0 +1,763 @@
+package httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Closed-loop load generator for a running server. Each client sends a request, waits for
+ * the response and only then sends the next, so throughput is what the server sustains at
+ * the given concurrency and latencies are not hidden by queueing in the client.
+ *
+ * Scenarios:
+ * <ul>
+ *   <li>{@code echo}: {@code GET /echo/} on a new connection per request</li>
+ *   <li>{@code keepalive}: {@code GET /echo/} repeated on persistent connections</li>
+ *   <li>{@code files}: {@code GET /files/} of an uploaded file on persistent connections</li>
+ *   <li>{@code upload}: {@code POST /files/} on persistent connections, each client replacing
+ *       a file of its own; run it against the server in each {@code server.fileDurability}
+ *       mode to compare them</li>
+ *   <li>{@code websocket}: every connection subscribes to one topic and a share of them
+ *       publish; latency is from publish to delivery at each subscriber</li>
+ *   <li>{@code tls-handshake}: {@code GET /echo/} on a new TLS connection per request, each
+ *       with a full handshake; throughput is handshakes per second</li>
+ *   <li>{@code tls-resume}: the same, resuming an earlier session; the JDK client uses each
+ *       TLS 1.3 ticket once, so with many connections some handshakes are full ones</li>
+ *   <li>{@code h2}: {@code GET /echo/} repeated on persistent cleartext HTTP/2 connections,
+ *       one stream at a time, to compare with {@code keepalive}</li>
+ * </ul>
+ *
+ * The TLS scenarios need the server's {@code server.tlsPort}; its certificate is not checked.
+ *
+ * Results are printed and written as JSON. Given the JSON of an earlier run in
+ * {@code load.baseline}, throughput and p99 changes against it are printed too.
+ *
+ * <pre>
+ * java -Dload.scenarios=keepalive,websocket -Dload.connections=64 \
+ *      -cp benchmarks/target/benchmarks.jar httpserver.LoadGenerator
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("load.host", "localhost");
+    private static final int PORT = Integer.getInteger("load.port", 4221);
+    private static final int TLS_PORT = Integer.getInteger("load.tlsPort", 4443);
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 32);
+    // Share of WebSocket connections that publish; the rest only receive
+    private static final double PUBLISHER_SHARE = Double.parseDouble(System.getProperty("load.publisherShare", "0.1"));
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 20);
+    private static final int FILE_BYTES = Integer.getInteger("load.fileBytes", 16384);
+    private static final int UPLOAD_BYTES = Integer.getInteger("load.uploadBytes", 4096);
+    private static final String SCENARIOS = System.getProperty("load.scenarios", "echo,keepalive,files,websocket");
+    private static final String OUTPUT = System.getProperty("load.output", "load-results.json");
+    private static final String BASELINE = System.getProperty("load.baseline", "");
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+    private static final String WEBSOCKET_PATH = "/ws/load";
+    // Numbers the upload clients, so each replaces a file of its own
+    private static final AtomicInteger uploaders = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (String scenario : SCENARIOS.split(",")) {
+            Run run = new Run(scenario.trim());
+            System.out.printf(Locale.ROOT, "%s: %d connections, %ds warm-up, %ds measured%n",
+                    run.name, CONNECTIONS, WARMUP_SECONDS, DURATION_SECONDS);
+            switch (run.name) {
+                case "echo" -> runClients(run, LoadGenerator::echoClient);
+                case "keepalive" -> runClients(run, r -> getClient(r, "/echo/keepalive"));
+                case "files" -> {
+                    String path = "/files/load-" + FILE_BYTES + ".bin";
+                    upload(path, FILE_BYTES);
+                    runClients(run, r -> getClient(r, path));
+                }
+                case "upload" -> runClients(run, LoadGenerator::uploadClient);
+                case "websocket" -> runWebSocket(run);
+                case "tls-handshake" -> runClients(run, r -> tlsClient(r, false));
+                case "tls-resume" -> runClients(run, r -> tlsClient(r, true));
+                case "h2" -> runClients(run, LoadGenerator::http2Client);
+                default -> throw new IllegalArgumentException("Unknown scenario: " + run.name);
+            }
+            Result result = run.result();
+            results.add(result);
+            System.out.println("  " + result.summary());
+        }
+
+        String json = toJson(results);
+        Files.writeString(Paths.get(OUTPUT), json);
+        System.out.println("Results written to " + OUTPUT);
+        if (!BASELINE.isEmpty()) {
+            compare(results, Files.readString(Paths.get(BASELINE)));
+        }
+    }
+
+    /** One scenario's measurement window and what was measured in it. */
+    private static final class Run {
+        final String name;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder operations = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final long measureStart;
+        final long measureEnd;
+
+        Run(String name) {
+            this.name = name;
+            long now = System.nanoTime();
+            this.measureStart = now + WARMUP_SECONDS * 1_000_000_000L;
+            this.measureEnd = measureStart + DURATION_SECONDS * 1_000_000_000L;
+        }
+
+        boolean isRunning() {
+            return System.nanoTime() < measureEnd;
+        }
+
+        // Counts an operation that both started and finished inside the measured window
+        void record(long startNanos, long endNanos) {
+            if (startNanos >= measureStart && endNanos <= measureEnd) {
+                latency.record(endNanos - startNanos);
+                operations.increment();
+            }
+        }
+
+        void error() {
+            if (System.nanoTime() >= measureStart) {
+                errors.increment();
+            }
+        }
+
+        Result result() {
+            long[] values = latency.quantiles(QUANTILES);
+            long count = latency.getCount();
+            double mean = count == 0 ? 0 : (double) latency.getSumNanos() / count;
+            return new Result(name, operations.sum(), errors.sum(), operations.sum() / (double) DURATION_SECONDS, mean, values);
+        }
+    }
+
+    private record Result(String name, long operations, long errors, double throughput, double meanNanos, long[] quantileNanos) {
+        String summary() {
+            StringBuilder text = new StringBuilder(String.format(Locale.ROOT,
+                    "%d ops, %d errors, %.0f ops/s, mean %.1f us", operations, errors, throughput, meanNanos / 1000));
+            for (int i = 0; i < QUANTILES.length; i++) {
+                text.append(String.format(Locale.ROOT, ", %s %.1f us", QUANTILE_NAMES[i], quantileNanos[i] / 1000.0));
+            }
+            return text.toString();
+        }
+    }
+
+    private interface Client {
+        void run(Run run) throws IOException;
+    }
+
+    // Runs one client per connection on virtual threads until the window closes
+    private static void runClients(Run run, Client client) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>(CONNECTIONS);
+        for (int i = 0; i < CONNECTIONS; i++) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                while (run.isRunning()) {
+                    try {
+                        client.run(run);
+                    } catch (IOException e) {
+                        run.error();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void echoClient(Run run) throws IOException {
+        byte[] request = ("GET /echo/connect HTTP/1.1\r\nHost: " + HOST + "\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        long start = System.nanoTime();
+        try (HttpConnection connection = new HttpConnection()) {
+            int status = connection.exchange(request);
+            long end = System.nanoTime();
+            if (status == 200) {
+                run.record(start, end);
+            } else {
+                run.error();
+            }
+        }
+    }
+
+    // Requests the path over one persistent connection until the window closes, or until
+    // the server closes the connection, as a draining server does; the caller then reconnects
+    private static void getClient(Run run, String path) throws IOException {
+        byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + HOST + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        try (HttpConnection connection = new HttpConnection()) {
+            while (run.isRunning() && !connection.isClosing()) {
+                long start = System.nanoTime();
+                int status = connection.exchange(request);
+                long end = System.nanoTime();
+                if (status == 200) {
+                    run.record(start, end);
+                } else {
+                    run.error();
+                }
+            }
+        }
+    }
+
+    // One request on a new TLS connection; unless resuming, the session is dropped afterwards
+    // so the next connection cannot resume it
+    private static void tlsClient(Run run, boolean resume) throws IOException {
+        byte[] request = ("GET /echo/tls HTTP/1.1\r\nHost: " + HOST + "\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        long start = System.nanoTime();
+        SSLSocket socket = (SSLSocket) TlsClient.CONTEXT.getSocketFactory().createSocket(connect(TLS_PORT), HOST, TLS_PORT, true);
+        try (HttpConnection connection = new HttpConnection(socket)) {
+            socket.startHandshake();
+            int status = connection.exchange(request);
+            long end = System.nanoTime();
+            if (!resume) {
+                socket.getSession().invalidate();
+            }
+            if (status == 200) {
+                run.record(start, end);
+            } else {
+                run.error();
+            }
+        }
+    }
+
+    // Requests /echo/ as successive streams of one prior-knowledge HTTP/2 connection
+    private static void http2Client(Run run) throws IOException {
+        try (Http2Connection connection = new Http2Connection()) {
+            while (run.isRunning()) {
+                long start = System.nanoTime();
+                int status = connection.get("/echo/h2");
+                long end = System.nanoTime();
+                if (status == 200) {
+                    run.record(start, end);
+                } else {
+                    run.error();
+                }
+            }
+        }
+    }
+
+    /** Client side of the TLS scenarios, trusting whatever certificate the server presents. */
+    private static final class TlsClient {
+        static final SSLContext CONTEXT = create();
+
+        private static SSLContext create() {
+            TrustManager trustAll = new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            };
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, new TrustManager[] { trustAll }, null);
+                return context;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot set up TLS client", e);
+            }
+        }
+    }
+
+    private static Socket connect(int port) throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(HOST, port));
+        return socket;
+    }
+
+    private static void upload(String path, int size) throws IOException {
+        try (HttpConnection connection = new HttpConnection()) {
+            int status = connection.exchange(uploadRequest(path, size, true));
+            if (status != 201) {
+                throw new IOException("Upload of " + path + " failed with status " + status);
+            }
+        }
+    }
+
+    // Uploads over one persistent connection, always to the same name, until the window closes
+    private static void uploadClient(Run run) throws IOException {
+        byte[] request = uploadRequest("/files/load-upload-" + uploaders.getAndIncrement() + ".bin", UPLOAD_BYTES, false);
+        try (HttpConnection connection = new HttpConnection()) {
+            while (run.isRunning() && !connection.isClosing()) {
+                long start = System.nanoTime();
+                int status = connection.exchange(request);
+                long end = System.nanoTime();
+                if (status == 201) {
+                    run.record(start, end);
+                } else {
+                    run.error();
+                }
+            }
+        }
+    }
+
+    private static byte[] uploadRequest(String path, int size, boolean close) {
+        byte[] head = ("POST " + path + " HTTP/1.1\r\nHost: " + HOST + "\r\nContent-Length: " + size + "\r\n" +
+                (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] request = new byte[head.length + size];
+        System.arraycopy(head, 0, request, 0, head.length);
+        for (int i = 0; i < size; i++) {
+            request[head.length + i] = (byte) ('a' + i % 26);
+        }
+        return request;
+    }
+
+    private static void runWebSocket(Run run) throws Exception {
+        int publishers = Math.max(1, (int) Math.round(CONNECTIONS * PUBLISHER_SHARE));
+        List<WebSocketClient> clients = new ArrayList<>(CONNECTIONS);
+        for (int i = 0; i < CONNECTIONS; i++) {
+            clients.add(new WebSocketClient(WEBSOCKET_PATH));
+        }
+
+        List<Thread> threads = new ArrayList<>(CONNECTIONS);
+        for (int i = 0; i < CONNECTIONS; i++) {
+            WebSocketClient client = clients.get(i);
+            boolean publisher = i < publishers;
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    if (publisher) {
+                        publish(run, client);
+                    } else {
+                        receive(run, client);
+                    }
+                } catch (IOException e) {
+                    if (run.isRunning()) {
+                        run.error();
+                    }
+                }
+            }));
+        }
+
+        long remaining = (run.measureEnd - System.nanoTime()) / 1_000_000;
+        if (remaining > 0) {
+            Thread.sleep(remaining);
+        }
+        // Receivers are blocked reading; closing their sockets ends them
+        for (WebSocketClient client : clients) {
+            client.close();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    // Publishes a timestamp, then waits for the server's echo before publishing again
+    private static void publish(Run run, WebSocketClient client) throws IOException {
+        while (run.isRunning()) {
+            String message = "m " + System.nanoTime();
+            client.send(message);
+            String expected = "Echo: " + message;
+            String received;
+            do {
+                received = client.receive();
+            } while (!expected.equals(received));
+        }
+    }
+
+    // Records the delay of every broadcast that reaches this connection
+    private static void receive(Run run, WebSocketClient client) throws IOException {
+        while (run.isRunning()) {
+            String received = client.receive();
+            if (received.startsWith("Broadcast: m ")) {
+                long sent = Long.parseLong(received, "Broadcast: m ".length(), received.length(), 10);
+                run.record(sent, System.nanoTime());
+            }
+        }
+    }
+
+    /** A minimal HTTP/1.1 client connection that reads responses with a Content-Length. */
+    /**
+     * Just enough of an HTTP/2 client for the h2 scenario: sends the preface, then one GET at a
+     * time with literal header fields, and reads frames until its stream ends. The status is
+     * taken from the first byte of the response headers, which the server sends as a static
+     * table reference.
+     */
+    private static final class Http2Connection implements AutoCloseable {
+        private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        private static final int DATA = 0x0, HEADERS = 0x1, RST_STREAM = 0x3, SETTINGS = 0x4, PING = 0x6, GOAWAY = 0x7,
+                WINDOW_UPDATE = 0x8;
+        private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4;
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] frameHeader = new byte[9];
+        private byte[] payload = new byte[16384];
+        private int nextStream = 1;
+        // DATA received since the connection window was last topped up
+        private int unacknowledged;
+
+        Http2Connection() throws IOException {
+            socket = connect(PORT);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+            out.write(PREFACE);
+            writeFrame(SETTINGS, 0, 0, new byte[0], 0);
+        }
+
+        // Sends a GET as a new stream and reads until that stream ends; returns the status code
+        int get(String path) throws IOException {
+            int stream = nextStream;
+            nextStream += 2;
+            byte[] block = new byte[64 + path.length() + HOST.length()];
+            int length = 0;
+            block[length++] = (byte) 0x82;                       // :method GET
+            block[length++] = (byte) 0x86;                       // :scheme http
+            length = literal(block, length, 4, path);            // :path
+            length = literal(block, length, 1, HOST);            // :authority
+            writeFrame(HEADERS, END_STREAM | END_HEADERS, stream, block, length);
+            out.flush();
+
+            int status = -1;
+            while (true) {
+                readFully(frameHeader, 9);
+                int payloadLength = (frameHeader[0] & 0xFF) << 16 | (frameHeader[1] & 0xFF) << 8 | frameHeader[2] & 0xFF;
+                int type = frameHeader[3];
+                int flags = frameHeader[4];
+                int id = ((frameHeader[5] & 0x7F) << 24) | (frameHeader[6] & 0xFF) << 16 |
+                         (frameHeader[7] & 0xFF) << 8 | frameHeader[8] & 0xFF;
+                if (payload.length < payloadLength) {
+                    payload = new byte[payloadLength];
+                }
+                readFully(payload, payloadLength);
+                if (type == DATA && (unacknowledged += payloadLength) >= 32768) {
+                    writeFrame(WINDOW_UPDATE, 0, 0, int32(unacknowledged), 4);
+                    unacknowledged = 0;
+                }
+                if (type == SETTINGS && (flags & ACK) == 0) {
+                    writeFrame(SETTINGS, ACK, 0, new byte[0], 0);
+                } else if (type == PING && (flags & ACK) == 0) {
+                    writeFrame(PING, ACK, 0, payload, payloadLength);
+                } else if (type == GOAWAY) {
+                    throw new EOFException("Server sent GOAWAY");
+                } else if (id == stream) {
+                    if (type == RST_STREAM) {
+                        return -1;
+                    }
+                    if (type == HEADERS && status < 0 && payloadLength > 0) {
+                        status = staticStatus(payload[0] & 0xFF);
+                    }
+                    if ((type == HEADERS || type == DATA) && (flags & END_STREAM) != 0) {
+                        return status;
+                    }
+                }
+            }
+        }
+
+        // Statuses 200, 204, 206, 304, 400, 404 and 500 are entries 8 to 14 of the static table
+        private static int staticStatus(int field) {
+            return switch (field) {
+                case 0x88 -> 200;
+                case 0x89 -> 204;
+                case 0x8A -> 206;
+                case 0x8B -> 304;
+                case 0x8C -> 400;
+                case 0x8D -> 404;
+                case 0x8E -> 500;
+                default -> 0;
+            };
+        }
+
+        // Literal field without indexing, naming a static table entry; values shorter than 127 bytes
+        private static int literal(byte[] block, int offset, int nameIndex, String value) {
+            block[offset++] = (byte) nameIndex;
+            block[offset++] = (byte) value.length();
+            for (int i = 0; i < value.length(); i++) {
+                block[offset++] = (byte) value.charAt(i);
+            }
+            return offset;
+        }
+
+        private static byte[] int32(int value) {
+            return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+        }
+
+        private void writeFrame(int type, int flags, int stream, byte[] data, int length) throws IOException {
+            byte[] frame = new byte[9 + length];
+            frame[0] = (byte) (length >>> 16);
+            frame[1] = (byte) (length >>> 8);
+            frame[2] = (byte) length;
+            frame[3] = (byte) type;
+            frame[4] = (byte) flags;
+            frame[5] = (byte) (stream >>> 24);
+            frame[6] = (byte) (stream >>> 16);
+            frame[7] = (byte) (stream >>> 8);
+            frame[8] = (byte) stream;
+            System.arraycopy(data, 0, frame, 9, length);
+            out.write(frame);
+        }
+
+        private void readFully(byte[] buffer, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int n = in.read(buffer, read, length - read);
+                if (n < 0) {
+                    throw new EOFException("Connection closed mid-frame");
+                }
+                read += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static final class HttpConnection implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] scratch = new byte[64 * 1024];
+        private final StringBuilder line = new StringBuilder(128);
+        // Set when a response said Connection: close
+        private boolean closing;
+
+        HttpConnection() throws IOException {
+            this(connect(PORT));
+        }
+
+        HttpConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+        }
+
+        // Sends a request and reads the whole response; returns its status code
+        int exchange(byte[] request) throws IOException {
+            out.write(request);
+            String statusLine = readLine();
+            int status = Integer.parseInt(statusLine.substring(9, 12));
+            long contentLength = -1;
+            boolean close = false;
+            String header;
+            while (!(header = readLine()).isEmpty()) {
+                int colon = header.indexOf(':');
+                String name = header.substring(0, colon).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(header.substring(colon + 1).trim());
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    close = header.substring(colon + 1).trim().equalsIgnoreCase("close");
+                }
+            }
+            closing = close;
+            if (contentLength >= 0) {
+                skip(contentLength);
+            } else if (close) {
+                while (in.read(scratch) >= 0) {
+                    // Body runs to the end of the connection
+                }
+            }
+            return status;
+        }
+
+        boolean isClosing() {
+            return closing;
+        }
+
+        private String readLine() throws IOException {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Connection closed mid-response");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        private void skip(long length) throws IOException {
+            while (length > 0) {
+                int n = in.read(scratch, 0, (int) Math.min(scratch.length, length));
+                if (n < 0) {
+                    throw new EOFException("Connection closed mid-body");
+                }
+                length -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /** A minimal WebSocket client: text frames out under an all-zero mask, unfragmented frames in. */
+    private static final class WebSocketClient {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        WebSocketClient(String path) throws IOException {
+            socket = connect(PORT);
+            in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: " + HOST + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                    "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            // Skip the 101 response head
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Connection closed during the handshake");
+                }
+                matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+        }
+
+        // The all-zero masking key leaves the payload as it is
+        void send(String text) throws IOException {
+            sendFrame(WebSocketCodec.OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void sendFrame(int opcode, byte[] payload) throws IOException {
+            int length = payload.length;
+            byte[] frame = new byte[(length < 126 ? 2 : 4) + 4 + length];
+            frame[0] = (byte) (0x80 | opcode);
+            int offset;
+            if (length < 126) {
+                frame[1] = (byte) (0x80 | length);
+                offset = 2;
+            } else {
+                frame[1] = (byte) (0x80 | 126);
+                frame[2] = (byte) (length >> 8);
+                frame[3] = (byte) length;
+                offset = 4;
+            }
+            System.arraycopy(payload, 0, frame, offset + 4, length);
+            out.write(frame);
+        }
+
+        // Next text message; pings are answered on the way
+        String receive() throws IOException {
+            while (true) {
+                int first = readByte();
+                int second = readByte();
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = (readByte() << 8) | readByte();
+                } else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++) {
+                        length = (length << 8) | readByte();
+                    }
+                }
+                byte[] payload = in.readNBytes((int) length);
+                if (payload.length < length) {
+                    throw new EOFException("Connection closed mid-frame");
+                }
+                int opcode = first & 0x0F;
+                if (opcode == WebSocketCodec.OP_TEXT) {
+                    return new String(payload, StandardCharsets.UTF_8);
+                } else if (opcode == WebSocketCodec.OP_PING) {
+                    sendFrame(WebSocketCodec.OP_PONG, payload);
+                } else if (opcode == WebSocketCodec.OP_CLOSE) {
+                    throw new EOFException("Server closed the WebSocket");
+                }
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed mid-frame");
+            }
+            return b;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    // One scenario per line, so runs diff cleanly and baselines are easy to read back
+    private static String toJson(List<Result> results) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+        json.append("  \"target\": \"").append(HOST).append(':').append(PORT).append("\",\n");
+        json.append("  \"connections\": ").append(CONNECTIONS).append(",\n");
+        json.append("  \"warmupSeconds\": ").append(WARMUP_SECONDS).append(",\n");
+        json.append("  \"durationSeconds\": ").append(DURATION_SECONDS).append(",\n");
+        json.append("  \"scenarios\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append(String.format(Locale.ROOT,
+                    "    {\"name\": \"%s\", \"operations\": %d, \"errors\": %d, \"throughput\": %.1f, \"latencyMicros\": {\"mean\": %.1f",
+                    result.name(), result.operations(), result.errors(), result.throughput(), result.meanNanos() / 1000));
+            for (int q = 0; q < QUANTILES.length; q++) {
+                json.append(String.format(Locale.ROOT, ", \"%s\": %.1f", QUANTILE_NAMES[q], result.quantileNanos()[q] / 1000.0));
+            }
+            json.append("}}").append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        return json.toString();
+    }
+
+    private static final Pattern BASELINE_SCENARIO = Pattern.compile(
+            "\"name\": \"(\\w+)\".*?\"throughput\": ([0-9.]+).*?\"p99\": ([0-9.]+)");
+
+    private static void compare(List<Result> results, String baselineJson) {
+        Map<String, double[]> baseline = new LinkedHashMap<>();
+        Matcher matcher = BASELINE_SCENARIO.matcher(baselineJson);
+        while (matcher.find()) {
+            baseline.put(matcher.group(1), new double[] {
+                    Double.parseDouble(matcher.group(2)), Double.parseDouble(matcher.group(3)) });
+        }
+        System.out.println("Against " + BASELINE + ":");
+        for (Result result : results) {
+            double[] before = baseline.get(result.name());
+            if (before == null) {
+                continue;
+            }
+            double p99 = result.quantileNanos()[2] / 1000.0;
+            System.out.printf(Locale.ROOT, "  %s: throughput %+.1f%%, p99 %+.1f%%%n", result.name(),
+                    change(before[0], result.throughput()), change(before[1], p99));
+        }
+    }
+
+    private static double change(double before, double after) {
+        return before == 0 ? 0 : (after - before) / before * 100;
+    }
+}
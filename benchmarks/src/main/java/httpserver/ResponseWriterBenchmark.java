@@ -0,0 +1,159 @@
+package httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing {@code pipelined} 200 responses with a {@code size}-byte text body to a connection
+ * that takes every buffer whole without copying it, so the time is what the writer does
+ * before the bytes would reach the kernel.
+ *
+ * {@code writeAll} builds each response as a handler does and sends them with
+ * {@link HttpResponse#writeAll}, which encodes the heads into the connection's head buffer
+ * and gathers several responses into one write. {@code preEncoded} does the same with the
+ * status line and fixed headers encoded once, as {@link FileCache} serves hits. {@code legacy}
+ * is the writer the server started with, kept as the baseline: the response concatenated
+ * into one string and printed through a new auto-flushing {@code PrintWriter}, one write per
+ * response. Run with {@code -prof gc} to see the allocation per operation as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseWriterBenchmark {
+    @Param({ "16", "16384" })
+    public int size;
+
+    @Param({ "1", "16" })
+    public int pipelined;
+
+    private String text;
+    private byte[] body;
+    private ByteBuffer cachedHead;
+    private ByteBuffer cachedBody;
+    private final ArrayDeque<HttpResponse> queue = new ArrayDeque<>();
+    private final ByteBuffer headBuffer = ByteBuffer.allocate(HttpResponse.HEAD_BUFFER_BYTES);
+    private final DiscardingChannel channel = new DiscardingChannel();
+    private final CountingOutputStream out = new CountingOutputStream();
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder(size);
+        while (builder.length() < size) {
+            builder.append("hello, world ");
+        }
+        text = builder.substring(0, size);
+        body = text.getBytes(StandardCharsets.US_ASCII);
+
+        byte[] head = ("HTTP/1.1 200 OK\r\n" +
+                       "Content-Type: text/plain\r\n" +
+                       "Content-Length: " + size + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        cachedHead = ByteBuffer.allocateDirect(head.length).put(head).flip();
+        cachedBody = ByteBuffer.allocateDirect(size).put(body).flip();
+    }
+
+    @Benchmark
+    public long writeAll() throws IOException {
+        for (int i = 0; i < pipelined; i++) {
+            queue.add(HttpResponse.ok().header(HttpResponse.CONTENT_TYPE, "text/plain").body(body));
+        }
+        HttpResponse.writeAll(queue, channel, headBuffer);
+        return channel.written;
+    }
+
+    @Benchmark
+    public long preEncoded() throws IOException {
+        for (int i = 0; i < pipelined; i++) {
+            queue.add(HttpResponse.preEncoded("200 OK", cachedHead, cachedBody));
+        }
+        HttpResponse.writeAll(queue, channel, headBuffer);
+        return channel.written;
+    }
+
+    @Benchmark
+    public long legacy() {
+        for (int i = 0; i < pipelined; i++) {
+            // As the first version of Main.handleEchoRequest and sendTextResponse did it
+            String response = "HTTP/1.1 200 OK\r\n" +
+                              "Content-Type: text/plain\r\n" +
+                              "Content-Length: " + text.length() + "\r\n" +
+                              "\r\n" +
+                              text;
+            PrintWriter writer = new PrintWriter(out, true);
+            writer.print(response);
+            writer.flush();
+        }
+        return out.written;
+    }
+
+    /** A connection that takes every byte at once. */
+    private static final class DiscardingChannel implements GatheringByteChannel {
+        long written;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            written += length;
+            return length;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** The socket stream of the legacy writer, taking every byte at once. */
+    private static final class CountingOutputStream extends OutputStream {
+        long written;
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    }
+}
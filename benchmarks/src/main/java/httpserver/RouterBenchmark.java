@@ -0,0 +1,63 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dispatch through the {@link Router} with the server's routes plus {@code extraRoutes}
+ * unrelated ones; the time should not grow with the number of routes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RouterBenchmark {
+    private static final HttpResponse OK = HttpResponse.ok();
+
+    @Param({ "0", "100", "1000" })
+    public int extraRoutes;
+
+    @Param({ "/echo/hello", "/files/report.pdf", "/api/v1/users/42/orders" })
+    public String path;
+
+    private Router router;
+    private HttpRequest request;
+
+    @Setup
+    public void setup() throws HttpRequestParser.ParseException {
+        router = new Router()
+                .get("/", r -> OK)
+                .get("/echo/{msg}", r -> OK)
+                .get("/user-agent", r -> OK)
+                .get("/files/{name}", r -> OK)
+                .post("/files/{name}", r -> OK)
+                .get("/api/v1/users/{id}/orders", r -> OK);
+        for (int i = 0; i < extraRoutes; i++) {
+            router.get("/route" + i + "/{id}/detail" + i, r -> OK);
+        }
+
+        request = new HttpRequest();
+        byte[] head = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        new HttpRequestParser(ServerConfig.MAX_HEADER_BYTES).parse(ByteBuffer.wrap(head), request);
+    }
+
+    @Benchmark
+    public HttpResponse route() {
+        return router.route(request);
+    }
+}
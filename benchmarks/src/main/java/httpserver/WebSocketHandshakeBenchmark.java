@@ -0,0 +1,31 @@
+package httpserver;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Computing Sec-WebSocket-Accept, paid once per upgrade. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebSocketHandshakeBenchmark {
+    // The sample key from RFC 6455
+    private final String key = "dGhlIHNhbXBsZSBub25jZQ==";
+
+    @Benchmark
+    public String acceptKey() throws NoSuchAlgorithmException {
+        return Main.generateWebSocketAcceptKey(key);
+    }
+}
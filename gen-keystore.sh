@@ -0,0 +1,4 @@
+# Creates a self-signed keystore.p12 for local TLS testing (server.tlsPort)
+keytool -genkeypair -alias server -keyalg EC -groupname secp256r1 -validity 365 \
+  -dname "CN=localhost" -ext "SAN=dns:localhost,ip:127.0.0.1" \
+  -storetype PKCS12 -keystore keystore.p12 -storepass changeit
@@ -1,3 +1,4 @@
 mvn clean package
 
-java -jar target/networking-http-server.jar
\ No newline at end of file
+# exec, so SIGTERM reaches the server and it shuts down gracefully
+exec java -jar target/networking-http-server.jar
\ No newline at end of file
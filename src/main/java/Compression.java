@@ -0,0 +1,370 @@
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Response compression shared by every route.
+ *
+ * {@link #apply} runs on every response: when the body is a compressible type and at least
+ * {@link ServerConfig#COMPRESSION_MIN_BYTES} long, it marks the response as varying on
+ * Accept-Encoding and compresses it with the coding the client prefers. Small bodies are
+ * compressed in one go; larger ones and files are compressed while they are sent and go out
+ * chunked, so memory use does not grow with the body. /files/ applies its own policy through
+ * {@link StaticFiles} and {@link FileCache}, which keep compressed variants of cached files.
+ *
+ * Deflaters are expensive to create and hold native memory, so they are pooled per coding.
+ * The time spent compressing and the bytes in and out are counted for reporting.
+ */
+public final class Compression {
+    /** Content codings the server can produce, in order of preference at equal q-values. */
+    public enum Coding {
+        GZIP("gzip", true),
+        DEFLATE("deflate", false);
+
+        private final String token;
+        private final boolean gzip;
+        private final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        Coding(String token, boolean gzip) {
+            this.token = token;
+            this.gzip = gzip;
+        }
+
+        public String token() { return token; }
+
+        private Deflater acquire() {
+            Deflater deflater = pool.poll();
+            if (deflater == null) {
+                // gzip wraps raw deflate data in its own header and trailer; "deflate" is zlib
+                return new Deflater(ServerConfig.COMPRESSION_LEVEL, gzip);
+            }
+            pooled.decrementAndGet();
+            return deflater;
+        }
+
+        private void release(Deflater deflater) {
+            deflater.reset();
+            if (pooled.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+                pool.add(deflater);
+            } else {
+                pooled.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+
+    private static final int MAX_POOLED_DEFLATERS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int GZIP_TRAILER_BYTES = 8;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private static final LongAdder compressedResponses = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder cpuNanos = new LongAdder();
+
+    private Compression() {
+    }
+
+    /**
+     * Picks the coding to use from an Accept-Encoding header: the supported coding with the
+     * highest q-value, with {@code *} standing for any coding not listed. Returns null when
+     * the client accepts none of them, or sent no header.
+     */
+    public static Coding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Coding[] codings = Coding.values();
+        double[] quality = new double[codings.length];
+        Arrays.fill(quality, -1);
+        double wildcard = -1;
+
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String token = parts[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    q = parseQuality(parameter.substring(2));
+                }
+            }
+            if ("*".equals(token)) {
+                wildcard = q;
+            } else if ("x-gzip".equals(token)) {
+                quality[Coding.GZIP.ordinal()] = Math.max(quality[Coding.GZIP.ordinal()], q);
+            } else {
+                for (Coding coding : codings) {
+                    if (coding.token.equals(token)) {
+                        quality[coding.ordinal()] = Math.max(quality[coding.ordinal()], q);
+                    }
+                }
+            }
+        }
+
+        Coding best = null;
+        double bestQuality = 0;
+        for (Coding coding : codings) {
+            double q = quality[coding.ordinal()] >= 0 ? quality[coding.ordinal()] : wildcard;
+            if (q > bestQuality) {
+                best = coding;
+                bestQuality = q;
+            }
+        }
+        return best;
+    }
+
+    // Malformed q-values count as 0, so the coding is not used
+    private static double parseQuality(String value) {
+        try {
+            double q = Double.parseDouble(value.trim());
+            return q >= 0 && q <= 1 ? q : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Whether bodies of this Content-Type are worth compressing. */
+    public static boolean isCompressibleType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/") ||
+               type.startsWith("application/json") ||
+               type.startsWith("application/javascript") ||
+               type.startsWith("application/xml") ||
+               type.startsWith("image/svg+xml") ||
+               type.contains("+json") || type.contains("+xml");
+    }
+
+    /** Compresses the body of {@code response} if it qualifies and the client accepts a coding. */
+    public static HttpResponse apply(HttpRequest request, HttpResponse response) {
+        if (!qualifies(response)) {
+            return response;
+        }
+        response.header(HttpResponse.VARY, "Accept-Encoding");
+        Coding coding = negotiate(request.getAcceptEncoding());
+        if (coding == null) {
+            return response;
+        }
+
+        try {
+            byte[] body = response.getBody();
+            if (body != null && body.length <= ServerConfig.COMPRESSION_STREAM_BYTES) {
+                response.body(compress(ByteBuffer.wrap(body), coding));
+            } else if (body != null) {
+                response.body(new DeflatingStream(coding, Channels.newChannel(new ByteArrayInputStream(body)), null));
+            } else {
+                FileChannel file = response.takeFileBody();
+                if (file == null) {
+                    return response;
+                }
+                response.body(compressing(file, coding));
+            }
+        } catch (IOException e) {
+            ServerLog.error("Error compressing response: ", e.getMessage());
+            return response;
+        }
+        return response.header(HttpResponse.CONTENT_ENCODING, coding.token);
+    }
+
+    private static boolean qualifies(HttpResponse response) {
+        String status = response.getStatus();
+        // Partial content describes ranges of the uncompressed representation
+        if (!status.startsWith("2") || status.startsWith("204") || status.startsWith("206")) {
+            return false;
+        }
+        return !response.isPreEncoded() &&
+               response.getContentLength() >= ServerConfig.COMPRESSION_MIN_BYTES &&
+               response.getHeader(HttpResponse.CONTENT_ENCODING) == null &&
+               isCompressibleType(response.getHeader(HttpResponse.CONTENT_TYPE));
+    }
+
+    /** A body that compresses {@code file} while it is sent, then closes it. */
+    public static HttpResponse.BodyStream compressing(FileChannel file, Coding coding) {
+        return new DeflatingStream(coding, file, file);
+    }
+
+    /** Compresses all of {@code input} at once with a pooled deflater. */
+    public static byte[] compress(ByteBuffer input, Coding coding) {
+        int length = input.remaining();
+        long started = cpuTime();
+        Deflater deflater = coding.acquire();
+        try {
+            // Worst case for stored blocks, plus the gzip wrapper
+            byte[] out = new byte[length + (length >> 12) + (length >> 14) + 64];
+            int size = 0;
+            CRC32 crc = null;
+            if (coding.gzip) {
+                crc = new CRC32();
+                crc.update(input.duplicate());
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+                size = GZIP_HEADER.length;
+            }
+
+            deflater.setInput(input.duplicate());
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+
+            if (crc != null) {
+                if (size + GZIP_TRAILER_BYTES > out.length) {
+                    out = Arrays.copyOf(out, size + GZIP_TRAILER_BYTES);
+                }
+                ByteBuffer trailer = ByteBuffer.wrap(out, size, GZIP_TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                trailer.putInt((int) crc.getValue()).putInt(length);
+                size += GZIP_TRAILER_BYTES;
+            }
+
+            record(length, size, started);
+            compressedResponses.increment();
+            return size == out.length ? out : Arrays.copyOf(out, size);
+        } finally {
+            coding.release(deflater);
+        }
+    }
+
+    public static long getCompressedResponses() { return compressedResponses.sum(); }
+    public static long getBytesIn() { return bytesIn.sum(); }
+    public static long getBytesOut() { return bytesOut.sum(); }
+    public static long getCpuNanos() { return cpuNanos.sum(); }
+
+    /** Average CPU time, in nanoseconds, spent per compressed byte produced. */
+    public static double getCpuNanosPerCompressedByte() {
+        long out = bytesOut.sum();
+        return out == 0 ? 0 : (double) cpuNanos.sum() / out;
+    }
+
+    private static void record(long in, long out, long started) {
+        bytesIn.add(in);
+        bytesOut.add(out);
+        cpuNanos.add(cpuTime() - started);
+    }
+
+    // Thread CPU time where the JVM measures it; virtual threads fall back to elapsed time,
+    // which matches CPU time closely for compression since it never blocks
+    private static long cpuTime() {
+        long nanos = threads.getCurrentThreadCpuTime();
+        return nanos >= 0 ? nanos : System.nanoTime();
+    }
+
+    /**
+     * Compresses a channel while the response is sent, one chunk of output per call. The
+     * deflater goes back to the pool, and {@code owner} is closed, when the stream ends or is
+     * closed early.
+     */
+    static final class DeflatingStream implements HttpResponse.BodyStream {
+        private final Coding coding;
+        private final ReadableByteChannel source;
+        private final Closeable owner;
+        private final ByteBuffer input = ByteBuffer.allocate(CHUNK_BYTES);
+        private final ByteBuffer output = ByteBuffer.allocate(CHUNK_BYTES + GZIP_HEADER.length + GZIP_TRAILER_BYTES);
+        private final CRC32 crc = new CRC32();
+        private Deflater deflater;
+        private boolean headerWritten;
+        private boolean inputDone;
+        private boolean finished;
+        private long totalIn;
+
+        DeflatingStream(Coding coding, ReadableByteChannel source, Closeable owner) {
+            this.coding = coding;
+            this.source = source;
+            this.owner = owner;
+            this.deflater = coding.acquire();
+            input.flip();
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (finished) {
+                return null;
+            }
+            long started = cpuTime();
+            long inBefore = totalIn;
+
+            output.clear();
+            if (coding.gzip && !headerWritten) {
+                output.put(GZIP_HEADER);
+                headerWritten = true;
+            }
+            // Room is kept for the gzip trailer so it always fits behind the last block
+            output.limit(output.capacity() - GZIP_TRAILER_BYTES);
+
+            while (output.hasRemaining() && !deflater.finished()) {
+                if (deflater.needsInput() && !inputDone) {
+                    readInput();
+                    continue;
+                }
+                if (deflater.deflate(output) == 0 && !deflater.needsInput() && !deflater.finished()) {
+                    break; // output is full
+                }
+            }
+
+            output.limit(output.capacity());
+            if (deflater.finished()) {
+                if (coding.gzip) {
+                    output.order(ByteOrder.LITTLE_ENDIAN)
+                          .putInt((int) crc.getValue())
+                          .putInt((int) totalIn)
+                          .order(ByteOrder.BIG_ENDIAN);
+                }
+                finished = true;
+                close();
+            }
+            output.flip();
+
+            record(totalIn - inBefore, output.remaining(), started);
+            if (finished) {
+                compressedResponses.increment();
+            }
+            return output;
+        }
+
+        private void readInput() throws IOException {
+            input.clear();
+            int read = source.read(input);
+            input.flip();
+            if (read == -1) {
+                inputDone = true;
+                deflater.finish();
+                return;
+            }
+            crc.update(input.duplicate());
+            totalIn += read;
+            deflater.setInput(input);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater != null) {
+                coding.release(deflater);
+                deflater = null;
+            }
+            if (owner != null) {
+                owner.close();
+            }
+        }
+    }
+}
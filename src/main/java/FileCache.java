@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps small, frequently requested files as ready-to-send response buffers: the status
+ * line and fixed headers are encoded once and the body lives in a direct buffer, so a hit
+ * costs one stat call and a gathering write.
+ *
+ * Compressed variants are made the first time a client asks for them, and stay with the
+ * entry. A variant is only kept if it is smaller than the file.
+ *
+ * Entries are evicted least-recently-used first once the total cached bytes exceed the
+ * budget; variants count toward it. An entry is dropped when the file's size or modification time no longer match,
+ * and {@link #invalidate} lets writers drop it eagerly.
+ */
+public class FileCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FileCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * Returns a 200 response for {@code path}, compressed with {@code coding} unless it is
+     * null, loading it into the cache on a miss. Returns null if the file is too large to
+     * cache and should be streamed instead.
+     */
+    public HttpResponse get(Path path, BasicFileAttributes attributes, Compression.Coding coding) throws IOException {
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (maxBytes <= 0 || size > maxEntryBytes || size > maxBytes) {
+            return null;
+        }
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry != null && (entry.size != size || entry.lastModified != lastModified)) {
+                remove(path);
+                entry = null;
+            }
+        }
+
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            entry = load(path, attributes);
+            if (entry == null) {
+                return null;
+            }
+            put(path, entry);
+        }
+
+        if (coding != null) {
+            Variant variant = variant(path, entry, attributes, coding);
+            if (variant != null) {
+                return HttpResponse.preEncoded("200 OK", variant.head, variant.body);
+            }
+        }
+        return HttpResponse.preEncoded("200 OK", entry.head, entry.body);
+    }
+
+    // Returns the entry's variant for coding, compressing the cached body on first use; null
+    // when compression does not make the file smaller
+    private Variant variant(Path path, Entry entry, BasicFileAttributes attributes, Compression.Coding coding) {
+        Variant variant;
+        synchronized (this) {
+            variant = entry.variants[coding.ordinal()];
+        }
+        if (variant == null) {
+            byte[] compressed = Compression.compress(entry.body.duplicate(), coding);
+            if (compressed.length >= entry.size) {
+                variant = Variant.NONE;
+            } else {
+                ByteBuffer body = ByteBuffer.allocateDirect(compressed.length).put(compressed).flip();
+                variant = new Variant(encodeHead(path, attributes, coding, compressed.length), body);
+            }
+            synchronized (this) {
+                if (entry.variants[coding.ordinal()] == null) {
+                    entry.variants[coding.ordinal()] = variant;
+                    // Only account for it while the entry is still cached
+                    if (entries.get(path) == entry) {
+                        currentBytes += variant.bytes();
+                        evictOverBudget();
+                    }
+                }
+            }
+        }
+        return variant == Variant.NONE ? null : variant;
+    }
+
+    public synchronized void invalidate(Path path) {
+        remove(path);
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+    public synchronized long getCurrentBytes() { return currentBytes; }
+
+    private Entry load(Path path, BasicFileAttributes attributes) throws IOException {
+        long size = attributes.size();
+        ByteBuffer body = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (body.hasRemaining()) {
+                if (file.read(body) == -1) {
+                    return null; // file shrank while reading; serve it uncached
+                }
+            }
+        }
+        body.flip();
+
+        return new Entry(encodeHead(path, attributes, null, size), body, size, attributes.lastModifiedTime().toMillis());
+    }
+
+    private static ByteBuffer encodeHead(Path path, BasicFileAttributes attributes, Compression.Coding coding, long length) {
+        byte[] headBytes = ("HTTP/1.1 200 OK\r\n" +
+                            "Content-Type: application/octet-stream\r\n" +
+                            (coding != null ? "Content-Encoding: " + coding.token() + "\r\n" : "") +
+                            (StaticFiles.isCompressible(path, attributes) ? "Vary: Accept-Encoding\r\n" : "") +
+                            StaticFiles.validatorHeaders(attributes, coding) +
+                            "Content-Length: " + length + "\r\n").getBytes();
+        return ByteBuffer.allocateDirect(headBytes.length).put(headBytes).flip();
+    }
+
+    private synchronized void put(Path path, Entry entry) {
+        remove(path);
+        entries.put(path, entry);
+        currentBytes += entry.bytes();
+        evictOverBudget();
+    }
+
+    private void evictOverBudget() {
+        Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            currentBytes -= evicted.bytes();
+            evictions.increment();
+        }
+    }
+
+    private void remove(Path path) {
+        Entry removed = entries.remove(path);
+        if (removed != null) {
+            currentBytes -= removed.bytes();
+        }
+    }
+
+    private static final class Entry {
+        private final ByteBuffer head;
+        private final ByteBuffer body;
+        private final long size;
+        private final long lastModified;
+        private final Variant[] variants = new Variant[Compression.Coding.values().length];
+
+        Entry(ByteBuffer head, ByteBuffer body, long size, long lastModified) {
+            this.head = head;
+            this.body = body;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        long bytes() {
+            long bytes = head.capacity() + body.capacity();
+            for (Variant variant : variants) {
+                if (variant != null) {
+                    bytes += variant.bytes();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private static final class Variant {
+        // Marks a coding that does not shrink the file, so it is not tried again
+        static final Variant NONE = new Variant(null, null);
+
+        private final ByteBuffer head;
+        private final ByteBuffer body;
+
+        Variant(ByteBuffer head, ByteBuffer body) {
+            this.head = head;
+            this.body = body;
+        }
+
+        long bytes() {
+            return head == null ? 0 : head.capacity() + body.capacity();
+        }
+    }
+}
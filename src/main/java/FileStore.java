@@ -0,0 +1,633 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Where uploads to /files/ are written. A request body is spooled into a file in the hidden
+ * {@code .uploads} subdirectory ({@link #createUpload}), on the same file system but out of
+ * reach of {@code GET /files/{name}}, and then committed under its name, renamed over any
+ * earlier version, so readers see either the old file or the complete new one.
+ *
+ * How much of a commit has reached the disk when {@link #commit} returns depends on the
+ * durability mode:
+ * <ul>
+ *   <li>{@code ASYNC}: nothing is synced. The file is in place and the OS writes it back in
+ *       its own time, so a crash can lose recent uploads.</li>
+ *   <li>{@code BATCHED}: requests hand their uploads to a committer thread and wait for it.
+ *       The committer appends every upload waiting to a journal next to the directory
+ *       ({@code files.journal} for {@code files}), syncs the journal once for all of them and
+ *       renames them into place unsynced (group commit). While one batch syncs, the next one
+ *       gathers, so under load one sync covers many uploads. Once the journal outgrows its
+ *       budget, a checkpoint syncs the files it covers and the directory, then empties it.
+ *       Uploads larger than the journal's entry limit would cost more to copy than to
+ *       sync: they are synced on the request's thread and renamed by the committer, which syncs the directory for them.</li>
+ *   <li>{@code SYNC}: each commit syncs its data, renames and syncs the directory on the
+ *       request's own thread.</li>
+ * </ul>
+ * In the durable modes, a name never points at contents that did not reach the disk: either
+ * the data is synced before the rename, or it is in the synced journal, which is replayed
+ * when the store is opened after a crash.
+ *
+ * Commits to the same name are applied one at a time, in the order they arrive: the committer
+ * takes them first come first served, and the other modes hold a fair lock striped by name.
+ */
+public class FileStore {
+    public enum Durability {
+        ASYNC,
+        BATCHED,
+        SYNC
+    }
+
+    private static final int LOCK_STRIPES = 64;
+    // A record is a header of the name and spool name lengths (ints), the data length and
+    // the upload's modification time in milliseconds (longs), the name and spool name in
+    // UTF-8, the data, then a CRC32 of the data and a CRC32 of the rest of the record (longs)
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES + 2 * Long.BYTES;
+    private static final int RECORD_TRAILER_BYTES = 2 * Long.BYTES;
+    private static final int MAX_NAME_BYTES = 4096;
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+    private final Path directory;
+    // Where bodies are spooled until they are committed
+    private final Path spoolDirectory;
+    private final Durability durability;
+    private final int maxBatch;
+    private final Path journalPath;
+    private final long journalLimit;
+    private final long journalMaxEntry;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    // Commits waiting for the committer; BATCHED only
+    private final LinkedBlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+    // Written by the committer only: the journal, the files renamed since the last
+    // checkpoint whose data is only in the journal, and the buffer records are copied through
+    private FileChannel journal;
+    // BATCHED only
+    private final Thread committer;
+    private final Set<Path> unsynced = new HashSet<>();
+    private final ByteBuffer copyBuffer = ByteBuffer.allocateDirect(COPY_BUFFER_BYTES);
+    // Cleared if the platform cannot open a directory to sync it
+    private volatile boolean directorySync = true;
+
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder checkpoints = new LongAdder();
+
+    /**
+     * Opens the store, first replaying the journal a crash may have left behind, whatever the
+     * mode. {@code journalBytes} is how large the journal grows before a checkpoint, and
+     * uploads larger than {@code journalMaxEntryBytes} are synced in place instead of journaled.
+     */
+    public FileStore(Path directory, Durability durability, int maxBatch, long journalBytes, long journalMaxEntryBytes) {
+        this.directory = directory;
+        this.spoolDirectory = directory.resolve(".uploads");
+        this.durability = durability;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.journalPath = directory.resolveSibling(directory.getFileName() + ".journal");
+        this.journalLimit = journalBytes;
+        this.journalMaxEntry = journalMaxEntryBytes;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock(true);
+        }
+        try {
+            recover();
+            if (durability == Durability.BATCHED) {
+                journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the file journal " + journalPath, e);
+        }
+        committer = durability == Durability.BATCHED
+                ? Thread.ofPlatform().name("file-committer").daemon().start(this::runCommitter)
+                : null;
+    }
+
+    /** Creates an empty spool file for a body to be written into. */
+    public Path createUpload() throws IOException {
+        return newUpload();
+    }
+
+    // Files.createFile rather than createTempFile, which would make it, and the file it is
+    // renamed to, readable by the owner only; this one gets the usual umask permissions
+    private Path newUpload() throws IOException {
+        while (true) {
+            Path upload = spoolDirectory.resolve(Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                return Files.createFile(upload);
+            } catch (FileAlreadyExistsException e) {
+                // Name taken; draw another
+            } catch (NoSuchFileException e) {
+                // Created on first use, or again if it has been removed
+                Files.createDirectories(spoolDirectory);
+            }
+        }
+    }
+
+    /** The path a file of the given name is stored at. */
+    public Path resolve(String name) {
+        return directory.resolve(name);
+    }
+
+    /**
+     * Moves a fully written upload into place at {@code target}, returning once it is as
+     * durable as the store's mode promises. On failure the upload is left where it was.
+     */
+    public void commit(Path upload, Path target) throws IOException {
+        commits.increment();
+        if (durability == Durability.BATCHED) {
+            boolean inPlace = Files.size(upload) > journalMaxEntry;
+            if (inPlace) {
+                syncData(upload);
+            }
+            Commit commit = new Commit(upload, target, inPlace);
+            queue.add(commit);
+            commit.await();
+            return;
+        }
+
+        ReentrantLock lock = lockFor(target);
+        lock.lock();
+        try {
+            if (durability == Durability.SYNC) {
+                syncData(upload);
+                move(upload, target);
+                syncDirectory();
+            } else {
+                move(upload, target);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs out the files whose data is only in the journal and empties it, so that the next
+     * start has nothing to replay. Waits for the uploads queued before it.
+     */
+    public void checkpoint() throws IOException {
+        if (committer != null) {
+            requestCheckpoint(false);
+        }
+    }
+
+    /**
+     * Checkpoints, then stops the committer and closes the journal. For use once no more
+     * commits are coming, such as before the store's directory is removed.
+     */
+    public void close() throws IOException {
+        if (committer == null) {
+            return;
+        }
+        requestCheckpoint(true);
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Durability getDurability() { return durability; }
+    public long getCommits() { return commits.sum(); }
+    public long getBatches() { return batches.sum(); }
+    public long getSyncs() { return syncs.sum(); }
+    public long getCheckpoints() { return checkpoints.sum(); }
+
+    private void requestCheckpoint(boolean stop) throws IOException {
+        Commit request = new Commit(null, null, true);
+        request.stop = stop;
+        queue.add(request);
+        request.await();
+    }
+
+    private ReentrantLock lockFor(Path target) {
+        return locks[(target.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES];
+    }
+
+    private void runCommitter() {
+        List<Commit> batch = new ArrayList<>(maxBatch);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            commitBatch(batch);
+            for (Commit commit : batch) {
+                stop |= commit.stop;
+            }
+            batch.clear();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            ServerLog.error("Error closing the file journal: ", e.getMessage());
+        }
+    }
+
+    // Applies the batch in arrival order: each run of journaled commits shares one journal
+    // sync, and uploads synced in place are renamed between them
+    private void commitBatch(List<Commit> batch) {
+        batches.increment();
+        boolean dropRecords = false;
+        int from = 0;
+        for (int i = 0; i <= batch.size(); i++) {
+            if (i < batch.size() && !batch.get(i).inPlace) {
+                continue;
+            }
+            if (from < i && !commitJournaled(batch.subList(from, i))) {
+                dropRecords = true;
+            }
+            if (i < batch.size()) {
+                commitInPlace(batch.get(i));
+            }
+            from = i + 1;
+        }
+        // A journaled upload that could not be renamed must not be replayed after a crash;
+        // a checkpoint empties the journal before the failure is reported
+        if (dropRecords) {
+            checkpointQuietly();
+        }
+        for (Commit commit : batch) {
+            commit.done.countDown();
+        }
+        try {
+            if (journal.position() >= journalLimit) {
+                checkpointNow();
+            }
+        } catch (IOException e) {
+            ServerLog.error("Error checkpointing the file journal: ", e.getMessage());
+        }
+    }
+
+    // Appends the uploads to the journal, syncs it once and renames them into place. False if
+    // a rename failed after its record was synced.
+    private boolean commitJournaled(List<Commit> run) {
+        List<Commit> journaled = new ArrayList<>(run.size());
+        long runStart = -1;
+        try {
+            runStart = journal.position();
+            for (Commit commit : run) {
+                long recordStart = journal.position();
+                try {
+                    append(commit);
+                    journaled.add(commit);
+                } catch (IOException e) {
+                    commit.failure = e;
+                    journal.truncate(recordStart);
+                    journal.position(recordStart);
+                }
+            }
+            if (journaled.isEmpty()) {
+                return true;
+            }
+            // The journal only grows, so syncing its data (and size) is enough
+            journal.force(false);
+            syncs.increment();
+        } catch (IOException e) {
+            for (Commit commit : run) {
+                if (commit.failure == null) {
+                    commit.failure = e;
+                }
+            }
+            rewind(runStart);
+            return true;
+        }
+
+        boolean renamed = true;
+        for (Commit commit : journaled) {
+            try {
+                move(commit.upload, commit.target);
+                unsynced.add(commit.target);
+            } catch (IOException e) {
+                commit.failure = e;
+                renamed = false;
+            }
+        }
+        return renamed;
+    }
+
+    // Drops the records of a run whose journal sync failed
+    private void rewind(long position) {
+        if (position < 0) {
+            return;
+        }
+        try {
+            journal.truncate(position);
+            journal.position(position);
+        } catch (IOException e) {
+            ServerLog.error("Error rewinding the file journal: ", e.getMessage());
+        }
+    }
+
+    private void commitInPlace(Commit commit) {
+        try {
+            if (commit.upload == null) {
+                checkpointNow();
+                return;
+            }
+            // An older version still only in the journal would be replayed over this one
+            if (unsynced.contains(commit.target)) {
+                checkpointNow();
+            }
+            move(commit.upload, commit.target);
+            syncDirectory();
+        } catch (IOException e) {
+            commit.failure = e;
+        }
+    }
+
+    // Writes one record: header and names, the upload's data, then the checksums
+    private void append(Commit commit) throws IOException {
+        byte[] name = directory.relativize(commit.target).toString().getBytes(StandardCharsets.UTF_8);
+        byte[] spool = directory.relativize(commit.upload).toString().getBytes(StandardCharsets.UTF_8);
+        try (FileChannel in = FileChannel.open(commit.upload, StandardOpenOption.READ)) {
+            long length = in.size();
+            long modified = Files.getLastModifiedTime(commit.upload).toMillis();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES + name.length + spool.length)
+                    .putInt(name.length).putInt(spool.length).putLong(length).putLong(modified)
+                    .put(name).put(spool).flip();
+            CRC32 recordCrc = new CRC32();
+            recordCrc.update(header.duplicate());
+            writeFully(header);
+
+            CRC32 dataCrc = new CRC32();
+            for (long copied = 0; copied < length; ) {
+                copyBuffer.clear().limit((int) Math.min(copyBuffer.capacity(), length - copied));
+                if (in.read(copyBuffer) < 0) {
+                    throw new EOFException("Upload shrank while being journaled: " + commit.upload);
+                }
+                copyBuffer.flip();
+                copied += copyBuffer.remaining();
+                dataCrc.update(copyBuffer.duplicate());
+                writeFully(copyBuffer);
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(RECORD_TRAILER_BYTES).putLong(dataCrc.getValue());
+            recordCrc.update(trailer.array(), 0, Long.BYTES);
+            writeFully(trailer.putLong(recordCrc.getValue()).flip());
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+    }
+
+    // Syncs the files whose data is only in the journal and the directory, then empties it
+    private void checkpointNow() throws IOException {
+        for (Path target : unsynced) {
+            try {
+                syncData(target);
+            } catch (NoSuchFileException e) {
+                // Replaced or removed since; nothing left to sync
+            }
+        }
+        syncDirectory();
+        unsynced.clear();
+        journal.truncate(0);
+        journal.force(true);
+        syncs.increment();
+        checkpoints.increment();
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpointNow();
+        } catch (IOException e) {
+            ServerLog.error("Error checkpointing the file journal: ", e.getMessage());
+        }
+    }
+
+    // Replays the records of a journal left by a crash, up to the first one that is torn or
+    // corrupt: its batch was never synced, so none of it was answered. A record is replayed
+    // only where its commit did not complete: its spool file is still there, so it was never
+    // renamed, or the target is still the upload it renamed (not modified since) but its data
+    // did not all reach the disk. A target removed or rewritten since is left as it is.
+    private void recover() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+        int replayed = 0;
+        int changed = 0;
+        Set<Path> restored = new HashSet<>();
+        try (FileChannel in = FileChannel.open(journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            ByteBuffer trailer = ByteBuffer.allocate(RECORD_TRAILER_BYTES);
+            long position = 0;
+            while (true) {
+                long available = size - position - RECORD_HEADER_BYTES - RECORD_TRAILER_BYTES;
+                if (available < 0 || !readFully(in, header.clear(), position)) {
+                    break;
+                }
+                int nameLength = header.flip().getInt();
+                int spoolLength = header.getInt();
+                long length = header.getLong();
+                long modified = header.getLong();
+                if (nameLength <= 0 || nameLength > MAX_NAME_BYTES || spoolLength <= 0 || spoolLength > MAX_NAME_BYTES ||
+                    length < 0 || length > available - nameLength - spoolLength) {
+                    break;
+                }
+                ByteBuffer names = ByteBuffer.allocate(nameLength + spoolLength);
+                readFully(in, names, position + RECORD_HEADER_BYTES);
+                long dataStart = position + RECORD_HEADER_BYTES + names.capacity();
+                readFully(in, trailer.clear(), dataStart + length);
+                trailer.flip();
+                long dataCrc = trailer.getLong();
+                CRC32 recordCrc = new CRC32();
+                recordCrc.update(header.rewind());
+                recordCrc.update(names.flip());
+                recordCrc.update(trailer.array(), 0, Long.BYTES);
+                if (trailer.getLong() != recordCrc.getValue() || checksum(in, dataStart, length, null) != dataCrc) {
+                    break;
+                }
+                position = dataStart + length + RECORD_TRAILER_BYTES;
+
+                Path target = directory.resolve(new String(names.array(), 0, nameLength, StandardCharsets.UTF_8));
+                Path spool = directory.resolve(new String(names.array(), nameLength, spoolLength, StandardCharsets.UTF_8));
+                if (!Files.exists(spool)) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(target, BasicFileAttributes.class);
+                    } catch (NoSuchFileException e) {
+                        attributes = null;
+                    }
+                    if (attributes == null || !attributes.isRegularFile() ||
+                        attributes.lastModifiedTime().toMillis() > modified) {
+                        changed++;
+                        continue;
+                    }
+                    if (attributes.size() == length && checksum(target, length) == dataCrc) {
+                        // Complete, but only synced once the journal is emptied below
+                        restored.add(target);
+                        continue;
+                    }
+                }
+
+                Path upload = newUpload();
+                try {
+                    try (FileChannel out = FileChannel.open(upload, StandardOpenOption.WRITE)) {
+                        checksum(in, dataStart, length, out);
+                    }
+                    // Kept, so a later record for the same name still sees its own upload here
+                    Files.setLastModifiedTime(upload, FileTime.fromMillis(modified));
+                    move(upload, target);
+                    Files.deleteIfExists(spool);
+                    restored.add(target);
+                    replayed++;
+                } catch (IOException e) {
+                    ServerLog.error("Error replaying " + target + " from the file journal: ", e.getMessage());
+                } finally {
+                    Files.deleteIfExists(upload);
+                }
+            }
+            // Only the last version of each file needs to be synced
+            if (!restored.isEmpty()) {
+                for (Path target : restored) {
+                    try {
+                        syncData(target);
+                    } catch (NoSuchFileException e) {
+                        // Removed since it was replayed
+                    }
+                }
+                syncDirectory();
+            }
+            // Emptied durably before it is reused or removed, so it is never replayed again
+            in.truncate(0);
+            in.force(true);
+        }
+        if (durability != Durability.BATCHED) {
+            Files.delete(journalPath);
+        }
+        ServerLog.info("Replayed the file journal, uploads restored: ", replayed + ", left as changed since: " + changed);
+    }
+
+    private long checksum(Path file, long length) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            return checksum(in, 0, length, null);
+        }
+    }
+
+    // CRC32 of the length bytes of in from position, copying them to out if there is one
+    private long checksum(FileChannel in, long position, long length, FileChannel out) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long done = 0; done < length; ) {
+            copyBuffer.clear().limit((int) Math.min(copyBuffer.capacity(), length - done));
+            if (!readFully(in, copyBuffer, position + done)) {
+                throw new EOFException("File shorter than expected: " + length + " bytes");
+            }
+            copyBuffer.flip();
+            done += copyBuffer.remaining();
+            crc.update(copyBuffer.duplicate());
+            while (out != null && copyBuffer.hasRemaining()) {
+                out.write(copyBuffer);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private void syncData(Path upload) throws IOException {
+        try (FileChannel channel = FileChannel.open(upload, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        syncs.increment();
+    }
+
+    private static void move(Path upload, Path target) throws IOException {
+        Files.move(upload, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Makes the renames in the directory durable. Some platforms (Windows) cannot open a
+    // directory to sync it; there renames are left to the file system.
+    private void syncDirectory() throws IOException {
+        if (!directorySync) {
+            return;
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            directorySync = false;
+            ServerLog.info("Cannot open the files directory to sync it; renames will not be synced: ", e.getMessage());
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+        syncs.increment();
+    }
+
+    // One upload waiting for the committer or, without one, a checkpoint
+    private static final class Commit {
+        final Path upload;
+        final Path target;
+        // Synced by the request rather than journaled
+        final boolean inPlace;
+        final CountDownLatch done = new CountDownLatch(1);
+        // Set on a checkpoint that also stops the committer, before it is queued
+        boolean stop;
+        // Written by the committer before done is counted down
+        IOException failure;
+
+        Commit(Path upload, Path target, boolean inPlace) {
+            this.upload = upload;
+            this.target = target;
+            this.inPlace = inPlace;
+        }
+
+        // Waits through interrupts: the committer may still rename the upload, which the caller
+        // deletes once commit returns, and its caller must learn whether the file was committed
+        void await() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Drains the server when the JVM is asked to stop, by SIGTERM, SIGINT or {@code System.exit}:
+ * <ol>
+ *   <li>The listening sockets are closed. With SO_REUSEPORT, a new server already bound to the
+ *       port takes the new connections from here on. Connections still waiting in a closed
+ *       socket's accept queue are reset, unless the kernel migrates them to another listener
+ *       ({@code net.ipv4.tcp_migrate_req} on Linux).</li>
+ *   <li>Requests already received are answered, with {@code Connection: close}. Keep-alive
+ *       connections with no request in progress are closed.</li>
+ *   <li>HTTP/2 connections get a GOAWAY and finish the streams they have open.</li>
+ *   <li>WebSocket connections are closed with status 1001 (going away).</li>
+ * </ol>
+ * Once every connection has closed, or {@code server.shutdownTimeoutMillis} has passed, the
+ * steps registered with {@link #onStop} run, then the log is flushed and the JVM exits.
+ *
+ * Engines and connection types register what draining means for them with {@link #onDrain};
+ * connection loops check {@link #isDraining} before waiting for another request.
+ */
+public final class GracefulShutdown {
+    private static final long POLL_MILLIS = 20;
+
+    private static final List<Runnable> drainActions = new CopyOnWriteArrayList<>();
+    private static final List<Runnable> stopActions = new CopyOnWriteArrayList<>();
+    private static volatile boolean draining;
+
+    private GracefulShutdown() {
+    }
+
+    /**
+     * Registers the shutdown hook.
+     *
+     * @param drained true once no connection is left open
+     */
+    public static void install(BooleanSupplier drained) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(drained), "shutdown"));
+    }
+
+    /** Adds a step run once the listening sockets are closed, such as closing idle connections. */
+    public static void onDrain(Runnable action) {
+        drainActions.add(action);
+    }
+
+    /** Adds a step run once the connections are drained, such as syncing files to disk. */
+    public static void onStop(Runnable action) {
+        stopActions.add(action);
+    }
+
+    public static boolean isDraining() {
+        return draining;
+    }
+
+    private static void drain(BooleanSupplier drained) {
+        long start = System.currentTimeMillis();
+        ServerLog.info("Shutting down: draining ", Metrics.getOpenConnections() + " HTTP connections");
+        draining = true;
+        Listeners.closeAll();
+        for (Runnable action : drainActions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                ServerLog.error("Error draining: ", e);
+            }
+        }
+
+        long deadline = start + ServerConfig.SHUTDOWN_TIMEOUT_MILLIS;
+        while (!drained.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (drained.getAsBoolean()) {
+            ServerLog.info("Drained in ", (System.currentTimeMillis() - start) + " ms");
+        } else {
+            ServerLog.error("Shutdown timed out with connections still open: ", Metrics.getOpenConnections() + " HTTP");
+        }
+        for (Runnable action : stopActions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                ServerLog.error("Error stopping: ", e);
+            }
+        }
+        ServerLog.shutdown();
+    }
+}
@@ -0,0 +1,539 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK (RFC 7541), the header compression of HTTP/2. Each direction of a connection has its
+ * own dynamic table, so a connection owns one {@link Decoder} for the requests it reads and
+ * one {@link Encoder} for the responses it writes; neither is thread-safe.
+ *
+ * Names and values are octets and kept as ISO-8859-1 strings, which map each byte to one char.
+ *
+ * The encoder indexes repeated fields such as {@code content-type: text/plain} in its dynamic
+ * table so later responses send them as a single byte, but leaves values that change with
+ * every response, such as {@code content-length} and {@code etag}, out of the table where they
+ * would only evict useful entries. Strings are Huffman-coded when that makes them shorter.
+ */
+public final class Hpack {
+    /** Table size both sides start with, and the most this server's encoder ever uses. */
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // Per-entry overhead counted against the table size (RFC 7541, section 4.1)
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final Header[] STATIC_TABLE = {
+            null, // indices start at 1
+            new Header(":authority", ""),
+            new Header(":method", "GET"),
+            new Header(":method", "POST"),
+            new Header(":path", "/"),
+            new Header(":path", "/index.html"),
+            new Header(":scheme", "http"),
+            new Header(":scheme", "https"),
+            new Header(":status", "200"),
+            new Header(":status", "204"),
+            new Header(":status", "206"),
+            new Header(":status", "304"),
+            new Header(":status", "400"),
+            new Header(":status", "404"),
+            new Header(":status", "500"),
+            new Header("accept-charset", ""),
+            new Header("accept-encoding", "gzip, deflate"),
+            new Header("accept-language", ""),
+            new Header("accept-ranges", ""),
+            new Header("accept", ""),
+            new Header("access-control-allow-origin", ""),
+            new Header("age", ""),
+            new Header("allow", ""),
+            new Header("authorization", ""),
+            new Header("cache-control", ""),
+            new Header("content-disposition", ""),
+            new Header("content-encoding", ""),
+            new Header("content-language", ""),
+            new Header("content-length", ""),
+            new Header("content-location", ""),
+            new Header("content-range", ""),
+            new Header("content-type", ""),
+            new Header("cookie", ""),
+            new Header("date", ""),
+            new Header("etag", ""),
+            new Header("expect", ""),
+            new Header("expires", ""),
+            new Header("from", ""),
+            new Header("host", ""),
+            new Header("if-match", ""),
+            new Header("if-modified-since", ""),
+            new Header("if-none-match", ""),
+            new Header("if-range", ""),
+            new Header("if-unmodified-since", ""),
+            new Header("last-modified", ""),
+            new Header("link", ""),
+            new Header("location", ""),
+            new Header("max-forwards", ""),
+            new Header("proxy-authenticate", ""),
+            new Header("proxy-authorization", ""),
+            new Header("range", ""),
+            new Header("referer", ""),
+            new Header("refresh", ""),
+            new Header("retry-after", ""),
+            new Header("server", ""),
+            new Header("set-cookie", ""),
+            new Header("strict-transport-security", ""),
+            new Header("transfer-encoding", ""),
+            new Header("user-agent", ""),
+            new Header("vary", ""),
+            new Header("via", ""),
+            new Header("www-authenticate", ""),
+    };
+
+    // Static indices by name and by name plus value, for the encoder
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<Header, Integer> STATIC_FIELDS = new HashMap<>();
+
+    // Fields whose values differ from one response to the next, never added to the table
+    private static final List<String> UNINDEXED_NAMES =
+            List.of("content-length", "content-range", "etag", "last-modified", "date", "set-cookie", "location");
+
+    // Huffman code of each byte value (RFC 7541, Appendix B), right-aligned, and its length in bits
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+    };
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+    };
+    private static final int EOS_CODE = 0x3fffffff;
+    private static final int EOS_LENGTH = 30;
+    private static final int EOS = 256;
+
+    // Decoding tree: node n's children for a 0 and a 1 bit, or the symbol at a leaf; 257
+    // leaves (EOS included) need 256 inner nodes
+    private static final int TREE_NODES = 2 * (EOS + 1) - 1;
+    private static final short[] ZERO = new short[TREE_NODES];
+    private static final short[] ONE = new short[TREE_NODES];
+    private static final short[] SYMBOL = new short[TREE_NODES];
+
+    static {
+        for (int i = 1; i < STATIC_TABLE.length; i++) {
+            STATIC_NAMES.putIfAbsent(STATIC_TABLE[i].name(), i);
+            STATIC_FIELDS.putIfAbsent(STATIC_TABLE[i], i);
+        }
+
+        Arrays.fill(SYMBOL, (short) -1);
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = symbol == EOS ? EOS_CODE : CODES[symbol];
+            int length = symbol == EOS ? EOS_LENGTH : LENGTHS[symbol];
+            int node = 0;
+            for (int bit = length - 1; bit >= 0; bit--) {
+                short[] branch = ((code >>> bit) & 1) == 0 ? ZERO : ONE;
+                if (branch[node] == 0) {
+                    branch[node] = (short) nodes++;
+                }
+                node = branch[node];
+            }
+            SYMBOL[node] = (short) symbol;
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /** One header field. */
+    public record Header(String name, String value) {
+        int size() {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /** Thrown for a header block that cannot be decoded; the connection cannot continue. */
+    public static class CompressionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CompressionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one connection, in the order they arrive. A block that
+     * would decode to more than {@code maxHeaderListSize} (names, values and 32 bytes per
+     * field, as the peer was told in SETTINGS_MAX_HEADER_LIST_SIZE) is rejected before it
+     * is expanded, since a few bytes of indices can otherwise stand for megabytes of fields.
+     */
+    public static final class Decoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private final int maxTableSize;
+        private final int maxHeaderListSize;
+
+        // Read position within the block being decoded
+        private byte[] block;
+        private int position;
+        private int end;
+
+        public Decoder(int maxTableSize, int maxHeaderListSize) {
+            this.maxTableSize = maxTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        public List<Header> decode(byte[] block, int offset, int length) throws CompressionException {
+            this.block = block;
+            this.position = offset;
+            this.end = offset + length;
+            List<Header> headers = new ArrayList<>();
+            int listSize = 0;
+            boolean fieldSeen = false;
+            while (position < end) {
+                int b = block[position] & 0xFF;
+                Header header;
+                if ((b & 0x80) != 0) {
+                    header = field(readInteger(7));
+                } else if ((b & 0xC0) == 0x40) {
+                    header = literal(6);
+                    table.add(header);
+                } else if ((b & 0xE0) == 0x20) {
+                    // Size updates are only allowed at the start of a block
+                    int size = readInteger(5);
+                    if (fieldSeen || size > maxTableSize) {
+                        throw new CompressionException("Invalid dynamic table size update: " + size);
+                    }
+                    table.resize(size);
+                    continue;
+                } else {
+                    // Without indexing (0000) or never indexed (0001); both leave the table alone
+                    header = literal(4);
+                }
+                fieldSeen = true;
+                listSize += header.size();
+                if (listSize > maxHeaderListSize) {
+                    throw new CompressionException("Header list exceeds " + maxHeaderListSize + " bytes");
+                }
+                headers.add(header);
+            }
+            this.block = null;
+            return headers;
+        }
+
+        private Header field(int index) throws CompressionException {
+            if (index == 0) {
+                throw new CompressionException("Header index 0");
+            }
+            if (index < STATIC_TABLE.length) {
+                return STATIC_TABLE[index];
+            }
+            Header header = table.get(index - STATIC_TABLE.length);
+            if (header == null) {
+                throw new CompressionException("Header index out of range: " + index);
+            }
+            return header;
+        }
+
+        private Header literal(int prefixBits) throws CompressionException {
+            int index = readInteger(prefixBits);
+            String name = index == 0 ? readString() : field(index).name();
+            return new Header(name, readString());
+        }
+
+        // An integer with an N-bit prefix (RFC 7541, section 5.1)
+        private int readInteger(int prefixBits) throws CompressionException {
+            int max = (1 << prefixBits) - 1;
+            long value = block[position++] & max;
+            if (value < max) {
+                return (int) value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (position == end) {
+                    throw new CompressionException("Truncated integer");
+                }
+                int b = block[position++] & 0xFF;
+                value += (long) (b & 0x7F) << shift;
+                if (value > Integer.MAX_VALUE) {
+                    throw new CompressionException("Integer overflow");
+                }
+                if ((b & 0x80) == 0) {
+                    return (int) value;
+                }
+            }
+        }
+
+        private String readString() throws CompressionException {
+            if (position == end) {
+                throw new CompressionException("Truncated string");
+            }
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > end - position) {
+                throw new CompressionException("Truncated string");
+            }
+            if (length > maxHeaderListSize) {
+                throw new CompressionException("Header list exceeds " + maxHeaderListSize + " bytes");
+            }
+            int start = position;
+            position += length;
+            return huffman ? decodeHuffman(block, start, length) : new String(block, start, length, StandardCharsets.ISO_8859_1);
+        }
+
+        // Walks the code tree one bit at a time; whatever follows the last symbol must be
+        // fewer than eight bits, all ones (a prefix of EOS)
+        private String decodeHuffman(byte[] bytes, int offset, int length) throws CompressionException {
+            StringBuilder out = new StringBuilder(length * 8 / 5);
+            int node = 0;
+            int pendingBits = 0;
+            boolean pendingOnes = true;
+            for (int i = offset; i < offset + length; i++) {
+                int b = bytes[i] & 0xFF;
+                for (int bit = 7; bit >= 0; bit--) {
+                    int one = (b >>> bit) & 1;
+                    node = one == 0 ? ZERO[node] : ONE[node];
+                    pendingBits++;
+                    pendingOnes &= one == 1;
+                    if (node == 0) {
+                        throw new CompressionException("Invalid Huffman code");
+                    }
+                    int symbol = SYMBOL[node];
+                    if (symbol >= 0) {
+                        if (symbol == EOS) {
+                            throw new CompressionException("EOS in Huffman string");
+                        }
+                        out.append((char) symbol);
+                        node = 0;
+                        pendingBits = 0;
+                        pendingOnes = true;
+                    }
+                }
+            }
+            if (pendingBits > 7 || !pendingOnes) {
+                throw new CompressionException("Invalid Huffman padding");
+            }
+            return out.toString();
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection. Blocks must go on the wire in the order
+     * they were encoded, so callers encode and write under the same lock.
+     */
+    public static final class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        // Smallest size the peer's SETTINGS_HEADER_TABLE_SIZE set since the last block, or -1;
+        // announced, with the final size if larger, at the start of the next block
+        private int smallestNewSize = -1;
+
+        /** Applies the peer's SETTINGS_HEADER_TABLE_SIZE; this side never uses more than the default. */
+        public void setMaxTableSize(int size) {
+            int capped = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (capped == table.maxSize && smallestNewSize < 0) {
+                return;
+            }
+            smallestNewSize = smallestNewSize < 0 ? capped : Math.min(smallestNewSize, capped);
+            table.resize(capped);
+        }
+
+        /** Encodes {@code headers} into one block. */
+        public byte[] encode(List<Header> headers) {
+            out.reset();
+            if (smallestNewSize >= 0) {
+                writeInteger(0x20, 5, smallestNewSize);
+                if (smallestNewSize != table.maxSize) {
+                    writeInteger(0x20, 5, table.maxSize);
+                }
+                smallestNewSize = -1;
+            }
+            for (Header header : headers) {
+                encode(header);
+            }
+            return out.toByteArray();
+        }
+
+        private void encode(Header header) {
+            Integer exact = STATIC_FIELDS.get(header);
+            int index = exact != null ? exact : table.indexOf(header, true);
+            if (index > 0) {
+                writeInteger(0x80, 7, index);
+                return;
+            }
+
+            Integer staticName = STATIC_NAMES.get(header.name());
+            int nameIndex = staticName != null ? staticName : table.indexOf(header, false);
+            if (UNINDEXED_NAMES.contains(header.name())) {
+                writeInteger(0x00, 4, nameIndex);
+            } else {
+                writeInteger(0x40, 6, nameIndex);
+                table.add(header);
+            }
+            if (nameIndex == 0) {
+                writeString(header.name());
+            }
+            writeString(header.value());
+        }
+
+        private void writeInteger(int pattern, int prefixBits, int value) {
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                out.write(pattern | value);
+                return;
+            }
+            out.write(pattern | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        private void writeString(String value) {
+            long bits = 0;
+            for (int i = 0; i < value.length(); i++) {
+                bits += LENGTHS[value.charAt(i) & 0xFF];
+            }
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength >= value.length()) {
+                writeInteger(0x00, 7, value.length());
+                for (int i = 0; i < value.length(); i++) {
+                    out.write(value.charAt(i));
+                }
+                return;
+            }
+
+            writeInteger(0x80, 7, huffmanLength);
+            long buffer = 0;
+            int buffered = 0;
+            for (int i = 0; i < value.length(); i++) {
+                int symbol = value.charAt(i) & 0xFF;
+                buffer = (buffer << LENGTHS[symbol]) | CODES[symbol];
+                buffered += LENGTHS[symbol];
+                while (buffered >= 8) {
+                    buffered -= 8;
+                    out.write((int) (buffer >>> buffered));
+                }
+            }
+            if (buffered > 0) {
+                // Padded with the most significant bits of EOS, which are all ones
+                out.write((int) ((buffer << (8 - buffered)) | (0xFF >>> buffered)));
+            }
+        }
+    }
+
+    /**
+     * The dynamic table: most recent entry first, oldest evicted once the entries' sizes
+     * exceed the maximum. Kept in a ring buffer so adding and evicting allocate nothing.
+     */
+    private static final class DynamicTable {
+        private Header[] entries = new Header[16];
+        private int head;   // slot of the newest entry
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        // Entry at a 1-based index into the dynamic table, or null
+        Header get(int index) {
+            if (index < 1 || index > count) {
+                return null;
+            }
+            return entries[(head + index - 1) & (entries.length - 1)];
+        }
+
+        // Combined static-table index of an entry matching the header (or just its name), or 0
+        int indexOf(Header header, boolean matchValue) {
+            for (int i = 1; i <= count; i++) {
+                Header entry = get(i);
+                if (entry.name().equals(header.name()) && (!matchValue || entry.value().equals(header.value()))) {
+                    return STATIC_TABLE.length - 1 + i;
+                }
+            }
+            return 0;
+        }
+
+        void add(Header header) {
+            int entrySize = header.size();
+            if (entrySize > maxSize) {
+                // An entry larger than the table empties it and is not added
+                evictTo(0);
+                return;
+            }
+            evictTo(maxSize - entrySize);
+            if (count == entries.length) {
+                Header[] larger = new Header[entries.length * 2];
+                for (int i = 0; i < count; i++) {
+                    larger[i] = get(i + 1);
+                }
+                entries = larger;
+                head = 0;
+            }
+            head = (head - 1) & (entries.length - 1);
+            entries[head] = header;
+            count++;
+            size += entrySize;
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evictTo(maxSize);
+        }
+
+        private void evictTo(int targetSize) {
+            while (size > targetSize) {
+                int oldest = (head + count - 1) & (entries.length - 1);
+                size -= entries[oldest].size();
+                entries[oldest] = null;
+                count--;
+            }
+        }
+    }
+}
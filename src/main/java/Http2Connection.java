@@ -0,0 +1,1062 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One cleartext HTTP/2 connection (RFC 9113), reached either by sending the connection
+ * preface straight away ("prior knowledge") or through an HTTP/1.1 {@code Upgrade: h2c}
+ * request, which then becomes stream 1.
+ *
+ * The thread that calls {@link #serve} reads frames until the connection ends. Each request
+ * is handed to a virtual thread of its own once its headers (and body, if any) have arrived,
+ * and goes through the same handler as an HTTP/1.1 request, so many streams share the
+ * connection at once. Request bodies are written into the request's sink (see
+ * {@link Main#openBodySink}) as DATA frames arrive, and WINDOW_UPDATE is sent as they are
+ * consumed, so the client can keep {@link ServerConfig#H2_INITIAL_WINDOW_BYTES} in flight per
+ * stream.
+ *
+ * Responses are written by their stream's thread. Frames go out whole under one write lock,
+ * and the HPACK encoder, whose blocks must reach the peer in the order they were encoded, is
+ * only used under that lock. DATA frames respect both the stream's and the connection's send
+ * window; a stream whose window is exhausted waits for the peer's WINDOW_UPDATE without
+ * holding the write lock, so other streams keep going.
+ *
+ * When the server drains, {@link #drainAll} sends every connection a GOAWAY naming the last
+ * stream it took. Streams the client opens after that are ignored, for it to retry elsewhere;
+ * the connection ends once the ones before it have been answered.
+ */
+public class Http2Connection {
+    // The connection preface a client starts with; its first line parses as an HTTP/1.1 request line
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+    // What follows the preface's request line and blank line
+    private static final byte[] PREFACE_TAIL = "SM\r\n\r\n".getBytes();
+
+    // Frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    // Frame flags
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    // Error codes
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    // Settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_BYTES = 9;
+    // Largest frame payload either side may send until told otherwise; this server never asks for more
+    private static final int DEFAULT_MAX_FRAME_BYTES = 16384;
+    private static final int MAX_FRAME_SIZE_LIMIT = (1 << 24) - 1;
+    private static final int DEFAULT_WINDOW_BYTES = 65535;
+    private static final int MAX_WINDOW_BYTES = Integer.MAX_VALUE;
+
+    private static final ExecutorService streamThreads =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("h2-stream-", 0).factory());
+
+    // Connections past their preface, for draining
+    private static final Set<Http2Connection> active = ConcurrentHashMap.newKeySet();
+
+    private static final LongAdder connections = new LongAdder();
+    private static final LongAdder streamsOpened = new LongAdder();
+    private static final LongAdder streamsRefused = new LongAdder();
+    private static final LongAdder streamsReset = new LongAdder();
+    private static final LongAdder flowControlStalls = new LongAdder();
+    private static final LongAdder openStreams = new LongAdder();
+
+    private final Socket socket;
+    private final GatheringByteChannel out;
+    private final InputStream in;
+    private final HttpHandler handler;
+    private final HttpRequestParser parser = new HttpRequestParser(ServerConfig.MAX_HEADER_BYTES);
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, ServerConfig.MAX_HEADER_BYTES);
+    private final int receiveWindow = Math.max(DEFAULT_WINDOW_BYTES, ServerConfig.H2_INITIAL_WINDOW_BYTES);
+
+    // Streams with a request being read or a response being written
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    // Reader thread only
+    private final byte[] frameHeader = new byte[FRAME_HEADER_BYTES];
+    private final byte[] payload = new byte[DEFAULT_MAX_FRAME_BYTES];
+    private byte[] headerBlock = new byte[1024];
+    private int headerBlockLength;
+    private int headerBlockStream;
+    private int headerBlockFlags;
+    private int lastStreamId;
+    // Bytes received on the connection since the last WINDOW_UPDATE for it
+    private int connectionUnacknowledged;
+
+    // Guards the send windows and the peer's settings that affect them
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition windowOpened = lock.newCondition();
+    private final Condition streamsClosed = lock.newCondition();
+    private int connectionSendWindow = DEFAULT_WINDOW_BYTES;
+    private int peerInitialWindow = DEFAULT_WINDOW_BYTES;
+    private int peerMaxFrameBytes = DEFAULT_MAX_FRAME_BYTES;
+    private boolean closed;
+    // Highest stream taken before the GOAWAY of a drain; later ones are ignored
+    private int goAwayStreamId = Integer.MAX_VALUE;
+    private volatile boolean draining;
+
+    // Serialises frames on the wire, and guards the encoder
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    public Http2Connection(Socket socket, GatheringByteChannel out, InputStream in, HttpHandler handler) {
+        this.socket = socket;
+        this.out = out;
+        this.in = new BufferedInputStream(in, FRAME_HEADER_BYTES + DEFAULT_MAX_FRAME_BYTES);
+        this.handler = handler;
+    }
+
+    /**
+     * Runs the connection until the client closes it, it has been idle for the idle timeout,
+     * or a protocol error ends it. Does not close the socket.
+     *
+     * @param upgrade the HTTP/1.1 request that asked for h2c, already answered with 101 and
+     *                answered here as stream 1; or null if the client sent the preface's
+     *                request line, which the caller has already consumed, straight away
+     */
+    public void serve(HttpRequest upgrade) throws IOException {
+        connections.increment();
+        try {
+            if (upgrade != null) {
+                byte[] settings = decodeSettingsHeader(upgrade.getHttp2Settings());
+                applySettings(settings, settings.length);
+            }
+            writeServerPreface();
+            readPreface(upgrade != null ? PREFACE : PREFACE_TAIL);
+            if (upgrade != null) {
+                lastStreamId = 1;
+                Stream stream = open(1, upgrade);
+                stream.remoteClosed = true;
+                dispatch(stream);
+            }
+            active.add(this);
+            if (GracefulShutdown.isDraining()) {
+                drain();
+            }
+            while (true) {
+                try {
+                    readFrame();
+                } catch (SocketTimeoutException e) {
+                    ServerLog.debug("Closing idle HTTP/2 connection");
+                    goAway(lastStreamId, NO_ERROR, "idle");
+                    return;
+                }
+            }
+        } catch (Http2Exception e) {
+            ServerLog.info("HTTP/2 connection error: ", e.getMessage());
+            goAway(lastStreamId, e.code, e.getMessage());
+        } catch (EOFException e) {
+            // The client closed the connection
+        } finally {
+            active.remove(this);
+            // Bodies still arriving will never be complete; dispatched requests own theirs
+            for (Stream stream : streams.values()) {
+                if (!stream.dispatched) {
+                    stream.abortBody();
+                    close(stream);
+                }
+            }
+            lock.lock();
+            try {
+                if (draining) {
+                    awaitStreams();
+                }
+                closed = true;
+                windowOpened.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static byte[] decodeSettingsHeader(String value) throws Http2Exception {
+        try {
+            return Base64.getUrlDecoder().decode(value.trim());
+        } catch (IllegalArgumentException e) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid HTTP2-Settings header");
+        }
+    }
+
+    // Our SETTINGS, and a connection window as large as the stream windows
+    private void writeServerPreface() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(4 * 6);
+        putSetting(settings, SETTINGS_MAX_CONCURRENT_STREAMS, ServerConfig.H2_MAX_CONCURRENT_STREAMS);
+        putSetting(settings, SETTINGS_INITIAL_WINDOW_SIZE, receiveWindow);
+        putSetting(settings, SETTINGS_MAX_HEADER_LIST_SIZE, ServerConfig.MAX_HEADER_BYTES);
+        putSetting(settings, SETTINGS_ENABLE_PUSH, 0);
+        settings.flip();
+        writeLock.lock();
+        try {
+            if (receiveWindow > DEFAULT_WINDOW_BYTES) {
+                write(frameHeader(settings.remaining(), SETTINGS, 0, 0), settings,
+                        frameHeader(4, WINDOW_UPDATE, 0, 0), int32(receiveWindow - DEFAULT_WINDOW_BYTES));
+            } else {
+                write(frameHeader(settings.remaining(), SETTINGS, 0, 0), settings);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void putSetting(ByteBuffer buffer, int id, int value) {
+        buffer.putShort((short) id).putInt(value);
+    }
+
+    private void readPreface(byte[] expected) throws IOException {
+        byte[] preface = new byte[expected.length];
+        readFully(preface, preface.length, false);
+        if (!Arrays.equals(preface, expected)) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    private void readFrame() throws IOException {
+        readFully(frameHeader, FRAME_HEADER_BYTES, true);
+        int length = (frameHeader[0] & 0xFF) << 16 | (frameHeader[1] & 0xFF) << 8 | frameHeader[2] & 0xFF;
+        int type = frameHeader[3] & 0xFF;
+        int flags = frameHeader[4] & 0xFF;
+        int streamId = readInt(frameHeader, 5) & 0x7FFFFFFF;
+        if (length > DEFAULT_MAX_FRAME_BYTES) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        readFully(payload, length, false);
+
+        // A header block is a contiguous run of frames on its stream
+        if (headerBlockStream != 0 && (type != CONTINUATION || streamId != headerBlockStream)) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Header block interrupted");
+        }
+
+        switch (type) {
+            case DATA -> onData(streamId, flags, length);
+            case HEADERS -> onHeaders(streamId, flags, length);
+            case PRIORITY -> {
+                if (streamId == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                // Priorities are advisory and ignored; streams are served as they complete
+            }
+            case RST_STREAM -> onReset(streamId, length);
+            case SETTINGS -> onSettings(streamId, flags, length);
+            case PUSH_PROMISE -> throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case PING -> onPing(streamId, flags, length);
+            case GOAWAY -> {
+                if (streamId != 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                // The client opens no more streams; the open ones finish and it then closes
+                ServerLog.debug("HTTP/2 GOAWAY received");
+            }
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, length);
+            case CONTINUATION -> {
+                if (headerBlockStream == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                }
+                appendHeaderBlock(0, length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    onHeaderBlock();
+                }
+            }
+            default -> {
+                // Unknown frame types are ignored
+            }
+        }
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int padding = (flags & FLAG_PADDED) != 0 ? padding(length) : 0;
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        int dataLength = length - offset - padding;
+
+        // The whole frame, padding included, counts against flow control
+        connectionUnacknowledged += length;
+        if (connectionUnacknowledged > receiveWindow) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window exceeded");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // Streams already answered and reset, or refused, may still have frames in flight
+            if (stream != null) {
+                writeReset(streamId, STREAM_CLOSED);
+            }
+            acknowledgeConnection();
+            return;
+        }
+
+        stream.unacknowledged += length;
+        if (stream.unacknowledged > receiveWindow) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window exceeded on stream " + streamId);
+        }
+        stream.receive(payload, offset, dataLength);
+        acknowledgeConnection();
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            endRequest(stream);
+        } else if (stream.tooLarge && !stream.dispatched) {
+            // Answered with 413 straight away; the rest of the body is dropped as it arrives
+            dispatch(stream);
+        } else if (stream.unacknowledged >= receiveWindow / 2) {
+            int increment = stream.unacknowledged;
+            stream.unacknowledged = 0;
+            writeWindowUpdate(streamId, increment);
+        }
+    }
+
+    // WINDOW_UPDATE for the connection once half its window has been used
+    private void acknowledgeConnection() throws IOException {
+        if (connectionUnacknowledged >= receiveWindow / 2) {
+            int increment = connectionUnacknowledged;
+            connectionUnacknowledged = 0;
+            writeWindowUpdate(0, increment);
+        }
+    }
+
+    private int padding(int length) throws Http2Exception {
+        int padding = length > 0 ? payload[0] & 0xFF : -1;
+        if (padding < 0 || padding >= length) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding");
+        }
+        return padding;
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int padding = (flags & FLAG_PADDED) != 0 ? padding(length) : 0;
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (offset + padding > length) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS frame too short");
+        }
+
+        headerBlockLength = 0;
+        headerBlockFlags = flags;
+        headerBlockStream = streamId;
+        appendHeaderBlock(offset, length - offset - padding);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void appendHeaderBlock(int offset, int length) throws Http2Exception {
+        if (headerBlockLength + length > ServerConfig.MAX_HEADER_BYTES) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Header block exceeds " + ServerConfig.MAX_HEADER_BYTES + " bytes");
+        }
+        if (headerBlockLength + length > headerBlock.length) {
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlockLength + length, headerBlock.length * 2));
+        }
+        System.arraycopy(payload, offset, headerBlock, headerBlockLength, length);
+        headerBlockLength += length;
+    }
+
+    // A complete header block: a new request, or the trailers of one whose body is arriving
+    private void onHeaderBlock() throws IOException {
+        int streamId = headerBlockStream;
+        boolean endStream = (headerBlockFlags & FLAG_END_STREAM) != 0;
+        headerBlockStream = 0;
+
+        List<Hpack.Header> fields;
+        try {
+            // Always decoded, even for streams that are then refused, to keep the table in step
+            fields = decoder.decode(headerBlock, 0, headerBlockLength);
+        } catch (Hpack.CompressionException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        Stream existing = streams.get(streamId);
+        if (existing != null && !existing.remoteClosed) {
+            // Trailers; they carry nothing the handlers use
+            if (!endStream) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Trailers without END_STREAM on stream " + streamId);
+            }
+            existing.remoteClosed = true;
+            endRequest(existing);
+            return;
+        }
+        if (streamId <= lastStreamId || (streamId & 1) == 0) {
+            throw new Http2Exception(existing != null ? STREAM_CLOSED : PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        boolean ignored;
+        lock.lock();
+        try {
+            lastStreamId = streamId;
+            ignored = streamId > goAwayStreamId;
+        } finally {
+            lock.unlock();
+        }
+        if (ignored) {
+            // Opened after the drain's GOAWAY; the client knows it was not processed
+            return;
+        }
+
+        if (streams.size() >= ServerConfig.H2_MAX_CONCURRENT_STREAMS) {
+            streamsRefused.increment();
+            writeReset(streamId, REFUSED_STREAM);
+            return;
+        }
+
+        HttpRequest request = new HttpRequest();
+        request.setRemoteAddress(socket.getRemoteSocketAddress());
+        try {
+            parser.parse(fields, request);
+        } catch (HttpRequestParser.ParseException e) {
+            ServerLog.debug("Malformed HTTP/2 request: ", e.getMessage());
+            writeReset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+
+        Stream stream = open(streamId, request);
+        if (endStream) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+            return;
+        }
+        if (request.getContentLength() > ServerConfig.MAX_BODY_BYTES) {
+            stream.tooLarge = true;
+            dispatch(stream);
+            return;
+        }
+        stream.sink = Main.openBodySink(request);
+        if (request.expectsContinue()) {
+            writeHeaders(stream, List.of(new Hpack.Header(":status", "100")), false, null, false);
+        }
+    }
+
+    private Stream open(int streamId, HttpRequest request) {
+        Stream stream;
+        lock.lock();
+        try {
+            stream = new Stream(streamId, request, peerInitialWindow);
+        } finally {
+            lock.unlock();
+        }
+        streams.put(streamId, stream);
+        streamsOpened.increment();
+        openStreams.increment();
+        return stream;
+    }
+
+    // The request body is complete; a body that does not match its declared length is malformed
+    private void endRequest(Stream stream) throws IOException {
+        HttpRequest request = stream.request;
+        if (!stream.tooLarge && request.hasContentLength() && stream.received != request.getContentLength()) {
+            ServerLog.debug("HTTP/2 request body does not match Content-Length on stream ", stream.id);
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        if (!stream.dispatched) {
+            dispatch(stream);
+        }
+    }
+
+    private void dispatch(Stream stream) throws IOException {
+        stream.dispatched = true;
+        stream.closeSink();
+        streamThreads.execute(() -> respond(stream));
+    }
+
+    // Runs on the stream's own thread
+    private void respond(Stream stream) {
+        HttpRequest request = stream.request;
+        HttpResponse response;
+        try {
+            response = stream.tooLarge ? HttpResponse.contentTooLarge() : handler.handle(request);
+        } catch (RuntimeException e) {
+            ServerLog.error("Error handling HTTP/2 request: ", e.getMessage());
+            response = HttpResponse.serverError();
+        } finally {
+            request.discardBodyFile();
+        }
+
+        try {
+            writeResponse(stream, response, "HEAD".equals(request.getMethod()));
+            // A response sent before the whole request arrived (413) cuts the upload short
+            if (!stream.remoteClosed) {
+                writeReset(stream.id, NO_ERROR);
+            }
+        } catch (IOException e) {
+            ServerLog.debug("HTTP/2 stream ended early: ", e.getMessage());
+        } finally {
+            response.release();
+            close(stream);
+        }
+    }
+
+    private void close(Stream stream) {
+        if (streams.remove(stream.id, stream)) {
+            openStreams.decrement();
+            if (draining && streams.isEmpty()) {
+                endDrained();
+            }
+        }
+    }
+
+    /** Starts draining every HTTP/2 connection; see {@link GracefulShutdown}. */
+    public static void drainAll() {
+        for (Http2Connection connection : active) {
+            connection.drain();
+        }
+    }
+
+    // Tells the client to open no more streams, and ends the connection once those it has open are done
+    private void drain() {
+        int lastStream;
+        lock.lock();
+        try {
+            if (draining || closed) {
+                return;
+            }
+            draining = true;
+            goAwayStreamId = lastStreamId;
+            lastStream = goAwayStreamId;
+        } finally {
+            lock.unlock();
+        }
+        goAway(lastStream, NO_ERROR, "shutting down");
+        if (streams.isEmpty()) {
+            endDrained();
+        }
+    }
+
+    // Shutting the input down ends the reader with end of stream; responses can still be written
+    private void endDrained() {
+        lock.lock();
+        try {
+            streamsClosed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            ServerLog.debug("Error ending drained HTTP/2 connection: ", e.getMessage());
+        }
+    }
+
+    // A stream taken just before the drain may still be answering when the reader ends; it
+    // gets until the shutdown timeout. Called with the lock held.
+    private void awaitStreams() {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(ServerConfig.SHUTDOWN_TIMEOUT_MILLIS);
+        try {
+            while (!streams.isEmpty() && remaining > 0) {
+                remaining = streamsClosed.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Ends a stream from this side: its writer gives up, and a body still arriving is dropped
+    private void resetStream(Stream stream, int errorCode) throws IOException {
+        stream.remoteClosed = true;
+        lock.lock();
+        try {
+            stream.reset = true;
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        writeReset(stream.id, errorCode);
+        if (!stream.dispatched) {
+            stream.abortBody();
+            close(stream);
+        }
+    }
+
+    private void writeResponse(Stream stream, HttpResponse response, boolean head) throws IOException {
+        List<Hpack.Header> headers = response.http2Headers();
+        if (head || response.isBodiless()) {
+            writeHeaders(stream, headers, true, null, false);
+            return;
+        }
+
+        HttpResponse.BodyStream body = response.bodyStream();
+        ByteBuffer data = nextData(body);
+        long remaining = response.getContentLength();
+        if (data == null) {
+            writeHeaders(stream, headers, true, null, false);
+            return;
+        }
+        // The first piece rides along with HEADERS in the same write if the window allows
+        int first = acquire(stream, data.remaining(), false);
+        ByteBuffer firstFrame = null;
+        if (first > 0) {
+            firstFrame = data.slice(data.position(), first);
+            data.position(data.position() + first);
+            remaining -= first;
+        }
+        boolean complete = firstFrame != null && remaining == 0 && !data.hasRemaining();
+        writeHeaders(stream, headers, false, firstFrame, complete);
+        if (complete) {
+            return;
+        }
+
+        while (data != null) {
+            while (data.hasRemaining()) {
+                int n = acquire(stream, data.remaining(), true);
+                ByteBuffer frame = data.slice(data.position(), n);
+                data.position(data.position() + n);
+                remaining -= n;
+                boolean last = remaining == 0 && !data.hasRemaining();
+                writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, frame);
+                if (last) {
+                    return;
+                }
+            }
+            data = nextData(body);
+        }
+        // Bodies of unknown length end with an empty frame
+        writeFrame(DATA, FLAG_END_STREAM, stream.id, ByteBuffer.allocate(0));
+    }
+
+    private static ByteBuffer nextData(HttpResponse.BodyStream body) throws IOException {
+        ByteBuffer data;
+        do {
+            data = body.next();
+        } while (data != null && !data.hasRemaining());
+        return data;
+    }
+
+    // Takes up to wanted bytes of send window for the stream, waiting for the peer to open
+    // it if requested; returns 0 only when not waiting
+    private int acquire(Stream stream, int wanted, boolean wait) throws IOException {
+        lock.lock();
+        try {
+            boolean stalled = false;
+            while (true) {
+                if (closed || stream.reset) {
+                    throw new IOException("stream reset");
+                }
+                int n = Math.min(Math.min(wanted, peerMaxFrameBytes), Math.min(connectionSendWindow, stream.sendWindow));
+                if (n > 0) {
+                    connectionSendWindow -= n;
+                    stream.sendWindow -= n;
+                    return n;
+                }
+                if (!wait) {
+                    return 0;
+                }
+                if (!stalled) {
+                    stalled = true;
+                    flowControlStalls.increment();
+                }
+                windowOpened.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onReset(int streamId, int length) throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+        }
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        // Nothing is sent back for a reset, but otherwise the stream ends as if reset here
+        streamsReset.increment();
+        stream.remoteClosed = true;
+        lock.lock();
+        try {
+            stream.reset = true;
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (!stream.dispatched) {
+            stream.abortBody();
+            close(stream);
+        }
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        applySettings(payload, length);
+        writeFrame(SETTINGS, FLAG_ACK, 0, ByteBuffer.allocate(0));
+    }
+
+    private void applySettings(byte[] settings, int length) throws IOException {
+        if (length % 6 != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid settings");
+        }
+        for (int i = 0; i < length; i += 6) {
+            int id = (settings[i] & 0xFF) << 8 | settings[i + 1] & 0xFF;
+            int value = readInt(settings, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE -> {
+                    writeLock.lock();
+                    try {
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value < 0) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    changeInitialWindow(value);
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < DEFAULT_MAX_FRAME_BYTES || value > MAX_FRAME_SIZE_LIMIT) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    lock.lock();
+                    try {
+                        peerMaxFrameBytes = value;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                default -> {
+                    // SETTINGS_MAX_CONCURRENT_STREAMS only limits pushes, which are never sent;
+                    // the rest are advisory or unknown
+                }
+            }
+        }
+    }
+
+    // A new initial window shifts every open stream's window by the difference
+    private void changeInitialWindow(int value) throws Http2Exception {
+        lock.lock();
+        try {
+            int delta = value - peerInitialWindow;
+            peerInitialWindow = value;
+            for (Stream stream : streams.values()) {
+                if ((long) stream.sendWindow + delta > MAX_WINDOW_BYTES) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Window overflow on stream " + stream.id);
+                }
+                stream.sendWindow += delta;
+            }
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onPing(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (length != 8) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            writeFrame(PING, FLAG_ACK, 0, ByteBuffer.wrap(Arrays.copyOf(payload, 8)));
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        int increment = readInt(payload, 0) & 0x7FFFFFFF;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            }
+            lock.lock();
+            try {
+                if ((long) connectionSendWindow + increment > MAX_WINDOW_BYTES) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+                connectionSendWindow += increment;
+                windowOpened.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+            }
+            return;
+        }
+        if (increment == 0) {
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        boolean overflow;
+        lock.lock();
+        try {
+            overflow = (long) stream.sendWindow + increment > MAX_WINDOW_BYTES;
+            if (!overflow) {
+                stream.sendWindow += increment;
+                windowOpened.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (overflow) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    // Encodes and writes a header block, split into CONTINUATION frames if it does not fit
+    // one frame, and optionally the first DATA frame of the body in the same write
+    private void writeHeaders(Stream stream, List<Hpack.Header> headers, boolean endStream, ByteBuffer data,
+                              boolean dataEndsStream) throws IOException {
+        writeLock.lock();
+        try {
+            byte[] block = encoder.encode(headers);
+            int maxFrame;
+            lock.lock();
+            try {
+                maxFrame = peerMaxFrameBytes;
+            } finally {
+                lock.unlock();
+            }
+            int frames = Math.max(1, (block.length + maxFrame - 1) / maxFrame);
+            ByteBuffer[] buffers = new ByteBuffer[frames * 2 + (data != null ? 2 : 0)];
+            for (int i = 0; i < frames; i++) {
+                int start = i * maxFrame;
+                int length = Math.min(maxFrame, block.length - start);
+                int flags = (i == frames - 1 ? FLAG_END_HEADERS : 0) | (i == 0 && endStream ? FLAG_END_STREAM : 0);
+                buffers[2 * i] = frameHeader(length, i == 0 ? HEADERS : CONTINUATION, flags, stream.id);
+                buffers[2 * i + 1] = ByteBuffer.wrap(block, start, length);
+            }
+            if (data != null) {
+                buffers[frames * 2] = frameHeader(data.remaining(), DATA, dataEndsStream ? FLAG_END_STREAM : 0, stream.id);
+                buffers[frames * 2 + 1] = data;
+            }
+            write(buffers);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeReset(int streamId, int errorCode) throws IOException {
+        writeFrame(RST_STREAM, 0, streamId, int32(errorCode));
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(WINDOW_UPDATE, 0, streamId, int32(increment));
+    }
+
+    private void goAway(int lastStream, int errorCode, String message) {
+        ByteBuffer goAway = ByteBuffer.allocate(8 + message.length());
+        goAway.putInt(lastStream).putInt(errorCode);
+        for (int i = 0; i < message.length(); i++) {
+            goAway.put((byte) message.charAt(i));
+        }
+        try {
+            writeFrame(GOAWAY, 0, 0, goAway.flip());
+        } catch (IOException e) {
+            ServerLog.debug("Error sending GOAWAY: ", e.getMessage());
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        writeLock.lock();
+        try {
+            write(frameHeader(payload.remaining(), type, flags, streamId), payload);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Called with the write lock held
+    private void write(ByteBuffer... buffers) throws IOException {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        for (long written = 0; written < total; ) {
+            written += out.write(buffers);
+        }
+        Metrics.httpBytesOut(total);
+    }
+
+    private static ByteBuffer frameHeader(int length, int type, int flags, int streamId) {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        header.put((byte) type).put((byte) flags).putInt(streamId);
+        return header.flip();
+    }
+
+    private static ByteBuffer int32(int value) {
+        return ByteBuffer.allocate(4).putInt(value).flip();
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 |
+               (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+
+    // A read timeout between frames only ends the connection once no stream is in progress;
+    // in the middle of a frame it always does
+    private void readFully(byte[] buffer, int length, boolean frameStart) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n;
+            try {
+                n = in.read(buffer, read, length - read);
+            } catch (SocketTimeoutException e) {
+                if (frameStart && read == 0 && !streams.isEmpty()) {
+                    continue;
+                }
+                throw e;
+            }
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        Metrics.httpBytesIn(length);
+    }
+
+    public static long getConnections() { return connections.sum(); }
+    public static long getStreamsOpened() { return streamsOpened.sum(); }
+    public static long getStreamsRefused() { return streamsRefused.sum(); }
+    public static long getStreamsReset() { return streamsReset.sum(); }
+    public static long getFlowControlStalls() { return flowControlStalls.sum(); }
+    public static long getOpenStreams() { return openStreams.sum(); }
+
+    /** A request and its response; the reader thread owns the receiving side. */
+    private static final class Stream {
+        final int id;
+        final HttpRequest request;
+        WritableByteChannel sink;
+        long received;
+        int unacknowledged;
+        boolean remoteClosed;
+        boolean dispatched;
+        // Set when the body exceeds the limit; the rest of it is dropped and 413 sent
+        boolean tooLarge;
+
+        // Guarded by the connection's lock
+        int sendWindow;
+        volatile boolean reset;
+
+        Stream(int id, HttpRequest request, int sendWindow) {
+            this.id = id;
+            this.request = request;
+            this.sendWindow = sendWindow;
+        }
+
+        void receive(byte[] data, int offset, int length) throws IOException {
+            received += length;
+            if (tooLarge || sink == null) {
+                return;
+            }
+            if (received > ServerConfig.MAX_BODY_BYTES) {
+                tooLarge = true;
+                abortBody();
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining()) {
+                sink.write(buffer);
+            }
+        }
+
+        void closeSink() throws IOException {
+            if (sink != null) {
+                WritableByteChannel closing = sink;
+                sink = null;
+                closing.close();
+            }
+        }
+
+        void abortBody() {
+            try {
+                closeSink();
+            } catch (IOException e) {
+                ServerLog.error("Error closing request body: ", e.getMessage());
+            }
+            request.discardBodyFile();
+        }
+    }
+
+    /** A connection error: the connection is ended with GOAWAY carrying the code. */
+    static class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        Http2Exception(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * Produces the response to a request matched by the {@link Router}. Path parameters of the
+ * matched route are available from {@link HttpRequest#getPathParameter}.
+ *
+ * Handlers run on the connection's thread, or on a pipelining worker for batched GETs, so
+ * they may be called concurrently and must not keep per-request state of their own.
+ */
+@FunctionalInterface
+public interface HttpHandler {
+    HttpResponse handle(HttpRequest request);
+}
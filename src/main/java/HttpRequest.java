@@ -0,0 +1,220 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A parsed HTTP request: the request line, the headers the server cares about and the body.
+ * Shared by the blocking and the NIO engine so both drive the same routes.
+ *
+ * Instances are reused for every request on a connection. {@link HttpRequestParser} copies the
+ * raw head into {@link #head} and records where the path and each known header value sit in it;
+ * Strings are only created when a handler asks for a value, and flags such as
+ * {@link #isConnectionClose} are answered straight from the bytes.
+ *
+ * Bodies are never held in memory; the engine streams them into a temp file (see
+ * {@link Main#openBodySink}) that the handler either moves into place or leaves to be deleted.
+ */
+public class HttpRequest {
+    // Known headers, indexed by id; see HttpRequestParser for their names
+    static final int USER_AGENT = 0;
+    static final int ACCEPT_ENCODING = 1;
+    static final int CONNECTION = 2;
+    static final int UPGRADE = 3;
+    static final int SEC_WEBSOCKET_KEY = 4;
+    static final int SEC_WEBSOCKET_VERSION = 5;
+    static final int IF_NONE_MATCH = 6;
+    static final int IF_MODIFIED_SINCE = 7;
+    static final int RANGE = 8;
+    static final int IF_RANGE = 9;
+    static final int EXPECT = 10;
+    static final int TRANSFER_ENCODING = 11;
+    static final int CONTENT_LENGTH = 12;
+    static final int SEC_WEBSOCKET_EXTENSIONS = 13;
+    static final int HTTP2_SETTINGS = 14;
+    static final int HEADER_COUNT = 15;
+
+    private static final byte[] CLOSE = "close".getBytes();
+    private static final byte[] UPGRADE_TOKEN = "upgrade".getBytes();
+    private static final byte[] WEBSOCKET = "websocket".getBytes();
+    private static final byte[] H2C = "h2c".getBytes();
+    private static final byte[] CHUNKED = "chunked".getBytes();
+    private static final byte[] CONTINUE = "100-continue".getBytes();
+    private static final byte[] VERSION_13 = "13".getBytes();
+    private static final String[] NO_PATH_PARAMETERS = new String[0];
+
+    byte[] head = new byte[1024];
+    String method;
+    int pathOffset;
+    int pathLength;
+    final int[] valueOffsets = new int[HEADER_COUNT];
+    final int[] valueLengths = new int[HEADER_COUNT];
+    long contentLength;
+
+    // Strings decoded on demand, cleared with the rest of the request
+    private String path;
+    private final String[] values = new String[HEADER_COUNT];
+    private Path bodyFile;
+    // Route the request was matched to, for its metrics
+    private Metrics.Route route;
+    // Set by the router: the matched route's parameter names and their values from the path
+    private String[] pathParameterNames = NO_PATH_PARAMETERS;
+    private String[] pathParameterValues = NO_PATH_PARAMETERS;
+
+    // Set once per connection and kept across requests
+    private SocketAddress remoteAddress;
+
+    public HttpRequest() {
+        reset();
+    }
+
+    /** Clears the previous request and makes room for a head of {@code length} bytes. */
+    byte[] prepare(int length) {
+        reset();
+        if (head.length < length) {
+            head = new byte[Math.max(length, head.length * 2)];
+        }
+        return head;
+    }
+
+    private void reset() {
+        method = null;
+        pathOffset = 0;
+        pathLength = 0;
+        path = null;
+        contentLength = 0;
+        bodyFile = null;
+        route = null;
+        pathParameterNames = NO_PATH_PARAMETERS;
+        for (int i = 0; i < HEADER_COUNT; i++) {
+            valueOffsets[i] = -1;
+            valueLengths[i] = 0;
+            values[i] = null;
+        }
+    }
+
+    public boolean isWebSocketUpgrade() {
+        return valueContains(CONNECTION, UPGRADE_TOKEN) &&
+               valueContains(UPGRADE, WEBSOCKET) &&
+               valueOffsets[SEC_WEBSOCKET_KEY] >= 0 &&
+               valueEquals(SEC_WEBSOCKET_VERSION, VERSION_13);
+    }
+
+    /**
+     * True for a request asking to switch to cleartext HTTP/2. Requests with a body are left
+     * on HTTP/1.1, since the body would have to be read before the switch.
+     */
+    public boolean isH2cUpgrade() {
+        return valueContains(CONNECTION, UPGRADE_TOKEN) &&
+               valueEquals(UPGRADE, H2C) &&
+               valueOffsets[HTTP2_SETTINGS] >= 0 &&
+               contentLength == 0 && !isChunked();
+    }
+
+    /** True for the request line of the HTTP/2 connection preface, {@code PRI * HTTP/2.0}. */
+    public boolean isHttp2Preface() {
+        return "PRI".equals(method) && pathLength == 1 && head[pathOffset] == '*';
+    }
+
+    public boolean isConnectionClose() {
+        return valueContains(CONNECTION, CLOSE);
+    }
+
+    public boolean expectsContinue() {
+        return valueEquals(EXPECT, CONTINUE);
+    }
+
+    public boolean isChunked() {
+        return valueContains(TRANSFER_ENCODING, CHUNKED);
+    }
+
+    public String getMethod() { return method; }
+
+    public String getPath() {
+        if (path == null) {
+            path = new String(head, pathOffset, pathLength);
+        }
+        return path;
+    }
+
+    public String getUserAgent() { return value(USER_AGENT); }
+    public String getAcceptEncoding() { return value(ACCEPT_ENCODING); }
+    public String getWebSocketKey() { return value(SEC_WEBSOCKET_KEY); }
+    public String getWebSocketExtensions() { return value(SEC_WEBSOCKET_EXTENSIONS); }
+    public String getIfNoneMatch() { return value(IF_NONE_MATCH); }
+    public String getIfModifiedSince() { return value(IF_MODIFIED_SINCE); }
+    public String getRange() { return value(RANGE); }
+    public String getIfRange() { return value(IF_RANGE); }
+    public String getHttp2Settings() { return value(HTTP2_SETTINGS); }
+    public boolean hasContentLength() { return valueOffsets[CONTENT_LENGTH] >= 0; }
+    public long getContentLength() { return contentLength; }
+    public Path getBodyFile() { return bodyFile; }
+    public SocketAddress getRemoteAddress() { return remoteAddress; }
+    void setRemoteAddress(SocketAddress remoteAddress) { this.remoteAddress = remoteAddress; }
+    public void setBodyFile(Path bodyFile) { this.bodyFile = bodyFile; }
+    public Metrics.Route getRoute() { return route; }
+    void setRoute(Metrics.Route route) { this.route = route; }
+
+    /** The value of a path parameter of the matched route, such as {@code name} in {@code /files/{name}}. */
+    public String getPathParameter(String name) {
+        for (int i = 0; i < pathParameterNames.length; i++) {
+            if (pathParameterNames[i].equals(name)) {
+                return pathParameterValues[i];
+            }
+        }
+        return null;
+    }
+
+    void setPathParameterNames(String[] names) { this.pathParameterNames = names; }
+
+    void setPathParameter(int index, String value) {
+        if (index >= pathParameterValues.length) {
+            pathParameterValues = Arrays.copyOf(pathParameterValues, Math.max(4, index + 1));
+        }
+        pathParameterValues[index] = value;
+    }
+
+    /** Deletes the spooled body unless the handler has already moved it away. */
+    public void discardBodyFile() {
+        if (bodyFile != null) {
+            try {
+                Files.deleteIfExists(bodyFile);
+            } catch (IOException e) {
+                ServerLog.error("Error deleting request body: ", e.getMessage());
+            }
+            bodyFile = null;
+        }
+    }
+
+    private String value(int header) {
+        if (valueOffsets[header] < 0) {
+            return null;
+        }
+        if (values[header] == null) {
+            values[header] = new String(head, valueOffsets[header], valueLengths[header]);
+        }
+        return values[header];
+    }
+
+    // Case-insensitive comparison against a lower-case token
+    private boolean valueEquals(int header, byte[] token) {
+        return valueOffsets[header] >= 0 && valueLengths[header] == token.length &&
+               HttpRequestParser.regionMatchesIgnoreCase(head, valueOffsets[header], token);
+    }
+
+    // Case-insensitive search for a lower-case token anywhere in the value
+    private boolean valueContains(int header, byte[] token) {
+        int offset = valueOffsets[header];
+        if (offset < 0) {
+            return false;
+        }
+        int last = offset + valueLengths[header] - token.length;
+        for (int i = offset; i <= last; i++) {
+            if (HttpRequestParser.regionMatchesIgnoreCase(head, i, token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses HTTP/1.1 request heads straight from a connection's read buffer into a reused
+ * {@link HttpRequest}. Methods and the headers the server acts on are recognised by
+ * case-insensitive byte comparison, so a request allocates nothing beyond what its
+ * handler later asks for.
+ *
+ * One parser belongs to one connection: it remembers how far it has already searched for
+ * the end of an incomplete head, so a head arriving in many small reads is scanned once.
+ */
+public class HttpRequestParser {
+    private static final byte[][] HEADER_NAMES = new byte[HttpRequest.HEADER_COUNT][];
+    private static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH" };
+    private static final byte[][] METHOD_BYTES = new byte[METHODS.length][];
+    private static final byte[] LOWER = new byte[256];
+    // Headers that only mean something to a single HTTP/1.1 connection; HTTP/2 forbids them
+    private static final Set<String> CONNECTION_HEADERS =
+            Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+    private static final byte[] HTTP2_VERSION = " HTTP/2\r\n".getBytes();
+
+    static {
+        HEADER_NAMES[HttpRequest.USER_AGENT] = "user-agent".getBytes();
+        HEADER_NAMES[HttpRequest.ACCEPT_ENCODING] = "accept-encoding".getBytes();
+        HEADER_NAMES[HttpRequest.CONNECTION] = "connection".getBytes();
+        HEADER_NAMES[HttpRequest.UPGRADE] = "upgrade".getBytes();
+        HEADER_NAMES[HttpRequest.SEC_WEBSOCKET_KEY] = "sec-websocket-key".getBytes();
+        HEADER_NAMES[HttpRequest.SEC_WEBSOCKET_VERSION] = "sec-websocket-version".getBytes();
+        HEADER_NAMES[HttpRequest.IF_NONE_MATCH] = "if-none-match".getBytes();
+        HEADER_NAMES[HttpRequest.IF_MODIFIED_SINCE] = "if-modified-since".getBytes();
+        HEADER_NAMES[HttpRequest.RANGE] = "range".getBytes();
+        HEADER_NAMES[HttpRequest.IF_RANGE] = "if-range".getBytes();
+        HEADER_NAMES[HttpRequest.EXPECT] = "expect".getBytes();
+        HEADER_NAMES[HttpRequest.TRANSFER_ENCODING] = "transfer-encoding".getBytes();
+        HEADER_NAMES[HttpRequest.CONTENT_LENGTH] = "content-length".getBytes();
+        HEADER_NAMES[HttpRequest.SEC_WEBSOCKET_EXTENSIONS] = "sec-websocket-extensions".getBytes();
+        HEADER_NAMES[HttpRequest.HTTP2_SETTINGS] = "http2-settings".getBytes();
+
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_BYTES[i] = METHODS[i].getBytes();
+        }
+        for (int i = 0; i < 256; i++) {
+            LOWER[i] = (byte) (i >= 'A' && i <= 'Z' ? i + ('a' - 'A') : i);
+        }
+    }
+
+    private final int maxHeadBytes;
+
+    // Bytes of the pending head, from the buffer position, already searched for its end
+    private int scanned;
+
+    public HttpRequestParser(int maxHeadBytes) {
+        this.maxHeadBytes = maxHeadBytes;
+    }
+
+    /**
+     * Parses one request head from {@code buffer}. On success the buffer is positioned just
+     * past the head, at the first body byte.
+     *
+     * @return false if the head is not complete yet; the buffer is left untouched
+     * @throws ParseException if the head is malformed or larger than the limit
+     */
+    public boolean parse(ByteBuffer buffer, HttpRequest request) throws ParseException {
+        // Blank lines between requests are ignored
+        while (scanned == 0 && buffer.hasRemaining() &&
+               (buffer.get(buffer.position()) == '\r' || buffer.get(buffer.position()) == '\n')) {
+            buffer.get();
+        }
+
+        int start = buffer.position();
+        int end = findHeadEnd(buffer, start);
+        if (end < 0) {
+            scanned = buffer.limit() - start;
+            if (scanned >= maxHeadBytes) {
+                scanned = 0;
+                throw new ParseException("Request head exceeds " + maxHeadBytes + " bytes");
+            }
+            return false;
+        }
+        scanned = 0;
+
+        int length = end - start;
+        if (length > maxHeadBytes) {
+            throw new ParseException("Request head exceeds " + maxHeadBytes + " bytes");
+        }
+        byte[] head = request.prepare(length);
+        buffer.get(head, 0, length);
+
+        int lineEnd = parseRequestLine(head, length, request);
+        while (lineEnd < length) {
+            lineEnd = parseHeaderLine(head, lineEnd, length, request);
+        }
+        return true;
+    }
+
+    /**
+     * Fills {@code request} from the header fields of an HTTP/2 request. The fields are laid
+     * out as an HTTP/1.1 head and parsed as one, so requests of both protocols look the same
+     * to handlers and the same size limit applies.
+     *
+     * @throws ParseException if the request is malformed: pseudo-headers missing, repeated,
+     *         unknown or after regular fields, upper-case names, connection-specific headers,
+     *         or line breaks in a value
+     */
+    public void parse(List<Hpack.Header> fields, HttpRequest request) throws ParseException {
+        String method = null;
+        String scheme = null;
+        String path = null;
+        boolean regularSeen = false;
+        int size = HTTP2_VERSION.length + 2;
+        for (Hpack.Header field : fields) {
+            String name = field.name();
+            String value = field.value();
+            if (!isValidValue(value)) {
+                throw new ParseException("Invalid value for " + name);
+            }
+            if (name.startsWith(":")) {
+                if (regularSeen) {
+                    throw new ParseException("Pseudo-header after regular header: " + name);
+                }
+                switch (name) {
+                    case ":method" -> method = pseudoHeader(method, name, value);
+                    case ":scheme" -> scheme = pseudoHeader(scheme, name, value);
+                    case ":path" -> path = pseudoHeader(path, name, value);
+                    case ":authority" -> { }
+                    default -> throw new ParseException("Unknown pseudo-header: " + name);
+                }
+                continue;
+            }
+            regularSeen = true;
+            if (!isValidName(name) || CONNECTION_HEADERS.contains(name) ||
+                ("te".equals(name) && !"trailers".equals(value))) {
+                throw new ParseException("Header not allowed in HTTP/2: " + name);
+            }
+            size += name.length() + 2 + value.length() + 2;
+        }
+        if (method == null || scheme == null || path == null || path.isEmpty() || path.indexOf(' ') >= 0) {
+            throw new ParseException("Missing or invalid pseudo-header");
+        }
+        size += method.length() + 1 + path.length();
+        if (size > maxHeadBytes) {
+            throw new ParseException("Request head exceeds " + maxHeadBytes + " bytes");
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(size);
+        putLatin1(head, method);
+        head.put((byte) ' ');
+        putLatin1(head, path);
+        head.put(HTTP2_VERSION);
+        for (Hpack.Header field : fields) {
+            if (!field.name().startsWith(":")) {
+                putLatin1(head, field.name());
+                head.put((byte) ':').put((byte) ' ');
+                putLatin1(head, field.value());
+                head.put((byte) '\r').put((byte) '\n');
+            }
+        }
+        head.put((byte) '\r').put((byte) '\n').flip();
+        scanned = 0;
+        parse(head, request);
+    }
+
+    private static String pseudoHeader(String previous, String name, String value) throws ParseException {
+        if (previous != null) {
+            throw new ParseException("Repeated pseudo-header: " + name);
+        }
+        return value;
+    }
+
+    // Lower-case token characters only
+    private static boolean isValidName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7F || c == ':' || (c >= 'A' && c <= 'Z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putLatin1(ByteBuffer out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            out.put((byte) value.charAt(i));
+        }
+    }
+
+    // Returns the absolute index just past the blank line ending the head, or -1
+    private int findHeadEnd(ByteBuffer buffer, int start) {
+        int limit = buffer.limit();
+        // Back up so a terminator split across reads is still seen
+        for (int i = Math.max(start, start + scanned - 3); i < limit; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            if (i + 1 < limit && buffer.get(i + 1) == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < limit && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    // Parses "METHOD SP target [SP version]" and returns the index of the next line
+    private static int parseRequestLine(byte[] head, int length, HttpRequest request) throws ParseException {
+        int eol = indexOf(head, 0, length, (byte) '\n');
+        int lineEnd = trimLineEnd(head, 0, eol);
+
+        int methodEnd = indexOf(head, 0, lineEnd, (byte) ' ');
+        if (methodEnd <= 0) {
+            throw new ParseException("Malformed request line");
+        }
+        int pathStart = methodEnd + 1;
+        int pathEnd = indexOf(head, pathStart, lineEnd, (byte) ' ');
+        if (pathEnd < 0) {
+            pathEnd = lineEnd;
+        }
+        if (pathEnd == pathStart) {
+            throw new ParseException("Malformed request line");
+        }
+
+        request.method = method(head, methodEnd);
+        request.pathOffset = pathStart;
+        request.pathLength = pathEnd - pathStart;
+        return eol + 1;
+    }
+
+    private static String method(byte[] head, int length) {
+        for (int i = 0; i < METHOD_BYTES.length; i++) {
+            byte[] candidate = METHOD_BYTES[i];
+            if (candidate.length == length && regionEquals(head, 0, candidate)) {
+                return METHODS[i];
+            }
+        }
+        return new String(head, 0, length);
+    }
+
+    // Records the value of a known header and returns the index of the next line
+    private static int parseHeaderLine(byte[] head, int start, int length, HttpRequest request) throws ParseException {
+        int eol = indexOf(head, start, length, (byte) '\n');
+        int lineEnd = trimLineEnd(head, start, eol);
+        if (lineEnd == start) {
+            return length; // blank line ends the head
+        }
+
+        int colon = indexOf(head, start, lineEnd, (byte) ':');
+        if (colon < 0) {
+            return eol + 1; // not a header; ignored
+        }
+        int header = knownHeader(head, start, colon - start);
+        if (header < 0) {
+            return eol + 1;
+        }
+
+        int valueStart = colon + 1;
+        int valueEnd = lineEnd;
+        while (valueStart < valueEnd && (head[valueStart] == ' ' || head[valueStart] == '\t')) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && (head[valueEnd - 1] == ' ' || head[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+        request.valueOffsets[header] = valueStart;
+        request.valueLengths[header] = valueEnd - valueStart;
+
+        if (header == HttpRequest.CONTENT_LENGTH) {
+            request.contentLength = parseContentLength(head, valueStart, valueEnd);
+        }
+        return eol + 1;
+    }
+
+    private static int knownHeader(byte[] head, int start, int length) {
+        for (int i = 0; i < HEADER_NAMES.length; i++) {
+            byte[] name = HEADER_NAMES[i];
+            if (name.length == length && regionMatchesIgnoreCase(head, start, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseContentLength(byte[] head, int start, int end) throws ParseException {
+        if (start == end || end - start > 18) {
+            throw new ParseException("Invalid Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = head[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ParseException("Invalid Content-Length");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /** True if {@code bytes} at {@code offset} equals the lower-case {@code token}, ignoring ASCII case. */
+    static boolean regionMatchesIgnoreCase(byte[] bytes, int offset, byte[] token) {
+        if (offset + token.length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (LOWER[bytes[offset + i] & 0xFF] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(byte[] bytes, int offset, byte[] token) {
+        for (int i = 0; i < token.length; i++) {
+            if (bytes[offset + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Index of the end of a line's content, dropping the CR of a CRLF ending
+    private static int trimLineEnd(byte[] bytes, int start, int eol) {
+        return eol > start && bytes[eol - 1] == '\r' ? eol - 1 : eol;
+    }
+
+    /** Thrown for a request head that cannot be parsed; the connection is answered with 400. */
+    public static class ParseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ParseException(String message) {
+            super(message);
+        }
+    }
+}
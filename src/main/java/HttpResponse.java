@@ -0,0 +1,674 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An HTTP/1.1 response produced by a route handler. The engine that owns the
+ * connection decides how to put it on the wire.
+ *
+ * The body is either an in-memory byte array or a sequence of segments, each being
+ * bytes or a region of one open file (a multipart/byteranges body mixes both). File
+ * regions are sent with {@link FileChannel#transferTo}, which the JDK maps to
+ * sendfile when the target is a socket channel, so the file never passes
+ * through the Java heap.
+ *
+ * A body whose length is not known up front, such as compressed output produced while it is
+ * sent, is a {@link BodyStream} and goes out with chunked transfer coding.
+ *
+ * A response can also be built from buffers encoded ahead of time (see {@link FileCache});
+ * only the headers added per request are encoded when it is sent.
+ *
+ * The answer to a HEAD request is the GET response with {@link #omitBody} applied: its head,
+ * Content-Length included, is sent unchanged and the body is not.
+ *
+ * HTTP/2 connections take the same response apart instead: {@link #http2Headers} for the
+ * HEADERS frame and {@link #bodyStream} for the DATA frames.
+ *
+ * Status lines and common header names are encoded once into byte constants. Heads are
+ * encoded straight into a buffer owned by the connection and reused for every response.
+ * {@link #writeAll} writes a connection's queued responses in order and puts consecutive
+ * in-memory responses, heads and bodies together, into a single gathering write, so a
+ * burst of pipelined requests is answered with one system call.
+ */
+public class HttpResponse {
+    private static final byte[] EMPTY = new byte[0];
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    /** Size of the per-connection buffer heads are encoded into; several pipelined heads share it. */
+    public static final int HEAD_BUFFER_BYTES = 4096;
+
+    // Most responses combined into one gathering write
+    private static final int MAX_GATHERED_RESPONSES = 64;
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] CONTENT_LENGTH = headerName("Content-Length");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+    // Bytes of a file region read per DATA frame's worth when the body goes out over HTTP/2
+    private static final int FILE_READ_BYTES = 16 * 1024;
+    // Headers that describe a single HTTP/1.1 connection; HTTP/2 forbids them
+    private static final Set<String> CONNECTION_HEADERS =
+            Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    // Pre-encoded header names, including the ": " separator
+    public static final byte[] CONTENT_TYPE = headerName("Content-Type");
+    public static final byte[] CONTENT_ENCODING = headerName("Content-Encoding");
+    public static final byte[] CONTENT_RANGE = headerName("Content-Range");
+    public static final byte[] CONNECTION = headerName("Connection");
+    public static final byte[] ETAG = headerName("ETag");
+    public static final byte[] LAST_MODIFIED = headerName("Last-Modified");
+    public static final byte[] ACCEPT_RANGES = headerName("Accept-Ranges");
+    public static final byte[] RETRY_AFTER = headerName("Retry-After");
+    public static final byte[] VARY = headerName("Vary");
+    public static final byte[] ALLOW = headerName("Allow");
+
+    private static final byte[] STATUS_100 = statusLine("100 Continue");
+    private static final byte[] STATUS_200 = statusLine("200 OK");
+    private static final byte[] STATUS_201 = statusLine("201 Created");
+    private static final byte[] STATUS_206 = statusLine("206 Partial Content");
+    private static final byte[] STATUS_304 = statusLine("304 Not Modified");
+    private static final byte[] STATUS_400 = statusLine("400 Bad Request");
+    private static final byte[] STATUS_404 = statusLine("404 Not Found");
+    private static final byte[] STATUS_405 = statusLine("405 Method Not Allowed");
+    private static final byte[] STATUS_413 = statusLine("413 Content Too Large");
+    private static final byte[] STATUS_416 = statusLine("416 Range Not Satisfiable");
+    private static final byte[] STATUS_500 = statusLine("500 Internal Server Error");
+    private static final byte[] STATUS_503 = statusLine("503 Service Unavailable");
+
+    private final String status;
+    private final byte[] statusLine;  // null for pre-encoded responses
+    private byte[][] headerNames = new byte[4][];
+    private String[] headerValues = new String[4];
+    private int headerCount;
+    private byte[] body = EMPTY;
+    private FileChannel fileBody;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long segmentBytes;
+    private boolean chunked;
+    // Length the head announces once the body has been omitted for HEAD, -1 if chunked
+    private long omittedLength = -1;
+    private boolean bodyOmitted;
+
+    // Status line and fixed headers (without the closing blank line) plus body, encoded in advance
+    private ByteBuffer preEncodedHead;
+    private ByteBuffer preEncodedBody;
+
+    // Head and in-memory body still to be written; created on the first write
+    private ByteBuffer[] pending;
+
+    public HttpResponse(String status) {
+        this(status, statusLine(status));
+    }
+
+    private HttpResponse(String status, byte[] statusLine) {
+        this.status = status;
+        this.statusLine = statusLine;
+    }
+
+    public static HttpResponse expectContinue() { return new HttpResponse("100 Continue", STATUS_100); }
+    public static HttpResponse ok() { return new HttpResponse("200 OK", STATUS_200); }
+    public static HttpResponse created() { return new HttpResponse("201 Created", STATUS_201); }
+    public static HttpResponse partialContent() { return new HttpResponse("206 Partial Content", STATUS_206); }
+    public static HttpResponse notModified() { return new HttpResponse("304 Not Modified", STATUS_304); }
+    public static HttpResponse badRequest() { return new HttpResponse("400 Bad Request", STATUS_400); }
+    public static HttpResponse notFound() { return new HttpResponse("404 Not Found", STATUS_404); }
+    public static HttpResponse methodNotAllowed() { return new HttpResponse("405 Method Not Allowed", STATUS_405); }
+    public static HttpResponse contentTooLarge() { return new HttpResponse("413 Content Too Large", STATUS_413); }
+    public static HttpResponse rangeNotSatisfiable() { return new HttpResponse("416 Range Not Satisfiable", STATUS_416); }
+    public static HttpResponse serverError() { return new HttpResponse("500 Internal Server Error", STATUS_500); }
+    public static HttpResponse serviceUnavailable() { return new HttpResponse("503 Service Unavailable", STATUS_503); }
+
+    private static byte[] statusLine(String status) {
+        return ("HTTP/1.1 " + status + "\r\n").getBytes();
+    }
+
+    private static byte[] headerName(String name) {
+        return (name + ": ").getBytes();
+    }
+
+    /**
+     * A response whose status line, fixed headers and Content-Length are already encoded in
+     * {@code head}. The buffers are shared and only ever read through duplicates.
+     */
+    public static HttpResponse preEncoded(String status, ByteBuffer head, ByteBuffer body) {
+        HttpResponse response = new HttpResponse(status, null);
+        response.preEncodedHead = head;
+        response.preEncodedBody = body;
+        return response;
+    }
+
+    /** Adds a header whose name is one of the pre-encoded constants of this class. */
+    public HttpResponse header(byte[] name, String value) {
+        if (headerCount == headerNames.length) {
+            headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+            headerValues = Arrays.copyOf(headerValues, headerCount * 2);
+        }
+        headerNames[headerCount] = name;
+        headerValues[headerCount] = value;
+        headerCount++;
+        return this;
+    }
+
+    public HttpResponse header(String name, String value) {
+        return header(headerName(name), value);
+    }
+
+    public HttpResponse body(byte[] body) {
+        this.body = body;
+        return this;
+    }
+
+    public HttpResponse body(String body) {
+        return body(body.getBytes());
+    }
+
+    /** Uses {@code count} bytes of {@code file} from {@code position} as the body. The response closes the file. */
+    public HttpResponse body(FileChannel file, long position, long count) {
+        return fileBody(file).appendFileRegion(position, count);
+    }
+
+    /** Sets the file that {@link #appendFileRegion} reads from. The response closes the file. */
+    public HttpResponse fileBody(FileChannel file) {
+        this.fileBody = file;
+        return this;
+    }
+
+    /** Uses {@code stream} as the body, sent chunked. The response closes the stream. */
+    public HttpResponse body(BodyStream stream) {
+        body = EMPTY;
+        segments.add(new Segment(stream));
+        chunked = true;
+        return this;
+    }
+
+    public HttpResponse appendBody(byte[] bytes) {
+        segments.add(new Segment(ByteBuffer.wrap(bytes), 0, 0));
+        segmentBytes += bytes.length;
+        return this;
+    }
+
+    public HttpResponse appendFileRegion(long position, long count) {
+        segments.add(new Segment(null, position, count));
+        segmentBytes += count;
+        return this;
+    }
+
+    /**
+     * Drops the body, for the answer to a HEAD request. The head stays as it would have been
+     * for GET, including Content-Length, and the file or stream behind the body is released.
+     */
+    public HttpResponse omitBody() {
+        if (bodyOmitted) {
+            return this;
+        }
+        omittedLength = getContentLength();
+        release();
+        fileBody = null;
+        segments.clear();
+        segmentBytes = 0;
+        body = EMPTY;
+        if (preEncodedBody != null) {
+            preEncodedBody = EMPTY_BUFFER;
+        }
+        bodyOmitted = true;
+        return this;
+    }
+
+    public String getStatus() { return status; }
+
+    /** The status code, such as 200. */
+    public int getStatusCode() {
+        return Integer.parseInt(status, 0, 3, 10);
+    }
+
+    /** The body length, or -1 when the body is streamed. */
+    public long getContentLength() {
+        if (bodyOmitted) {
+            return omittedLength;
+        }
+        if (chunked) {
+            return -1;
+        }
+        if (preEncodedBody != null) {
+            return preEncodedBody.remaining();
+        }
+        return segments.isEmpty() ? body.length : segmentBytes;
+    }
+
+    /** Returns the value of a header added with {@link #header}, or null. */
+    public String getHeader(byte[] name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (Arrays.equals(headerNames[i], name)) {
+                return headerValues[i];
+            }
+        }
+        return null;
+    }
+
+    public boolean isPreEncoded() {
+        return preEncodedHead != null;
+    }
+
+    /** The body, if it is a single in-memory byte array; otherwise null. */
+    public byte[] getBody() {
+        return preEncodedHead == null && segments.isEmpty() ? body : null;
+    }
+
+    /**
+     * Detaches the file of a body that is one whole-file region starting at offset zero and
+     * returns it, open and owned by the caller, leaving the response without a body; returns
+     * null for any other body.
+     */
+    public FileChannel takeFileBody() throws IOException {
+        Segment only = segments.peek();
+        if (fileBody == null || segments.size() != 1 || only.bytes != null || only.stream != null ||
+            only.position != 0 || only.remaining != fileBody.size()) {
+            return null;
+        }
+        FileChannel file = fileBody;
+        fileBody = null;
+        segments.clear();
+        segmentBytes = 0;
+        return file;
+    }
+
+    // Interim responses have no body, and a 304 describes the representation it stands in
+    // for, so neither carries a length of its own
+    boolean isBodiless() {
+        return status.startsWith("1") || status.startsWith("304");
+    }
+
+    /**
+     * The head as HTTP/2 header fields: {@code :status}, then the headers with lower-case
+     * names, then {@code content-length} when the length is known. Connection-specific
+     * headers are left out.
+     */
+    public List<Hpack.Header> http2Headers() {
+        List<Hpack.Header> fields = new ArrayList<>(headerCount + 4);
+        fields.add(new Hpack.Header(":status", status.substring(0, 3)));
+        if (preEncodedHead != null) {
+            // Skips the status line; every other line is "Name: value"
+            String head = StandardCharsets.ISO_8859_1.decode(preEncodedHead.duplicate()).toString();
+            for (int start = head.indexOf('\n') + 1, end; start < head.length(); start = end + 2) {
+                end = head.indexOf("\r\n", start);
+                if (end < 0) {
+                    end = head.length();
+                }
+                int colon = head.indexOf(':', start);
+                if (colon > start && colon < end) {
+                    addHttp2Header(fields, head.substring(start, colon), head.substring(colon + 1, end).trim());
+                }
+            }
+        }
+        for (int i = 0; i < headerCount; i++) {
+            // The encoded names end with ": "
+            addHttp2Header(fields, new String(headerNames[i], 0, headerNames[i].length - 2, StandardCharsets.ISO_8859_1),
+                    headerValues[i]);
+        }
+        if (!chunked && preEncodedHead == null && !isBodiless()) {
+            fields.add(new Hpack.Header("content-length", Long.toString(getContentLength())));
+        }
+        return fields;
+    }
+
+    private static void addHttp2Header(List<Hpack.Header> fields, String name, String value) {
+        String lowerCase = name.toLowerCase(Locale.ROOT);
+        if (!CONNECTION_HEADERS.contains(lowerCase)) {
+            fields.add(new Hpack.Header(lowerCase, value));
+        }
+    }
+
+    /**
+     * The body as a sequence of buffers, whatever form it takes, for HTTP/2, which frames
+     * the body itself. File regions are read in pieces rather than sent with transferTo.
+     * Closing the stream releases the response.
+     */
+    public BodyStream bodyStream() {
+        return new Buffers();
+    }
+
+    /**
+     * Writes as much of the queued responses, in order, as {@code channel} accepts, removing
+     * each one once it has been sent. On a blocking channel this writes everything; on a
+     * non-blocking one it may stop early and should be called again once the channel is
+     * writable.
+     *
+     * Heads are encoded one after another into {@code headBuffer}, which the connection
+     * reuses; it is cleared here once the queue is empty and must not be touched otherwise.
+     *
+     * @return true once the queue is empty
+     */
+    public static boolean writeAll(ArrayDeque<HttpResponse> queue, WritableByteChannel channel,
+                                   ByteBuffer headBuffer) throws IOException {
+        while (!queue.isEmpty()) {
+            ByteBuffer[] gathered = channel instanceof GatheringByteChannel ? gather(queue, headBuffer) : null;
+            if (gathered != null) {
+                if (write(channel, gathered) == 0 && hasRemaining(gathered)) {
+                    return false;
+                }
+                HttpResponse response;
+                while ((response = queue.peek()) != null && response.isInMemory() &&
+                       response.pending != null && !hasRemaining(response.pending)) {
+                    queue.poll().release();
+                }
+                continue;
+            }
+
+            if (!queue.peek().writeTo(channel, headBuffer)) {
+                return false;
+            }
+            queue.poll();
+        }
+        headBuffer.clear();
+        return true;
+    }
+
+    // Encodes the leading run of in-memory responses and returns their buffers, or null if
+    // the run is shorter than two and a plain write will do
+    private static ByteBuffer[] gather(ArrayDeque<HttpResponse> queue, ByteBuffer headBuffer) {
+        int count = 0;
+        int buffers = 0;
+        for (HttpResponse response : queue) {
+            if (!response.isInMemory() || count == MAX_GATHERED_RESPONSES) {
+                break;
+            }
+            count++;
+            buffers += response.pending != null ? response.pending.length : (response.preEncodedHead != null ? 3 : 2);
+        }
+        if (count < 2) {
+            return null;
+        }
+
+        ByteBuffer[] gathered = new ByteBuffer[buffers];
+        int index = 0;
+        Iterator<HttpResponse> responses = queue.iterator();
+        for (int i = 0; i < count; i++) {
+            HttpResponse response = responses.next();
+            if (response.pending == null) {
+                response.pending = response.encode(headBuffer);
+            }
+            for (ByteBuffer buffer : response.pending) {
+                gathered[index++] = buffer;
+            }
+        }
+        return gathered;
+    }
+
+    private boolean isInMemory() {
+        return fileBody == null && segments.isEmpty();
+    }
+
+    // Writes the rest of this response alone, including any file segments
+    private boolean writeTo(WritableByteChannel channel, ByteBuffer headBuffer) throws IOException {
+        if (pending == null) {
+            pending = encode(headBuffer);
+        }
+
+        while (hasRemaining(pending)) {
+            if (write(channel, pending) == 0) {
+                return false;
+            }
+        }
+
+        Segment segment;
+        while ((segment = segments.peek()) != null) {
+            if (!segment.writeTo(channel, fileBody)) {
+                return false;
+            }
+            segments.poll();
+        }
+
+        release();
+        return true;
+    }
+
+    private ByteBuffer[] encode(ByteBuffer headBuffer) {
+        ByteBuffer head = encodeHead(headBuffer);
+        if (preEncodedHead != null) {
+            return new ByteBuffer[] { preEncodedHead.duplicate(), head, preEncodedBody.duplicate() };
+        }
+        return new ByteBuffer[] { head, ByteBuffer.wrap(body) };
+    }
+
+    // Encodes the status line (unless pre-encoded), headers, Content-Length and the closing
+    // blank line after whatever heads headBuffer already holds, falling back to a fresh
+    // buffer only when it has no room left
+    private ByteBuffer encodeHead(ByteBuffer headBuffer) {
+        int size = (statusLine != null ? statusLine.length : 0) + CONTENT_LENGTH.length + 20 + 2 * CRLF.length;
+        for (int i = 0; i < headerCount; i++) {
+            size += headerNames[i].length + headerValues[i].length() + CRLF.length;
+        }
+        ByteBuffer out = size <= headBuffer.remaining() ? headBuffer : ByteBuffer.allocate(size);
+        int start = out.position();
+
+        if (statusLine != null) {
+            out.put(statusLine);
+        }
+        for (int i = 0; i < headerCount; i++) {
+            out.put(headerNames[i]);
+            putAscii(out, headerValues[i]);
+            out.put(CRLF);
+        }
+        if (chunked) {
+            out.put(TRANSFER_ENCODING_CHUNKED);
+        } else if (preEncodedHead == null && !isBodiless()) {
+            out.put(CONTENT_LENGTH);
+            putDecimal(out, getContentLength());
+            out.put(CRLF);
+        }
+        out.put(CRLF);
+        return out.slice(start, out.position() - start);
+    }
+
+    // Header values are ASCII; anything else is replaced rather than multi-byte encoded
+    private static void putAscii(ByteBuffer out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            out.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+
+    private static void putDecimal(ByteBuffer out, long value) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        int end = out.position() + digits;
+        for (int i = end - 1; i >= out.position(); i--) {
+            out.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        out.position(end);
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long write(WritableByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        long written = 0;
+        if (channel instanceof GatheringByteChannel gathering) {
+            written = gathering.write(buffers);
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    written = channel.write(buffer);
+                    break;
+                }
+            }
+        }
+        Metrics.httpBytesOut(written);
+        return written;
+    }
+
+    /** Produces a body while it is being sent, for bodies whose length is not known up front. */
+    public interface BodyStream extends Closeable {
+        /**
+         * Returns the next piece of the body, or null once the body is complete. The buffer is
+         * only read until the following call. {@link #close} may be called more than once.
+         */
+        ByteBuffer next() throws IOException;
+    }
+
+    // Hands out the body one buffer at a time; see bodyStream
+    private final class Buffers implements BodyStream {
+        private boolean started;
+        private ByteBuffer fileBuffer;
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            if (preEncodedHead != null || segments.isEmpty()) {
+                if (started) {
+                    return null;
+                }
+                started = true;
+                return preEncodedHead != null ? preEncodedBody.duplicate() : ByteBuffer.wrap(body);
+            }
+
+            Segment segment;
+            while ((segment = segments.peek()) != null) {
+                if (segment.stream != null) {
+                    ByteBuffer data = segment.stream.next();
+                    if (data != null) {
+                        return data;
+                    }
+                    segment.stream.close();
+                } else if (segment.bytes != null) {
+                    segments.poll();
+                    return segment.bytes;
+                } else if (segment.remaining > 0) {
+                    if (fileBuffer == null) {
+                        fileBuffer = ByteBuffer.allocate((int) Math.min(FILE_READ_BYTES, segment.remaining));
+                    }
+                    fileBuffer.clear().limit((int) Math.min(fileBuffer.capacity(), segment.remaining));
+                    int read = fileBody.read(fileBuffer, segment.position);
+                    if (read < 0) {
+                        throw new IOException("File truncated while sending response");
+                    }
+                    segment.position += read;
+                    segment.remaining -= read;
+                    return fileBuffer.flip();
+                }
+                segments.poll();
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    private static final class Segment {
+        private final ByteBuffer bytes;
+        private final BodyStream stream;
+        private long position;
+        private long remaining;
+
+        // Chunk of a streamed body being written: size line, data and CRLF
+        private ByteBuffer[] chunk;
+        private boolean ended;
+
+        Segment(ByteBuffer bytes, long position, long remaining) {
+            this.bytes = bytes;
+            this.stream = null;
+            this.position = position;
+            this.remaining = remaining;
+        }
+
+        Segment(BodyStream stream) {
+            this.bytes = null;
+            this.stream = stream;
+        }
+
+        boolean writeTo(WritableByteChannel channel, FileChannel file) throws IOException {
+            if (stream != null) {
+                return writeChunks(channel);
+            }
+            if (bytes != null) {
+                while (bytes.hasRemaining()) {
+                    int written = channel.write(bytes);
+                    if (written == 0) {
+                        return false;
+                    }
+                    Metrics.httpBytesOut(written);
+                }
+                return true;
+            }
+
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, channel);
+                if (sent == 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("File truncated while sending response");
+                    }
+                    return false;
+                }
+                Metrics.httpBytesOut(sent);
+                position += sent;
+                remaining -= sent;
+            }
+            return true;
+        }
+
+        private boolean writeChunks(WritableByteChannel channel) throws IOException {
+            while (true) {
+                if (chunk != null && hasRemaining(chunk)) {
+                    if (write(channel, chunk) == 0) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (ended) {
+                    return true;
+                }
+                ByteBuffer data = stream.next();
+                if (data == null) {
+                    stream.close();
+                    chunk = new ByteBuffer[] { ByteBuffer.wrap(LAST_CHUNK) };
+                    ended = true;
+                } else if (data.hasRemaining()) {
+                    // An empty chunk would end the body, so only non-empty ones are sent
+                    byte[] size = (Integer.toHexString(data.remaining()) + "\r\n").getBytes();
+                    chunk = new ByteBuffer[] { ByteBuffer.wrap(size), data, ByteBuffer.wrap(CRLF) };
+                }
+            }
+        }
+    }
+
+    /** Closes the file body or body stream, if any. Safe to call more than once. */
+    public void release() {
+        if (fileBody != null) {
+            try {
+                fileBody.close();
+            } catch (IOException e) {
+                ServerLog.error("Error closing file: ", e.getMessage());
+            }
+        }
+        for (Segment segment : segments) {
+            if (segment.stream != null) {
+                try {
+                    segment.stream.close();
+                } catch (IOException e) {
+                    ServerLog.error("Error closing body stream: ", e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram in the style of HdrHistogram: buckets are exact below 32 ns and
+ * then split every power of two into 16, so any recorded value is reported to within
+ * about 6%. Recording finds the bucket with a few bit operations and increments one slot
+ * of a preallocated array; it never allocates or locks.
+ *
+ * Values are nanoseconds, up to about 39 hours; larger ones land in the last bucket.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 32;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Highest power of two tracked: 2^47 ns
+    private static final int MAX_EXPONENT = 47;
+    private static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        // The top five bits of the value pick the sub-bucket within its power of two
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (exponent - 5) * SUB_BUCKETS + subBucket;
+    }
+
+    // Largest value that falls into the bucket
+    private static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 5;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() { return count.sum(); }
+    public long getSumNanos() { return sum.sum(); }
+
+    /**
+     * Values at the given quantiles (each between 0 and 1, in ascending order), read from one
+     * pass over the buckets. Empty histograms report 0.
+     */
+    public long[] quantiles(double... quantiles) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        long[] values = new long[quantiles.length];
+        int q = 0;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && q < quantiles.length && total > 0; i++) {
+            seen += snapshot[i];
+            while (q < quantiles.length && seen >= Math.max(1, (long) Math.ceil(quantiles[q] * total))) {
+                values[q++] = highestValueOf(i);
+            }
+        }
+        return values;
+    }
+}
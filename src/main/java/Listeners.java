@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The server's listening sockets, shared by both engines.
+ *
+ * With {@code server.reusePort} on and a platform that supports {@code SO_REUSEPORT}, a port
+ * gets one listening socket per acceptor thread, all bound to the same address; the kernel spreads new connections across
+ * them, so accepts neither queue behind one thread nor contend for one socket. The option also
+ * lets a new server process bind the port while an old one is still draining. Without it, the
+ * acceptors share a single socket.
+ */
+public final class Listeners {
+    private static final boolean REUSE_PORT = ServerConfig.REUSE_PORT && supportsReusePort();
+    private static final List<ServerSocketChannel> bound = new CopyOnWriteArrayList<>();
+
+    private Listeners() {
+    }
+
+    /** Binds the listening sockets for a port: one per acceptor with SO_REUSEPORT, else one. */
+    public static List<ServerSocketChannel> bind(int port, int acceptors) throws IOException {
+        int count = REUSE_PORT ? Math.max(1, acceptors) : 1;
+        List<ServerSocketChannel> channels = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (REUSE_PORT) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+            bound.add(channel);
+            channels.add(channel);
+        }
+        return channels;
+    }
+
+    /** Whether each acceptor gets a listening socket of its own. */
+    public static boolean isSharded() {
+        return REUSE_PORT;
+    }
+
+    /**
+     * Stops accepting. Acceptors blocked in {@code accept} fail with
+     * {@link java.nio.channels.ClosedChannelException} and end.
+     */
+    public static void closeAll() {
+        for (ServerSocketChannel channel : bound) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.error("Error closing listening socket: ", e.getMessage());
+            }
+        }
+    }
+
+    private static boolean supportsReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -1,207 +1,465 @@
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.io.SequenceInputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.Base64;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.zip.GZIPOutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
     private static final String WEBSOCKET_MAGIC_STRING = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
-    private static final CopyOnWriteArrayList<WebSocketConnection> webSocketConnections = new CopyOnWriteArrayList<>();
+    private static final Set<WebSocketConnection> webSocketConnections = ConcurrentHashMap.newKeySet();
+    private static final WebSocketTopics webSocketTopics = new WebSocketTopics();
+    private static final WebSocketHeartbeat webSocketHeartbeat =
+            new WebSocketHeartbeat(ServerConfig.WS_PING_INTERVAL_MILLIS, ServerConfig.WS_PONG_TIMEOUT_MILLIS);
+    private static final int BODY_CHUNK_BYTES = 64 * 1024;
+    private static final FileCache fileCache = new FileCache(ServerConfig.FILE_CACHE_BYTES, ServerConfig.FILE_CACHE_MAX_ENTRY_BYTES);
+    private static final FileStore fileStore = new FileStore(Paths.get("files"), ServerConfig.FILE_DURABILITY,
+            ServerConfig.FILE_COMMIT_BATCH, ServerConfig.FILE_JOURNAL_BYTES, ServerConfig.FILE_JOURNAL_MAX_ENTRY_BYTES);
+    private static final Semaphore inFlightRequests = ServerConfig.MAX_IN_FLIGHT > 0 ? new Semaphore(ServerConfig.MAX_IN_FLIGHT) : null;
+    // Connections of the thread-per-connection engines waiting for their next request
+    private static final Set<Socket> idleConnections = ConcurrentHashMap.newKeySet();
+
+    private static final Router router = new Router()
+            .get("/", request -> HttpResponse.ok())
+            .get("/echo/{msg}", request -> handleEchoRequest(request.getPathParameter("msg")))
+            .get("/user-agent", Main::handleUserAgentRequest)
+            .get("/files/{name}", request -> handleFileGet(request, request.getPathParameter("name")))
+            .post("/files/{name}", request -> handleFilePost(request, request.getPathParameter("name")))
+            // Serve a simple WebSocket test page
+            .get("/websocket-test", request -> HttpResponse.ok()
+                    .header(HttpResponse.CONTENT_TYPE, "text/html")
+                    .body(getWebSocketTestPage()))
+            .get("/metrics", request -> HttpResponse.ok()
+                    .header(HttpResponse.CONTENT_TYPE, "text/plain; version=0.0.4")
+                    .body(Metrics.render()));
+
+    static {
+        registerMetrics();
+    }
     
     public static void main(String[] args) {
-        System.out.println("HTTP Server with WebSocket support starting...");
+        ServerLog.info("HTTP Server with WebSocket support starting...");
+        GracefulShutdown.install(() -> Metrics.getOpenConnections() == 0 && webSocketConnections.isEmpty());
+        GracefulShutdown.onDrain(Http2Connection::drainAll);
+        GracefulShutdown.onDrain(() -> {
+            for (WebSocketConnection connection : webSocketConnections) {
+                connection.close(WebSocketCodec.CLOSE_GOING_AWAY, "Server shutting down");
+            }
+        });
+        GracefulShutdown.onStop(() -> {
+            try {
+                fileStore.checkpoint();
+            } catch (IOException e) {
+                ServerLog.error("Error syncing the file journal: ", e.getMessage());
+            }
+        });
 
         try {
-            ServerSocket serverSocket = new ServerSocket(4221);
-            serverSocket.setReuseAddress(true);
+            if ("nio".equals(ServerConfig.ENGINE)) {
+                new NioServer(ServerConfig.PORT, ServerConfig.IO_THREADS).run();
+                return;
+            }
 
-            // Continuously accept new connections
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Accepted new connection from: " + clientSocket.getRemoteSocketAddress());
+            // Accepting through a channel gives every socket a SocketChannel, which lets
+            // file bodies go out with sendfile instead of through the socket stream
+            List<ServerSocketChannel> serverChannels = Listeners.bind(ServerConfig.PORT, ServerConfig.ACCEPTORS);
+            List<ServerSocketChannel> tlsChannels = List.of();
+            if (ServerConfig.TLS_PORT > 0) {
+                TlsChannel.initialize();
+                tlsChannels = Listeners.bind(ServerConfig.TLS_PORT, ServerConfig.ACCEPTORS);
+            }
+            GracefulShutdown.onDrain(Main::closeIdleConnections);
+
+            for (int i = 0; i < ServerConfig.ACCEPTORS; i++) {
+                ServerSocketChannel serverChannel = serverChannels.get(i % serverChannels.size());
+                Thread.ofPlatform().name("http-acceptor-" + i).start(() -> acceptConnections(serverChannel, "http-", false));
+                if (!tlsChannels.isEmpty()) {
+                    ServerSocketChannel tlsChannel = tlsChannels.get(i % tlsChannels.size());
+                    Thread.ofPlatform().name("tls-acceptor-" + i).start(() -> acceptConnections(tlsChannel, "https-", true));
+                }
+            }
+            ServerLog.info("Listening on port " + ServerConfig.PORT + " with " + ServerConfig.ACCEPTORS + " acceptors",
+                    Listeners.isSharded() ? " (SO_REUSEPORT)" : "");
 
-                // Handle each connection in a separate thread
-                new Thread(() -> handleConnection(clientSocket)).start();
+        } catch (IOException e) {
+            ServerLog.error("IOException: ", e.getMessage());
+        }
+    }
+
+    // Continuously accepts new connections, each handled on its own thread, until the
+    // listening socket is closed
+    private static void acceptConnections(ServerSocketChannel serverChannel, String threadName, boolean tls) {
+        Thread.Builder connectionThreads = "virtual".equals(ServerConfig.ENGINE)
+                ? Thread.ofVirtual().name(threadName + "virtual-", 0)
+                : Thread.ofPlatform().name(threadName, 0);
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Socket clientSocket = channel.socket();
+                ServerLog.debug("Accepted new connection from: ", clientSocket.getRemoteSocketAddress());
+
+                // The TLS handshake itself is left to the connection's thread
+                TlsChannel tlsChannel = null;
+                if (tls) {
+                    try {
+                        tlsChannel = TlsChannel.server(channel);
+                    } catch (IOException e) {
+                        ServerLog.error("Cannot start TLS: ", e.getMessage());
+                        channel.close();
+                        continue;
+                    }
+                }
+                TlsChannel connectionTls = tlsChannel;
+                connectionThreads.start(() -> handleConnection(clientSocket, connectionTls));
             }
 
         } catch (IOException e) {
-            System.out.println("IOException: " + e.getMessage());
+            if (serverChannel.isOpen()) {
+                ServerLog.error("IOException: ", e.getMessage());
+            }
+        }
+    }
+
+    // Ends the connections waiting for their next request. Their threads see end of stream
+    // and close them; any request bytes that were already on their way are dropped, as with
+    // any keep-alive connection closed by the server.
+    private static void closeIdleConnections() {
+        for (Socket socket : idleConnections) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                ServerLog.debug("Error closing idle connection: ", e.getMessage());
+            }
         }
     }
 
-    private static void handleConnection(Socket clientSocket) {
+    // Serves one connection; tls is null for plain-text connections, which are then read
+    // and written through the socket directly
+    private static void handleConnection(Socket clientSocket, TlsChannel tls) {
+        Metrics.connectionOpened();
+        boolean upgraded = false;
         try {
-            clientSocket.setSoTimeout(30000);
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            clientSocket.setSoTimeout(ServerConfig.IDLE_TIMEOUT_MILLIS);
+            GatheringByteChannel channel = tls != null ? tls : clientSocket.getChannel();
+            InputStream in = tls != null ? tls.newInputStream() : clientSocket.getInputStream();
+            // Requests are parsed straight out of this buffer; bytes past the current
+            // request stay in it for the next one
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(BODY_CHUNK_BYTES, ServerConfig.MAX_HEADER_BYTES)).flip();
+            HttpRequestParser parser = new HttpRequestParser(ServerConfig.MAX_HEADER_BYTES);
+            ByteBuffer headBuffer = ByteBuffer.allocate(HttpResponse.HEAD_BUFFER_BYTES);
+            // Pipelined GETs already in the buffer are collected here and answered together
+            PipelineBatch batch = new PipelineBatch(ServerConfig.PIPELINE_DEPTH, clientSocket.getRemoteSocketAddress());
+            ArrayDeque<HttpResponse> responses = new ArrayDeque<>();
             
             boolean keepAlive = true;
             int requestCount = 0;
             
             while (keepAlive) {
-                String requestLine = in.readLine();
-                
-                if (requestLine == null || requestLine.isEmpty()) {
+                HttpRequest request = batch.slot();
+                try {
+                    boolean parsed = parser.parse(buffer, request);
+                    if (!parsed) {
+                        // Nothing more is buffered: answer what has been read before waiting on the socket
+                        batch.runInto(responses, Main::handleAdmittedHttpRequest);
+                        sendResponses(channel, responses, headBuffer);
+                        request = batch.slot();
+                    }
+                    while (!parsed && fillRequest(clientSocket, in, buffer)) {
+                        parsed = parser.parse(buffer, request);
+                    }
+                    if (!parsed) {
+                        break;
+                    }
+                } catch (HttpRequestParser.ParseException e) {
+                    batch.runInto(responses, Main::handleAdmittedHttpRequest);
+                    responses.add(HttpResponse.badRequest().header(HttpResponse.CONNECTION, "close"));
                     break;
                 }
                 
                 requestCount++;
-                System.out.println("Processing request #" + requestCount + ": " + requestLine);
-
-                String method = parseMethodFromRequest(requestLine);
-                String path = parsePathFromRequest(requestLine);
-
-                // Read HTTP headers
-                String userAgent = null;
-                String acceptEncoding = null;
-                String connectionHeader = null;
-                String upgradeHeader = null;
-                String webSocketKey = null;
-                String webSocketVersion = null;
-                int contentLength = 0;
-                
-                String headerLine;
-                while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
-                    String lowerHeader = headerLine.toLowerCase();
-                    if (lowerHeader.startsWith("user-agent:")) {
-                        userAgent = headerLine.substring("user-agent:".length()).trim();
-                    } else if (lowerHeader.startsWith("content-length:")) {
-                        contentLength = Integer.parseInt(headerLine.substring("content-length:".length()).trim());
-                    } else if (lowerHeader.startsWith("accept-encoding:")) {
-                        acceptEncoding = headerLine.substring("accept-encoding:".length()).trim();
-                    } else if (lowerHeader.startsWith("connection:")) {
-                        connectionHeader = headerLine.substring("connection:".length()).trim();
-                    } else if (lowerHeader.startsWith("upgrade:")) {
-                        upgradeHeader = headerLine.substring("upgrade:".length()).trim();
-                    } else if (lowerHeader.startsWith("sec-websocket-key:")) {
-                        webSocketKey = headerLine.substring("sec-websocket-key:".length()).trim();
-                    } else if (lowerHeader.startsWith("sec-websocket-version:")) {
-                        webSocketVersion = headerLine.substring("sec-websocket-version:".length()).trim();
+                if (ServerLog.isEnabled(ServerLog.Level.DEBUG)) {
+                    ServerLog.debug("Processing request #" + requestCount + ": " + request.getMethod() + " " + request.getPath());
+                }
+
+                if (PipelineBatch.canBatch(request)) {
+                    batch.add();
+                    if (request.isConnectionClose() || GracefulShutdown.isDraining()) {
+                        keepAlive = false;
+                    } else if (batch.isFull()) {
+                        batch.runInto(responses, Main::handleAdmittedHttpRequest);
+                        sendResponses(channel, responses, headBuffer);
                     }
+                    continue;
                 }
 
+                // Uploads and upgrades wait until every earlier request has been answered
+                batch.runInto(responses, Main::handleAdmittedHttpRequest);
+                sendResponses(channel, responses, headBuffer);
+
                 // Check if this is a WebSocket upgrade request
-                if (isWebSocketUpgradeRequest(connectionHeader, upgradeHeader, webSocketKey, webSocketVersion)) {
-                    handleWebSocketUpgrade(clientSocket, webSocketKey, path);
+                if (request.isWebSocketUpgrade()) {
+                    byte[] leftover = new byte[buffer.remaining()];
+                    buffer.get(leftover);
+                    InputStream webSocketIn = new SequenceInputStream(new ByteArrayInputStream(leftover), in);
+                    // From here on the connection is counted as a WebSocket
+                    upgraded = true;
+                    Metrics.connectionClosed();
+                    handleWebSocketUpgrade(clientSocket, channel, webSocketIn, request.getWebSocketKey(), request.getWebSocketExtensions(), request.getPath());
                     return; // WebSocket connection takes over
                 }
 
-                // Read request body if Content-Length is specified
-                String requestBody = null;
-                if (contentLength > 0) {
-                    char[] buffer = new char[contentLength];
-                    in.read(buffer, 0, contentLength);
-                    requestBody = new String(buffer);
+                if (ServerConfig.H2C && (request.isHttp2Preface() || request.isH2cUpgrade())) {
+                    byte[] leftover = new byte[buffer.remaining()];
+                    buffer.get(leftover);
+                    InputStream http2In = new SequenceInputStream(new ByteArrayInputStream(leftover), in);
+                    handleHttp2(clientSocket, channel, http2In, request.isHttp2Preface() ? null : request);
+                    return; // the connection stays counted until it closes
                 }
 
-                // Handle regular HTTP requests
-                String connectionResponseHeader = "";
-                if (connectionHeader != null && connectionHeader.toLowerCase().contains("close")) {
-                    connectionResponseHeader = "Connection: close\r\n";
+                HttpResponse response;
+                try {
+                    readRequestBody(channel, in, buffer, headBuffer, request);
+
+                    // Handle regular HTTP requests
+                    response = handleAdmittedHttpRequest(request);
+                } catch (RequestBodyDecoder.BodyTooLargeException e) {
+                    // The rest of the body is never read, so the connection cannot be reused
+                    response = HttpResponse.contentTooLarge().header(HttpResponse.CONNECTION, "close");
+                    keepAlive = false;
+                } finally {
+                    request.discardBodyFile();
                 }
+                responses.add(response);
                 
-                handleHttpRequest(clientSocket, method, path, userAgent, acceptEncoding, requestBody, connectionResponseHeader);
-                
-                if (connectionHeader != null && connectionHeader.toLowerCase().contains("close")) {
+                if (request.isConnectionClose() || GracefulShutdown.isDraining()) {
                     keepAlive = false;
                 }
             }
 
+            batch.runInto(responses, Main::handleAdmittedHttpRequest);
+            sendResponses(channel, responses, headBuffer);
             clientSocket.close();
 
         } catch (IOException e) {
-            System.out.println("IOException in handleConnection: " + e.getMessage());
+            ServerLog.error("IOException in handleConnection: ", e.getMessage());
         } finally {
+            if (!upgraded) {
+                Metrics.connectionClosed();
+            }
             try {
                 clientSocket.close();
             } catch (IOException e) {
-                System.out.println("Error closing socket: " + e.getMessage());
+                ServerLog.error("Error closing socket: ", e.getMessage());
             }
         }
     }
 
-    private static boolean isWebSocketUpgradeRequest(String connection, String upgrade, String webSocketKey, String webSocketVersion) {
-        return connection != null && connection.toLowerCase().contains("upgrade") &&
-               upgrade != null && upgrade.toLowerCase().contains("websocket") &&
-               webSocketKey != null &&
-               "13".equals(webSocketVersion);
+    // Reads more of a request; false at end of stream, or when the server is draining and no
+    // request has been started. A connection waiting for a new request counts as idle meanwhile.
+    private static boolean fillRequest(Socket socket, InputStream in, ByteBuffer buffer) throws IOException {
+        if (buffer.hasRemaining()) {
+            return fill(in, buffer);
+        }
+        idleConnections.add(socket);
+        try {
+            // Checked once registered, so a drain starting now either finds this connection or is seen here
+            if (GracefulShutdown.isDraining()) {
+                return false;
+            }
+            return fill(in, buffer);
+        } finally {
+            idleConnections.remove(socket);
+        }
+    }
+
+    // Reads more bytes into a buffer kept in read mode; false at end of stream
+    private static boolean fill(InputStream in, ByteBuffer buffer) throws IOException {
+        buffer.compact();
+        try {
+            int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read == -1) {
+                return false;
+            }
+            Metrics.httpBytesIn(read);
+            buffer.position(buffer.position() + read);
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    // Streams the body, fixed-length or chunked, from the connection buffer into the
+    // request's sink, refilling the buffer as it drains
+    private static void readRequestBody(WritableByteChannel channel, InputStream in, ByteBuffer buffer, ByteBuffer headBuffer,
+                                        HttpRequest request) throws IOException {
+        RequestBodyDecoder decoder = RequestBodyDecoder.forRequest(request, ServerConfig.MAX_BODY_BYTES);
+        if (decoder == null) {
+            return;
+        }
+        if (request.expectsContinue()) {
+            ArrayDeque<HttpResponse> interim = new ArrayDeque<>();
+            interim.add(HttpResponse.expectContinue());
+            HttpResponse.writeAll(interim, channel, headBuffer);
+        }
+
+        try (WritableByteChannel sink = openBodySink(request)) {
+            while (!decoder.decode(buffer, sink)) {
+                if (!fill(in, buffer)) {
+                    throw new EOFException("Connection closed while reading request body");
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the channel a request body is streamed into. Uploads to /files/ are written to a
+     * spool file of the {@link FileStore}, which the handler then commits under its name;
+     * other routes do not use bodies, which are read and dropped.
+     */
+    static WritableByteChannel openBodySink(HttpRequest request) throws IOException {
+        String path = request.getPath();
+        if ("POST".equals(request.getMethod()) && path != null && path.startsWith("/files/")) {
+            Path bodyFile = fileStore.createUpload();
+            request.setBodyFile(bodyFile);
+            return FileChannel.open(bodyFile, StandardOpenOption.WRITE);
+        }
+        return Channels.newChannel(OutputStream.nullOutputStream());
     }
 
-    private static void handleWebSocketUpgrade(Socket clientSocket, String webSocketKey, String path) {
+    static void handleWebSocketUpgrade(Socket clientSocket, GatheringByteChannel out, InputStream in, String webSocketKey, String extensions, String path) {
         try {
             // Generate WebSocket accept key
             String acceptKey = generateWebSocketAcceptKey(webSocketKey);
+            PerMessageDeflate deflate = ServerConfig.WS_DEFLATE ? PerMessageDeflate.negotiate(extensions) : null;
             
             // Send WebSocket handshake response
             String response = "HTTP/1.1 101 Switching Protocols\r\n" +
                             "Upgrade: websocket\r\n" +
                             "Connection: Upgrade\r\n" +
                             "Sec-WebSocket-Accept: " + acceptKey + "\r\n" +
+                            (deflate != null ? "Sec-WebSocket-Extensions: " + deflate.responseHeader() + "\r\n" : "") +
                             "\r\n";
             
-            OutputStream out = clientSocket.getOutputStream();
-            out.write(response.getBytes());
-            out.flush();
+            ByteBuffer responseBytes = ByteBuffer.wrap(response.getBytes());
+            while (responseBytes.hasRemaining()) {
+                out.write(responseBytes);
+            }
+            Metrics.httpBytesOut(responseBytes.limit());
+            
+            ServerLog.info("WebSocket handshake completed for path: ", path);
             
-            System.out.println("WebSocket handshake completed for path: " + path);
+            // Liveness is checked by the heartbeat from here on, not by the HTTP read timeout
+            clientSocket.setSoTimeout(webSocketHeartbeat.isEnabled() ? 0 : ServerConfig.IDLE_TIMEOUT_MILLIS);
             
             // Create WebSocket connection and handle it
-            WebSocketConnection wsConnection = new WebSocketConnection(clientSocket, path);
+            WebSocketConnection wsConnection = new WebSocketConnection(clientSocket, out, in, path, deflate);
             webSocketConnections.add(wsConnection);
+            webSocketHeartbeat.register(wsConnection);
             
             // Handle WebSocket communication
             handleWebSocketCommunication(wsConnection);
             
         } catch (Exception e) {
-            System.out.println("Error in WebSocket upgrade: " + e.getMessage());
+            ServerLog.error("Error in WebSocket upgrade: ", e.getMessage());
+        }
+    }
+
+    /**
+     * Serves a connection that has switched to HTTP/2 until it closes. {@code upgrade} is
+     * the HTTP/1.1 request that asked for h2c, which is answered with 101 here and then as
+     * the first stream; it is null when the client sent the connection preface instead, in
+     * which case its first line has already been read.
+     */
+    static void handleHttp2(Socket clientSocket, GatheringByteChannel out, InputStream in, HttpRequest upgrade) {
+        try {
+            // Frames from many streams are interleaved in small writes
+            clientSocket.setTcpNoDelay(true);
+            if (upgrade != null) {
+                ByteBuffer switching = ByteBuffer.wrap(
+                        "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes());
+                while (switching.hasRemaining()) {
+                    out.write(switching);
+                }
+                Metrics.httpBytesOut(switching.limit());
+            }
+            new Http2Connection(clientSocket, out, in, Main::handleAdmittedHttpRequest).serve(upgrade);
+        } catch (IOException e) {
+            ServerLog.debug("HTTP/2 connection ended: ", e.getMessage());
         }
     }
 
-    private static String generateWebSocketAcceptKey(String webSocketKey) throws NoSuchAlgorithmException {
+    static String generateWebSocketAcceptKey(String webSocketKey) throws NoSuchAlgorithmException {
         String concatenated = webSocketKey + WEBSOCKET_MAGIC_STRING;
         MessageDigest digest = MessageDigest.getInstance("SHA-1");
         byte[] hash = digest.digest(concatenated.getBytes());
         return Base64.getEncoder().encodeToString(hash);
     }
 
+    /**
+     * Runs an upgraded connection. The connection starts out subscribed to the topic named by
+     * its upgrade path; the text messages {@code /subscribe <topic>} and
+     * {@code /unsubscribe <topic>} change its subscriptions, and any other text message is
+     * echoed back and published to every topic it is subscribed to.
+     */
     private static void handleWebSocketCommunication(WebSocketConnection wsConnection) {
+        WebSocketCodec.Decoder decoder = new WebSocketCodec.Decoder(wsConnection.getInputStream(), wsConnection.getDeflate(),
+                ServerConfig.WS_MAX_FRAME_BYTES, ServerConfig.WS_MAX_MESSAGE_BYTES);
         try {
-            InputStream in = wsConnection.getSocket().getInputStream();
+            webSocketTopics.subscribe(topicOf(wsConnection.getPath()), wsConnection);
             
             // Send welcome message
             wsConnection.sendMessage("Welcome to WebSocket server! Path: " + wsConnection.getPath());
             
-            while (!wsConnection.getSocket().isClosed()) {
-                // Read WebSocket frame
-                WebSocketFrame frame = readWebSocketFrame(in);
+            while (!wsConnection.isClosed()) {
+                // Read the next message; fragments are reassembled by the decoder
+                WebSocketCodec.Message frame = decoder.next();
                 if (frame == null) break;
+                wsConnection.markReceived();
+                Metrics.webSocketMessageIn();
                 
                 switch (frame.getOpcode()) {
                     case 0x1: // Text frame
-                        String message = new String(frame.getPayload());
-                        System.out.println("Received WebSocket message: " + message);
+                        String message = frame.getText();
+                        ServerLog.debug("Received WebSocket message: ", message);
+                        
+                        if (handleSubscriptionMessage(wsConnection, message)) {
+                            break;
+                        }
                         
                         // Echo the message back
                         wsConnection.sendMessage("Echo: " + message);
                         
-                        // Broadcast to other connections
+                        // Publish to the other subscribers of this connection's topics
                         broadcastMessage("Broadcast: " + message, wsConnection);
                         break;
                         
                     case 0x8: // Close frame
-                        System.out.println("WebSocket close frame received");
-                        wsConnection.close();
+                        ServerLog.debug("WebSocket close frame received");
+                        wsConnection.close(frame.getCloseCode(), null);
                         return;
                         
                     case 0x9: // Ping frame
@@ -209,115 +467,177 @@ public class Main {
                         break;
                         
                     case 0xA: // Pong frame
-                        System.out.println("Received pong frame");
+                        // Answers a heartbeat ping; markReceived above is all it needs
                         break;
                 }
             }
             
+        } catch (WebSocketCodec.ProtocolException e) {
+            ServerLog.info("WebSocket protocol error: ", e.getMessage());
+            wsConnection.close(e.getCloseCode(), e.getMessage());
         } catch (IOException e) {
-            System.out.println("WebSocket communication error: " + e.getMessage());
+            // A socket closed on this side, after a close frame or by the heartbeat, ends the read too
+            if (!wsConnection.isClosed()) {
+                ServerLog.error("WebSocket communication error: ", e.getMessage());
+            }
         } finally {
+            decoder.close();
+            webSocketTopics.unsubscribeAll(wsConnection);
             webSocketConnections.remove(wsConnection);
             try {
-                wsConnection.close();
+                wsConnection.awaitClose(WebSocketConnection.CLOSE_TIMEOUT_MILLIS);
             } catch (IOException e) {
-                System.out.println("Error closing WebSocket: " + e.getMessage());
+                ServerLog.error("Error closing WebSocket: ", e.getMessage());
             }
         }
     }
 
+    // The frame is encoded once and queued on each subscriber; no write happens on this thread
     private static void broadcastMessage(String message, WebSocketConnection sender) {
-        for (WebSocketConnection conn : webSocketConnections) {
-            if (conn != sender && !conn.getSocket().isClosed()) {
-                try {
-                    conn.sendMessage(message);
-                } catch (IOException e) {
-                    System.out.println("Error broadcasting message: " + e.getMessage());
-                }
+        ByteBuffer frame = WebSocketCodec.encodeFrame(WebSocketCodec.OP_TEXT, message.getBytes(StandardCharsets.UTF_8));
+        for (String topic : sender.getTopics()) {
+            webSocketTopics.publish(topic, frame, sender);
+        }
+    }
+
+    // Handles /subscribe and /unsubscribe; false for any other message
+    private static boolean handleSubscriptionMessage(WebSocketConnection wsConnection, String message) {
+        if (message.startsWith("/subscribe ")) {
+            String topic = message.substring("/subscribe ".length()).trim();
+            if (topic.isEmpty()) {
+                wsConnection.sendMessage("Missing topic");
+            } else if (webSocketTopics.subscribe(topic, wsConnection)) {
+                wsConnection.sendMessage("Subscribed: " + topic);
+            } else {
+                wsConnection.sendMessage("Too many subscriptions (limit " + WebSocketTopics.MAX_TOPICS_PER_CONNECTION + ")");
             }
+            return true;
+        }
+        if (message.startsWith("/unsubscribe ")) {
+            String topic = message.substring("/unsubscribe ".length()).trim();
+            webSocketTopics.unsubscribe(topic, wsConnection);
+            wsConnection.sendMessage("Unsubscribed: " + topic);
+            return true;
         }
+        return false;
     }
 
-    private static WebSocketFrame readWebSocketFrame(InputStream in) throws IOException {
-        int firstByte = in.read();
-        if (firstByte == -1) return null;
-        
-        boolean fin = (firstByte & 0x80) != 0;
-        int opcode = firstByte & 0x0F;
-        
-        int secondByte = in.read();
-        if (secondByte == -1) return null;
-        
-        boolean masked = (secondByte & 0x80) != 0;
-        int payloadLength = secondByte & 0x7F;
-        
-        // Handle extended payload length
-        if (payloadLength == 126) {
-            payloadLength = (in.read() << 8) | in.read();
-        } else if (payloadLength == 127) {
-            // For simplicity, we'll limit to int range
-            for (int i = 0; i < 4; i++) in.read(); // Skip first 4 bytes
-            payloadLength = (in.read() << 24) | (in.read() << 16) | (in.read() << 8) | in.read();
+    // A connection's initial topic is its upgrade path without the query string
+    private static String topicOf(String path) {
+        int query = path.indexOf('?');
+        return query >= 0 ? path.substring(0, query) : path;
+    }
+
+    // Bounds the number of requests handled at once. A request that cannot get a slot
+    // within the admission timeout is answered with 503 instead of queueing without limit.
+    static HttpResponse handleAdmittedHttpRequest(HttpRequest request) {
+        return handleAdmittedHttpRequest(request, ServerConfig.ADMISSION_TIMEOUT_MILLIS);
+    }
+
+    // For the nio event loops, which must not wait: a request with no slot free is refused at once
+    static HttpResponse handleAdmittedHttpRequestNow(HttpRequest request) {
+        return handleAdmittedHttpRequest(request, 0);
+    }
+
+    private static HttpResponse handleAdmittedHttpRequest(HttpRequest request, long timeoutMillis) {
+        if (inFlightRequests == null) {
+            return handleHttpRequest(request);
         }
-        
-        // Read masking key if present
-        byte[] maskingKey = null;
-        if (masked) {
-            maskingKey = new byte[4];
-            in.read(maskingKey);
+
+        boolean admitted;
+        try {
+            admitted = inFlightRequests.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
         }
-        
-        // Read payload
-        byte[] payload = new byte[payloadLength];
-        in.read(payload);
-        
-        // Unmask payload if necessary
-        if (masked && maskingKey != null) {
-            for (int i = 0; i < payload.length; i++) {
-                payload[i] ^= maskingKey[i % 4];
+
+        if (!admitted) {
+            HttpResponse response = HttpResponse.serviceUnavailable().header(HttpResponse.RETRY_AFTER, "1");
+            if (request.isConnectionClose()) {
+                response.header(HttpResponse.CONNECTION, "close");
             }
+            return response;
+        }
+
+        try {
+            return handleHttpRequest(request);
+        } finally {
+            inFlightRequests.release();
         }
-        
-        return new WebSocketFrame(fin, opcode, payload);
     }
 
-    private static void handleHttpRequest(Socket clientSocket, String method, String path, String userAgent, 
-                                        String acceptEncoding, String requestBody, String connectionResponseHeader) throws IOException {
-        if ("/".equals(path)) {
-            sendTextResponse(clientSocket, "HTTP/1.1 200 OK\r\n" + connectionResponseHeader + "\r\n");
-        } else if (path != null && path.startsWith("/echo/")) {
-            String echoString = path.substring("/echo/".length());
-            handleEchoRequest(clientSocket, echoString, acceptEncoding, connectionResponseHeader);
-        } else if ("/user-agent".equals(path)) {
-            if (userAgent != null) {
-                int agentLength = userAgent.length();
-                String response = "HTTP/1.1 200 OK\r\n" +
-                                "Content-Type: text/plain\r\n" +
-                                connectionResponseHeader +
-                                "Content-Length: " + agentLength + "\r\n" +
-                                "\r\n" +
-                                userAgent;
-                sendTextResponse(clientSocket, response);
-            } else {
-                sendTextResponse(clientSocket, "HTTP/1.1 400 Bad Request\r\n" + connectionResponseHeader + "\r\n");
-            }
-        } else if (path != null && path.startsWith("/files/")) {
-            String filename = path.substring("/files/".length());
-            String response = handleFileRequest(method, filename, requestBody, connectionResponseHeader);
-            sendTextResponse(clientSocket, response);
-        } else if ("/websocket-test".equals(path)) {
-            // Serve a simple WebSocket test page
-            String html = getWebSocketTestPage();
-            String response = "HTTP/1.1 200 OK\r\n" +
-                            "Content-Type: text/html\r\n" +
-                            "Content-Length: " + html.length() + "\r\n" +
-                            connectionResponseHeader +
-                            "\r\n" +
-                            html;
-            sendTextResponse(clientSocket, response);
-        } else {
-            sendTextResponse(clientSocket, "HTTP/1.1 404 Not Found\r\n" + connectionResponseHeader + "\r\n");
+    static HttpResponse handleHttpRequest(HttpRequest request) {
+        long start = System.nanoTime();
+        HttpResponse response = Compression.apply(request, routeHttpRequest(request));
+        if ("HEAD".equals(request.getMethod())) {
+            // The head a GET would get, without the body
+            response.omitBody();
+        }
+        // A draining server closes every connection after the request it is answering
+        if (request.isConnectionClose() || GracefulShutdown.isDraining()) {
+            response.header(HttpResponse.CONNECTION, "close");
         }
+        long nanos = System.nanoTime() - start;
+        Metrics.Route route = request.getRoute();
+        (route != null ? route : Metrics.UNMATCHED).record(response.getStatus(), nanos);
+        ServerLog.access(request, response, nanos);
+        return response;
+    }
+
+    private static HttpResponse routeHttpRequest(HttpRequest request) {
+        HttpResponse response = router.route(request);
+        return response != null ? response : HttpResponse.notFound();
+    }
+
+    // Exposes the counters other components keep for themselves
+    private static void registerMetrics() {
+        Metrics.counter("file_cache_hits_total", "Static file responses served from the cache", fileCache::getHits);
+        Metrics.counter("file_cache_misses_total", "Static file lookups not found in the cache", fileCache::getMisses);
+        Metrics.counter("file_cache_evictions_total", "Entries evicted from the static file cache", fileCache::getEvictions);
+
+        Metrics.counter("file_store_commits_total", "Uploads committed to /files/", fileStore::getCommits);
+        Metrics.counter("file_store_commit_batches_total", "Group commits run by the batched file store", fileStore::getBatches);
+        Metrics.counter("file_store_syncs_total", "fsync calls made for uploads, file data and directory", fileStore::getSyncs);
+        Metrics.counter("file_store_checkpoints_total", "Times the upload journal was synced out and emptied", fileStore::getCheckpoints);
+
+        Metrics.counter("compression_responses_total", "Responses compressed on the fly", Compression::getCompressedResponses);
+        Metrics.counter("compression_input_bytes_total", "Bytes fed to the compressor", Compression::getBytesIn);
+        Metrics.counter("compression_output_bytes_total", "Compressed bytes produced", Compression::getBytesOut);
+        Metrics.counter("compression_cpu_nanoseconds_total", "Thread CPU time spent compressing", Compression::getCpuNanos);
+        Metrics.gauge("compression_ratio", "Compressed size over original size, since start",
+                () -> ratio(Compression.getBytesOut(), Compression.getBytesIn()));
+        Metrics.gauge("compression_cpu_nanoseconds_per_byte", "CPU time per compressed byte produced, since start",
+                Compression::getCpuNanosPerCompressedByte);
+
+        Metrics.gauge("websocket_connections_open", "Upgraded WebSocket connections", webSocketConnections::size);
+        Metrics.gauge("websocket_topics", "Topics with at least one subscriber", webSocketTopics::getTopicCount);
+        Metrics.counter("websocket_dropped_frames_total", "Frames dropped from slow consumers' queues", WebSocketConnection::getDroppedFrames);
+        Metrics.counter("websocket_coalesced_frames_total", "Queued frames replaced by a newer one", WebSocketConnection::getCoalescedFrames);
+        Metrics.counter("websocket_slow_consumer_disconnects_total", "Connections closed for falling too far behind",
+                WebSocketConnection::getSlowConsumerDisconnects);
+        Metrics.counter("websocket_pings_total", "Heartbeat pings sent to idle connections", WebSocketHeartbeat::getPingsSent);
+        Metrics.counter("websocket_evictions_total", "Connections closed for not answering a ping", WebSocketHeartbeat::getEvictions);
+
+        Metrics.counter("tls_handshakes_total", "Completed TLS handshakes, resumed ones included", TlsChannel::getHandshakes);
+        Metrics.counter("tls_resumed_handshakes_total", "TLS handshakes that resumed an earlier session", TlsChannel::getResumedHandshakes);
+        Metrics.counter("tls_failed_handshakes_total", "TLS handshakes that failed or were abandoned", TlsChannel::getFailedHandshakes);
+        Metrics.counter("tls_handshake_cpu_nanoseconds_total", "Thread CPU time spent in TLS handshakes", TlsChannel::getHandshakeCpuNanos);
+
+        Metrics.counter("http2_connections_total", "Connections served over HTTP/2", Http2Connection::getConnections);
+        Metrics.counter("http2_streams_total", "HTTP/2 streams opened by clients", Http2Connection::getStreamsOpened);
+        Metrics.counter("http2_refused_streams_total", "HTTP/2 streams refused for exceeding the concurrency limit",
+                Http2Connection::getStreamsRefused);
+        Metrics.counter("http2_reset_streams_total", "HTTP/2 streams reset by clients", Http2Connection::getStreamsReset);
+        Metrics.counter("http2_flow_control_stalls_total", "HTTP/2 responses that waited for the client to open its window",
+                Http2Connection::getFlowControlStalls);
+        Metrics.gauge("http2_streams_open", "HTTP/2 streams being read or answered", Http2Connection::getOpenStreams);
+
+        Metrics.counter("log_dropped_entries_total", "Log entries dropped because the log buffer was full", ServerLog::getDroppedEntries);
+    }
+
+    private static double ratio(long numerator, long denominator) {
+        return denominator == 0 ? Double.NaN : (double) numerator / denominator;
     }
 
     private static String getWebSocketTestPage() {
@@ -350,203 +670,115 @@ public class Main {
                "</html>";
     }
 
-    // ... (keeping all existing HTTP methods: sendTextResponse, handleEchoRequest, compressWithGzip, 
-    //      handleFileRequest, supportsGzipEncoding, parseMethodFromRequest, parsePathFromRequest)
-
-    // WebSocket helper classes
-    static class WebSocketConnection {
-        private final Socket socket;
-        private final String path;
-        private final OutputStream out;
-
-        public WebSocketConnection(Socket socket, String path) throws IOException {
-            this.socket = socket;
-            this.path = path;
-            this.out = socket.getOutputStream();
-        }
-
-        public void sendMessage(String message) throws IOException {
-            byte[] payload = message.getBytes();
-            sendFrame(0x1, payload); // Text frame
+    // Writes the queued responses in order, batching consecutive in-memory ones into one write
+    private static void sendResponses(WritableByteChannel channel, ArrayDeque<HttpResponse> responses, ByteBuffer headBuffer) throws IOException {
+        if (responses.isEmpty()) {
+            return;
         }
-
-        public void sendPong(byte[] payload) throws IOException {
-            sendFrame(0xA, payload); // Pong frame
-        }
-
-        private void sendFrame(int opcode, byte[] payload) throws IOException {
-            ByteArrayOutputStream frame = new ByteArrayOutputStream();
-            
-            // First byte: FIN (1) + RSV (000) + opcode (4 bits)
-            frame.write(0x80 | opcode);
-            
-            // Second byte: MASK (0) + payload length
-            if (payload.length < 126) {
-                frame.write(payload.length);
-            } else if (payload.length < 65536) {
-                frame.write(126);
-                frame.write((payload.length >> 8) & 0xFF);
-                frame.write(payload.length & 0xFF);
-            } else {
-                frame.write(127);
-                // Write 8-byte length (simplified for demo)
-                for (int i = 7; i >= 0; i--) {
-                    frame.write((payload.length >> (i * 8)) & 0xFF);
-                }
+        try {
+            HttpResponse.writeAll(responses, channel, headBuffer);
+        } finally {
+            HttpResponse response;
+            while ((response = responses.poll()) != null) {
+                response.release();
             }
-            
-            frame.write(payload);
-            
-            out.write(frame.toByteArray());
-            out.flush();
-        }
-
-        public Socket getSocket() { return socket; }
-        public String getPath() { return path; }
-        public void close() throws IOException { socket.close(); }
-    }
-
-    static class WebSocketFrame {
-        private final boolean fin;
-        private final int opcode;
-        private final byte[] payload;
-
-        public WebSocketFrame(boolean fin, int opcode, byte[] payload) {
-            this.fin = fin;
-            this.opcode = opcode;
-            this.payload = payload;
         }
-
-        public boolean isFin() { return fin; }
-        public int getOpcode() { return opcode; }
-        public byte[] getPayload() { return payload; }
-    }
-
-    // Keep all existing HTTP methods here...
-    private static void sendTextResponse(Socket clientSocket, String response) throws IOException {
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        out.print(response);
-        out.flush();
-        System.out.println("Response sent to client: " + response.trim());
     }
 
-    private static void handleEchoRequest(Socket clientSocket, String echoString, String acceptEncoding, String connectionResponseHeader) throws IOException {
-        boolean supportsGzip = supportsGzipEncoding(acceptEncoding);
-        
-        if (supportsGzip) {
-            byte[] compressedData = compressWithGzip(echoString);
-            String headers = "HTTP/1.1 200 OK\r\n" +
-                           "Content-Type: text/plain\r\n" +
-                           "Content-Encoding: gzip\r\n" +
-                           connectionResponseHeader +
-                           "Content-Length: " + compressedData.length + "\r\n" +
-                           "\r\n";
-            
-            clientSocket.getOutputStream().write(headers.getBytes());
-            clientSocket.getOutputStream().write(compressedData);
-            clientSocket.getOutputStream().flush();
-        } else {
-            int echoLength = echoString.length();
-            String response = "HTTP/1.1 200 OK\r\n" +
-                            "Content-Type: text/plain\r\n" +
-                            connectionResponseHeader +
-                            "Content-Length: " + echoLength + "\r\n" +
-                            "\r\n" +
-                            echoString;
-            sendTextResponse(clientSocket, response);
-        }
+    private static HttpResponse handleEchoRequest(String echoString) {
+        return HttpResponse.ok()
+                .header(HttpResponse.CONTENT_TYPE, "text/plain")
+                .body(echoString);
     }
 
-    private static byte[] compressWithGzip(String data) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (GZIPOutputStream gzipOut = new GZIPOutputStream(baos)) {
-            gzipOut.write(data.getBytes());
+    private static HttpResponse handleUserAgentRequest(HttpRequest request) {
+        String userAgent = request.getUserAgent();
+        if (userAgent == null) {
+            return HttpResponse.badRequest();
         }
-        return baos.toByteArray();
+        return HttpResponse.ok()
+                .header(HttpResponse.CONTENT_TYPE, "text/plain")
+                .body(userAgent);
     }
 
-    private static String handleFileRequest(String method, String filename, String requestBody, String connectionResponseHeader) {
+    private static HttpResponse handleFileGet(HttpRequest request, String filename) {
         try {
             Path filePath = Paths.get("files", filename);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return HttpResponse.notFound();
+            }
+            if (!attributes.isRegularFile()) {
+                return HttpResponse.notFound();
+            }
             
-            if ("GET".equals(method)) {
-                if (!Files.exists(filePath)) {
-                    return "HTTP/1.1 404 Not Found\r\n" + connectionResponseHeader + "\r\n";
-                }
-                
-                byte[] fileContent = Files.readAllBytes(filePath);
-                String content = new String(fileContent);
-                
-                return "HTTP/1.1 200 OK\r\n" +
-                       "Content-Type: application/octet-stream\r\n" +
-                       connectionResponseHeader +
-                       "Content-Length: " + fileContent.length + "\r\n" +
-                       "\r\n" +
-                       content;
-                       
-            } else if ("POST".equals(method)) {
-                if (requestBody == null) {
-                    return "HTTP/1.1 400 Bad Request\r\n" + connectionResponseHeader + "\r\n";
+            boolean compressible = StaticFiles.isCompressible(filePath, attributes);
+            Compression.Coding coding = StaticFiles.coding(request, filePath, attributes, compressible);
+            
+            if (StaticFiles.isNotModified(request, attributes)) {
+                return StaticFiles.notModified(attributes, coding);
+            }
+            
+            HttpResponse partial = StaticFiles.rangeResponse(request, filePath, attributes);
+            if (partial != null) {
+                return partial;
+            }
+            
+            if (coding == Compression.Coding.GZIP) {
+                HttpResponse precompressed = StaticFiles.precompressedResponse(filePath, attributes);
+                if (precompressed != null) {
+                    return precompressed;
                 }
-                
-                Path filesDir = Paths.get("files");
-                if (!Files.exists(filesDir)) {
-                    Files.createDirectories(filesDir);
+                if (!StaticFiles.isCompressibleOnTheFly(attributes)) {
+                    // The sibling went away since the coding was chosen
+                    coding = null;
                 }
-                
-                Files.write(filePath, requestBody.getBytes());
-                return "HTTP/1.1 201 Created\r\n" + connectionResponseHeader + "\r\n";
-                
-            } else {
-                return "HTTP/1.1 405 Method Not Allowed\r\n" + connectionResponseHeader + "\r\n";
             }
-                   
-        } catch (IOException e) {
-            System.out.println("Error handling file request: " + e.getMessage());
-            return "HTTP/1.1 500 Internal Server Error\r\n" + connectionResponseHeader + "\r\n";
-        }
-    }
-
-    private static boolean supportsGzipEncoding(String acceptEncoding) {
-        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
-            return false;
-        }
-        
-        String[] encodings = acceptEncoding.split(",");
-        for (String encoding : encodings) {
-            if ("gzip".equals(encoding.trim().toLowerCase())) {
-                return true;
+            
+            HttpResponse cached = fileCache.get(filePath, attributes, coding);
+            if (cached != null) {
+                return cached;
             }
+            
+            // The body is streamed from the file by the engine, never loaded onto the heap
+            FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ);
+            
+            HttpResponse response = HttpResponse.ok()
+                    .header(HttpResponse.CONTENT_TYPE, "application/octet-stream")
+                    .header(HttpResponse.ETAG, StaticFiles.etag(attributes, coding))
+                    .header(HttpResponse.LAST_MODIFIED, StaticFiles.lastModified(attributes))
+                    .header(HttpResponse.ACCEPT_RANGES, "bytes");
+            if (compressible) {
+                response.header(HttpResponse.VARY, "Accept-Encoding");
+            }
+            if (coding != null) {
+                return response.header(HttpResponse.CONTENT_ENCODING, coding.token())
+                        .body(Compression.compressing(file, coding));
+            }
+            return response.body(file, 0, file.size());
+        } catch (IOException e) {
+            ServerLog.error("Error handling file request: ", e.getMessage());
+            return HttpResponse.serverError();
         }
-        
-        return false;
-    }
-
-    private static String parseMethodFromRequest(String requestLine) {
-        if (requestLine == null || requestLine.isEmpty()) {
-            return null;
-        }
-
-        String[] parts = requestLine.split(" ");
-        
-        if (parts.length >= 1) {
-            return parts[0];
-        }
-        
-        return null;
     }
 
-    private static String parsePathFromRequest(String requestLine) {
-        if (requestLine == null || requestLine.isEmpty()) {
-            return null;
+    private static HttpResponse handleFilePost(HttpRequest request, String filename) {
+        Path bodyFile = request.getBodyFile();
+        if (bodyFile == null) {
+            return HttpResponse.badRequest();
         }
-
-        String[] parts = requestLine.split(" ");
-        
-        if (parts.length >= 2) {
-            return parts[1];
+        try {
+            // The body was streamed to a spool file on the target's file system; readers see
+            // either the old file or the complete new one
+            Path filePath = fileStore.resolve(filename);
+            fileStore.commit(bodyFile, filePath);
+            fileCache.invalidate(filePath);
+            return HttpResponse.created();
+        } catch (IOException e) {
+            ServerLog.error("Error handling file request: ", e.getMessage());
+            return HttpResponse.serverError();
         }
-        
-        return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,165 @@
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Server-wide counters and histograms, rendered for {@code GET /metrics} in the Prometheus
+ * text exposition format.
+ *
+ * Hot-path updates are {@link LongAdder}s and {@link LatencyHistogram}s, so recording never
+ * locks or allocates. Components that keep their own counters (the file cache, compression,
+ * WebSocket queues) are registered once as suppliers and read only when metrics are scraped.
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    /** Counters and latencies of one route. */
+    public static final class Route {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        // Responses by status class: 1xx .. 5xx
+        private final LongAdder[] responses = new LongAdder[5];
+
+        private Route(String name) {
+            this.name = name;
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = new LongAdder();
+            }
+        }
+
+        public void record(String status, long nanos) {
+            int statusClass = status.charAt(0) - '1';
+            if (statusClass >= 0 && statusClass < responses.length) {
+                responses[statusClass].increment();
+            }
+            latency.record(nanos);
+        }
+
+        public String getName() { return name; }
+    }
+
+    private static final List<Route> routes = new CopyOnWriteArrayList<>();
+    private static final List<Supplied> supplied = new CopyOnWriteArrayList<>();
+
+    /** Requests that matched no route. */
+    public static final Route UNMATCHED = route("unmatched");
+
+    private static final LongAdder httpConnectionsOpened = new LongAdder();
+    private static final LongAdder httpConnectionsOpen = new LongAdder();
+    private static final LongAdder httpBytesIn = new LongAdder();
+    private static final LongAdder httpBytesOut = new LongAdder();
+    private static final LongAdder webSocketBytesIn = new LongAdder();
+    private static final LongAdder webSocketBytesOut = new LongAdder();
+    private static final LongAdder webSocketMessagesIn = new LongAdder();
+    private static final LongAdder webSocketFramesOut = new LongAdder();
+
+    private Metrics() {
+    }
+
+    /** Creates the metrics of a route; called once per route when routes are set up. */
+    public static Route route(String name) {
+        Route route = new Route(name);
+        routes.add(route);
+        return route;
+    }
+
+    public static void connectionOpened() {
+        httpConnectionsOpened.increment();
+        httpConnectionsOpen.increment();
+    }
+
+    public static void connectionClosed() { httpConnectionsOpen.decrement(); }
+    public static long getOpenConnections() { return httpConnectionsOpen.sum(); }
+    public static void httpBytesIn(long bytes) { httpBytesIn.add(bytes); }
+    public static void httpBytesOut(long bytes) { httpBytesOut.add(bytes); }
+    public static void webSocketBytesIn(long bytes) { webSocketBytesIn.add(bytes); }
+    public static void webSocketMessageIn() { webSocketMessagesIn.increment(); }
+
+    public static void webSocketFramesOut(int frames, long bytes) {
+        webSocketFramesOut.add(frames);
+        webSocketBytesOut.add(bytes);
+    }
+
+    /** Exposes a counter kept elsewhere. */
+    public static void counter(String name, String help, LongSupplier value) {
+        supplied.add(new Supplied(name, help, "counter", () -> value.getAsLong()));
+    }
+
+    /** Exposes a value that can go up and down. */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        supplied.add(new Supplied(name, help, "gauge", value));
+    }
+
+    private record Supplied(String name, String help, String type, DoubleSupplier value) {
+    }
+
+    /** All metrics in the Prometheus text format, version 0.0.4. */
+    public static String render() {
+        StringBuilder out = new StringBuilder(8192);
+
+        header(out, "http_requests_total", "Requests handled, by route and status class", "counter");
+        for (Route route : routes) {
+            for (int i = 0; i < route.responses.length; i++) {
+                long count = route.responses[i].sum();
+                if (count > 0) {
+                    out.append("http_requests_total{route=\"").append(route.name)
+                       .append("\",status=\"").append(i + 1).append("xx\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        header(out, "http_request_duration_seconds", "Time to produce a response, excluding writing it", "summary");
+        for (Route route : routes) {
+            long count = route.latency.getCount();
+            if (count == 0) {
+                continue;
+            }
+            long[] values = route.latency.quantiles(QUANTILES);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                out.append("http_request_duration_seconds{route=\"").append(route.name)
+                   .append("\",quantile=\"").append(QUANTILES[i]).append("\"} ").append(seconds(values[i])).append('\n');
+            }
+            out.append("http_request_duration_seconds_sum{route=\"").append(route.name).append("\"} ")
+               .append(seconds(route.latency.getSumNanos())).append('\n');
+            out.append("http_request_duration_seconds_count{route=\"").append(route.name).append("\"} ")
+               .append(count).append('\n');
+        }
+
+        sample(out, "http_connections_total", "HTTP connections accepted", "counter", httpConnectionsOpened.sum());
+        sample(out, "http_connections_open", "HTTP connections currently open, idle keep-alive ones included", "gauge", httpConnectionsOpen.sum());
+        sample(out, "http_received_bytes_total", "Bytes read from HTTP connections", "counter", httpBytesIn.sum());
+        sample(out, "http_sent_bytes_total", "Bytes written to HTTP connections", "counter", httpBytesOut.sum());
+        sample(out, "websocket_received_bytes_total", "Bytes read from WebSocket connections", "counter", webSocketBytesIn.sum());
+        sample(out, "websocket_sent_bytes_total", "Bytes written to WebSocket connections", "counter", webSocketBytesOut.sum());
+        sample(out, "websocket_received_messages_total", "WebSocket messages and control frames received", "counter", webSocketMessagesIn.sum());
+        sample(out, "websocket_sent_frames_total", "WebSocket frames written", "counter", webSocketFramesOut.sum());
+
+        for (Supplied metric : supplied) {
+            sample(out, metric.name(), metric.help(), metric.type(), metric.value().getAsDouble());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String help, String type, double value) {
+        header(out, name, help, type);
+        out.append(name).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(Double.isNaN(value) ? "NaN" : Double.toString(value));
+        }
+        out.append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
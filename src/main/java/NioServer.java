@@ -0,0 +1,661 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Non-blocking engine: acceptor threads hand new connections round-robin to a fixed set of
+ * selector event loops. Each loop parses requests incrementally out of a per-connection
+ * read buffer and queues encoded responses, so idle keep-alive clients cost a buffer and a
+ * selection key instead of a parked thread.
+ *
+ * Uploads to /files/, whose commit may wait for the disk, and several pipelined requests
+ * that are handled in parallel run on virtual threads. Their connection stops parsing until
+ * the responses are ready and the loop serves its other connections meanwhile; the responses
+ * are handed back to the loop to be written.
+ *
+ * WebSocket upgrades and HTTP/2 connections are handed off: the channel leaves its selector,
+ * switches to blocking mode and continues on a virtual thread of its own through
+ * {@link Main#handleWebSocketUpgrade} or {@link Main#handleHttp2}, as on the virtual engine,
+ * so many long-lived upgraded connections do not cost an OS thread each.
+ *
+ * Connections come from {@code server.acceptors} acceptor threads per port, each on a
+ * listening socket of its own where SO_REUSEPORT is available (see {@link Listeners}). With a
+ * TLS port configured, its acceptors feed the same loops, and those connections are read and
+ * written through a non-blocking {@link TlsChannel}.
+ *
+ * While the server drains, each loop closes its connections as soon as they have no request
+ * in progress; see {@link GracefulShutdown}.
+ */
+public class NioServer {
+    private static final int INITIAL_READ_BUFFER = 4096;
+    private static final ThreadFactory UPGRADED_THREADS = Thread.ofVirtual().name("nio-upgraded-", 0).factory();
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    public NioServer(int port, int ioThreads) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+        GracefulShutdown.onDrain(() -> {
+            for (EventLoop loop : loops) {
+                loop.selector.wakeup();
+            }
+        });
+
+        List<ServerSocketChannel> serverChannels = Listeners.bind(port, ServerConfig.ACCEPTORS);
+        List<ServerSocketChannel> tlsChannels = List.of();
+        if (ServerConfig.TLS_PORT > 0) {
+            TlsChannel.initialize();
+            tlsChannels = Listeners.bind(ServerConfig.TLS_PORT, ServerConfig.ACCEPTORS);
+            ServerLog.info("NIO engine accepting TLS on port " + ServerConfig.TLS_PORT);
+        }
+        for (int i = 0; i < ServerConfig.ACCEPTORS; i++) {
+            startAcceptor(serverChannels.get(i % serverChannels.size()), false, i);
+            if (!tlsChannels.isEmpty()) {
+                startAcceptor(tlsChannels.get(i % tlsChannels.size()), true, i);
+            }
+        }
+
+        ServerLog.info("NIO engine listening on port " + port + " with " + loops.length + " event loops and " +
+                ServerConfig.ACCEPTORS + " acceptors", Listeners.isSharded() ? " (SO_REUSEPORT)" : "");
+    }
+
+    private void startAcceptor(ServerSocketChannel serverChannel, boolean tls, int index) {
+        new Thread(() -> {
+            try {
+                accept(serverChannel, tls, index);
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    ServerLog.error("IOException in acceptor: ", e.getMessage());
+                }
+            }
+        }, (tls ? "nio-tls-acceptor-" : "nio-acceptor-") + index).start();
+    }
+
+    // Hands connections round-robin to the loops; acceptors start at different loops so
+    // that together they spread connections evenly
+    private void accept(ServerSocketChannel serverChannel, boolean tls, int first) throws IOException {
+        int next = first % loops.length;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            TlsChannel tlsChannel = null;
+            if (tls) {
+                try {
+                    tlsChannel = TlsChannel.server(channel);
+                } catch (IOException e) {
+                    ServerLog.error("Cannot start TLS: ", e.getMessage());
+                    channel.close();
+                    continue;
+                }
+            }
+            loops[next].register(new Accepted(channel, tlsChannel));
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    // A new connection on its way to an event loop; tls is null for plain text
+    private record Accepted(SocketChannel channel, TlsChannel tls) {
+    }
+
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Accepted> pending = new ConcurrentLinkedQueue<>();
+        // Work finished off the loop, to be picked up on it
+        private final ConcurrentLinkedQueue<Runnable> completions = new ConcurrentLinkedQueue<>();
+        private final List<Connection> handoffs = new ArrayList<>();
+        private long lastIdleSweep = System.currentTimeMillis();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(Accepted accepted) {
+            pending.add(accepted);
+            selector.wakeup();
+        }
+
+        // Runs a task on the loop; callable from any thread
+        void execute(Runnable task) {
+            completions.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(1000);
+                    registerPending();
+                    runCompletions();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+
+                    completeHandoffs();
+                    sweepIdleConnections();
+                } catch (IOException e) {
+                    ServerLog.error("IOException in event loop: ", e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            Accepted accepted;
+            while ((accepted = pending.poll()) != null) {
+                try {
+                    SelectionKey key = accepted.channel().register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, key, accepted.channel(), accepted.tls()));
+                } catch (IOException e) {
+                    ServerLog.error("Error registering connection: ", e.getMessage());
+                }
+            }
+        }
+
+        private void runCompletions() {
+            Runnable task;
+            while ((task = completions.poll()) != null) {
+                task.run();
+            }
+        }
+
+        // A cancelled key is only deregistered by the next select, so blocking mode can
+        // be restored only after the selected-key iteration has finished.
+        private void completeHandoffs() throws IOException {
+            if (handoffs.isEmpty()) {
+                return;
+            }
+            selector.selectNow();
+            for (Connection connection : handoffs) {
+                connection.startUpgraded();
+            }
+            handoffs.clear();
+        }
+
+        // Closes connections idle for the idle timeout; while draining, every connection
+        // without a request in progress, on each pass
+        private void sweepIdleConnections() {
+            long now = System.currentTimeMillis();
+            boolean draining = GracefulShutdown.isDraining();
+            if (!draining && now - lastIdleSweep < 1000) {
+                return;
+            }
+            lastIdleSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && !connection.handling &&
+                    (now - connection.lastActivity > ServerConfig.IDLE_TIMEOUT_MILLIS || draining && connection.isIdle())) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final EventLoop loop;
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        // Null for plain-text connections
+        private final TlsChannel tls;
+        // Where requests are read from and responses written to: the TLS channel or the socket
+        private final ByteChannel io;
+        private final ArrayDeque<HttpResponse> writeQueue = new ArrayDeque<>();
+        // Responses queued while requests are handled off the loop; they go out after those
+        private final ArrayDeque<HttpResponse> deferred = new ArrayDeque<>();
+        private ByteBuffer headBuffer;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        private final HttpRequestParser parser = new HttpRequestParser(ServerConfig.MAX_HEADER_BYTES);
+        private final PipelineBatch batch;
+        private boolean closeAfterWrite;
+
+        // Set while the pipeline depth is reached; buffered requests wait until responses drain
+        private boolean readPaused;
+
+        // Set while requests are handled off the loop; nothing more is parsed until they are answered
+        private boolean handling;
+        // A request parsed while a batch was being handled, to be handled after it
+        private HttpRequest parked;
+
+        // Set while a request body is being streamed into its sink
+        private HttpRequest bodyRequest;
+        private RequestBodyDecoder bodyDecoder;
+        private WritableByteChannel bodySink;
+        private long lastActivity = System.currentTimeMillis();
+
+        // Set when the connection is upgraded to WebSocket or switches to HTTP/2
+        private HttpRequest upgradeRequest;
+        private byte[] upgradeLeftover;
+
+        // Cleared once the connection has been counted as closed
+        private boolean counted = true;
+
+        Connection(EventLoop loop, SelectionKey key, SocketChannel channel, TlsChannel tls) {
+            this.loop = loop;
+            this.key = key;
+            this.channel = channel;
+            this.tls = tls;
+            this.io = tls != null ? tls : channel;
+            this.batch = new PipelineBatch(ServerConfig.PIPELINE_DEPTH, channel.socket().getRemoteSocketAddress());
+            Metrics.connectionOpened();
+        }
+
+        void onReadable() throws IOException {
+            int read;
+            do {
+                if (!readBuffer.hasRemaining()) {
+                    if (closeAfterWrite) {
+                        // Nothing more is parsed; what the client still sends is dropped while
+                        // the responses before the close go out
+                        readBuffer.clear();
+                    } else if (readBuffer.capacity() >= ServerConfig.MAX_HEADER_BYTES) {
+                        // Only a request head can fill the buffer; bodies are drained as they
+                        // arrive. It is answered as the parser answers a head over the limit.
+                        rejectHead();
+                        return;
+                    } else {
+                        ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, ServerConfig.MAX_HEADER_BYTES));
+                        readBuffer.flip();
+                        larger.put(readBuffer);
+                        readBuffer = larger;
+                    }
+                }
+
+                read = io.read(readBuffer);
+                if (read == -1) {
+                    close();
+                    return;
+                }
+                Metrics.httpBytesIn(read);
+                lastActivity = System.currentTimeMillis();
+                processRequests();
+                // TLS may have received more records than fit in the buffer, which raise no
+                // read event of their own
+            } while (read > 0 && hasBufferedInput());
+        }
+
+        private boolean hasBufferedInput() {
+            return tls != null && tls.hasBufferedInput() && key.isValid() && !readPaused && !handling &&
+                   !closeAfterWrite && upgradeRequest == null;
+        }
+
+        private void processRequests() throws IOException {
+            do {
+                readPaused = false;
+                processBufferedRequests();
+            } while (readPaused && writeQueue.isEmpty() && key.isValid() && !handling);
+        }
+
+        // Handles every complete request in the read buffer, up to the pipeline depth
+        private void processBufferedRequests() throws IOException {
+            readBuffer.flip();
+            try {
+                while (!closeAfterWrite && upgradeRequest == null && !handling) {
+                    if (bodyDecoder != null) {
+                        if (!decodeBody()) {
+                            break; // wait for more of the body
+                        }
+                        continue;
+                    }
+
+                    HttpRequest request = parked;
+                    parked = null;
+                    if (request == null) {
+                        if (batch.size() + writeQueue.size() >= ServerConfig.PIPELINE_DEPTH) {
+                            if (!runBatch()) {
+                                break;
+                            }
+                            if (!writeResponses()) {
+                                readPaused = true;
+                                break;
+                            }
+                        }
+
+                        request = batch.slot();
+                        try {
+                            if (!parser.parse(readBuffer, request)) {
+                                break;
+                            }
+                        } catch (HttpRequestParser.ParseException e) {
+                            runBatch();
+                            closeAfterWrite = true;
+                            readBuffer.position(readBuffer.limit());
+                            enqueue(HttpResponse.badRequest().header(HttpResponse.CONNECTION, "close"));
+                            break;
+                        }
+
+                        if (PipelineBatch.canBatch(request)) {
+                            batch.add();
+                            if (request.isConnectionClose() || GracefulShutdown.isDraining()) {
+                                closeAfterWrite = true;
+                            }
+                            continue;
+                        }
+
+                        // Uploads and upgrades wait until every earlier request has been answered
+                        if (!runBatch()) {
+                            parked = request;
+                            break;
+                        }
+                    }
+
+                    if (request.isWebSocketUpgrade() ||
+                        ServerConfig.H2C && (request.isHttp2Preface() || request.isH2cUpgrade())) {
+                        upgradeLeftover = new byte[readBuffer.remaining()];
+                        readBuffer.get(upgradeLeftover);
+                        upgradeRequest = request;
+                        key.cancel();
+                        loop.handoffs.add(this);
+                        return;
+                    }
+
+                    RequestBodyDecoder decoder;
+                    try {
+                        decoder = RequestBodyDecoder.forRequest(request, ServerConfig.MAX_BODY_BYTES);
+                    } catch (RequestBodyDecoder.BodyTooLargeException e) {
+                        rejectBody();
+                        break;
+                    }
+
+                    if (decoder == null) {
+                        respond(request);
+                    } else {
+                        if (request.expectsContinue()) {
+                            enqueue(HttpResponse.expectContinue());
+                        }
+                        bodyRequest = request;
+                        bodyDecoder = decoder;
+                        bodySink = Main.openBodySink(request);
+                    }
+                }
+                runBatch();
+            } finally {
+                readBuffer.compact();
+            }
+            flush();
+        }
+
+        // Answers the batched requests, on the loop unless they are to run in parallel. False
+        // if they are being handled off the loop; the connection resumes once they are answered.
+        private boolean runBatch() {
+            if (handling) {
+                return false;
+            }
+            if (!batch.isParallel()) {
+                batch.runInto(writeQueue, Main::handleAdmittedHttpRequestNow);
+                return true;
+            }
+            handling = true;
+            batch.runAsync(Main::handleAdmittedHttpRequest, () -> loop.execute(() -> {
+                batch.takeResponses(writeQueue);
+                resume();
+            }));
+            return false;
+        }
+
+        // Back on the loop once requests handled off it have their responses queued: sends
+        // them and carries on with whatever the client sent meanwhile
+        private void resume() {
+            handling = false;
+            writeQueue.addAll(deferred);
+            deferred.clear();
+            if (!channel.isOpen()) {
+                releaseResponses();
+                return;
+            }
+            try {
+                processRequests();
+                if (hasBufferedInput()) {
+                    onReadable();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Feeds buffered bytes to the body decoder; true once the body is complete and answered
+        private boolean decodeBody() throws IOException {
+            try {
+                if (!bodyDecoder.decode(readBuffer, bodySink)) {
+                    return false;
+                }
+            } catch (RequestBodyDecoder.BodyTooLargeException e) {
+                abortBody();
+                rejectBody();
+                return false;
+            }
+
+            HttpRequest request = bodyRequest;
+            bodySink.close();
+            bodyRequest = null;
+            bodyDecoder = null;
+            bodySink = null;
+            respond(request);
+            return true;
+        }
+
+        private void respond(HttpRequest request) {
+            if (request.getBodyFile() != null) {
+                respondOffLoop(request);
+                return;
+            }
+            HttpResponse response;
+            try {
+                response = Main.handleAdmittedHttpRequestNow(request);
+            } finally {
+                request.discardBodyFile();
+            }
+            if (request.isConnectionClose() || GracefulShutdown.isDraining()) {
+                closeAfterWrite = true;
+            }
+            enqueue(response);
+        }
+
+        // Committing an upload can wait for fsyncs (see FileStore), which must not hold up the loop
+        private void respondOffLoop(HttpRequest request) {
+            handling = true;
+            Thread.ofVirtual().start(() -> {
+                HttpResponse response;
+                try {
+                    response = Main.handleAdmittedHttpRequest(request);
+                } catch (RuntimeException e) {
+                    ServerLog.error("Error handling upload: ", e);
+                    response = HttpResponse.serverError();
+                } finally {
+                    request.discardBodyFile();
+                }
+                HttpResponse answer = response;
+                loop.execute(() -> {
+                    writeQueue.add(answer);
+                    if (request.isConnectionClose() || GracefulShutdown.isDraining()) {
+                        closeAfterWrite = true;
+                    }
+                    resume();
+                });
+            });
+        }
+
+        // Like a parse error: the requests before it are answered, then a 400 and the close
+        private void rejectHead() throws IOException {
+            runBatch();
+            closeAfterWrite = true;
+            readBuffer.clear();
+            enqueue(HttpResponse.badRequest().header(HttpResponse.CONNECTION, "close"));
+            flush();
+        }
+
+        // The rest of the body is never read, so the connection cannot be reused
+        private void rejectBody() {
+            closeAfterWrite = true;
+            readBuffer.position(readBuffer.limit());
+            enqueue(HttpResponse.contentTooLarge().header(HttpResponse.CONNECTION, "close"));
+        }
+
+        private void abortBody() {
+            if (bodyRequest == null) {
+                return;
+            }
+            try {
+                bodySink.close();
+            } catch (IOException e) {
+                ServerLog.error("Error closing request body: ", e.getMessage());
+            }
+            bodyRequest.discardBodyFile();
+            bodyRequest = null;
+            bodyDecoder = null;
+            bodySink = null;
+        }
+
+        // No request being read, handled or answered
+        boolean isIdle() {
+            return bodyRequest == null && batch.size() == 0 && writeQueue.isEmpty() && readBuffer.position() == 0 &&
+                   upgradeRequest == null && !handling;
+        }
+
+        private void enqueue(HttpResponse response) {
+            (handling ? deferred : writeQueue).add(response);
+        }
+
+        void onWritable() throws IOException {
+            flush();
+            if (readPaused && writeQueue.isEmpty() && key.isValid() && !handling) {
+                processRequests();
+            }
+            if (hasBufferedInput()) {
+                onReadable();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!writeResponses()) {
+                key.interestOps(readPaused || handling ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (handling) {
+                // Nothing to do until the requests being handled are answered
+                key.interestOps(0);
+            } else if (closeAfterWrite) {
+                close();
+            } else if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        // Writes queued responses, batched into as few writes as possible; true once all are sent
+        private boolean writeResponses() throws IOException {
+            // TLS may still hold records from the handshake or the last write
+            if (tls != null && !tls.flush()) {
+                return false;
+            }
+            if (writeQueue.isEmpty()) {
+                return true;
+            }
+            if (headBuffer == null) {
+                // Allocated on first use so connections that never get a response stay small
+                headBuffer = ByteBuffer.allocate(HttpResponse.HEAD_BUFFER_BYTES);
+            }
+            return HttpResponse.writeAll(writeQueue, io, headBuffer) && (tls == null || tls.flush());
+        }
+
+        void startUpgraded() {
+            try {
+                channel.configureBlocking(true);
+                // Responses to requests pipelined ahead of the upgrade go out first
+                writeResponses();
+                Socket socket = channel.socket();
+                InputStream networkIn = tls != null ? tls.newInputStream() : socket.getInputStream();
+                InputStream in = new SequenceInputStream(new ByteArrayInputStream(upgradeLeftover), networkIn);
+                GatheringByteChannel out = tls != null ? tls : channel;
+                if (upgradeRequest.isWebSocketUpgrade()) {
+                    // From here on the connection is counted as a WebSocket
+                    countClosed();
+                    UPGRADED_THREADS.newThread(() -> Main.handleWebSocketUpgrade(socket, out, in, upgradeRequest.getWebSocketKey(),
+                            upgradeRequest.getWebSocketExtensions(), upgradeRequest.getPath())).start();
+                    return;
+                }
+
+                // An HTTP/2 connection stays counted, and is closed, once its thread is done
+                socket.setSoTimeout(ServerConfig.IDLE_TIMEOUT_MILLIS);
+                HttpRequest upgrade = upgradeRequest.isHttp2Preface() ? null : upgradeRequest;
+                UPGRADED_THREADS.newThread(() -> {
+                    try {
+                        Main.handleHttp2(socket, out, in, upgrade);
+                    } finally {
+                        close();
+                    }
+                }).start();
+            } catch (IOException e) {
+                ServerLog.error("Error starting upgraded connection: ", e.getMessage());
+                close();
+            }
+        }
+
+        void close() {
+            key.cancel();
+            countClosed();
+            abortBody();
+            releaseResponses();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.error("Error closing socket: ", e.getMessage());
+            }
+        }
+
+        private void releaseResponses() {
+            HttpResponse response;
+            while ((response = writeQueue.poll()) != null) {
+                response.release();
+            }
+            while ((response = deferred.poll()) != null) {
+                response.release();
+            }
+        }
+
+        private void countClosed() {
+            if (counted) {
+                counted = false;
+                Metrics.connectionClosed();
+            }
+        }
+    }
+}
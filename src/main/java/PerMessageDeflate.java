@@ -0,0 +1,199 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The RFC 7692 {@code permessage-deflate} extension for one WebSocket connection.
+ *
+ * Messages are raw deflate streams flushed with SYNC_FLUSH, minus the trailing
+ * {@code 00 00 ff ff}. With context takeover (the default) the deflater and inflater keep
+ * their sliding windows between messages, so a chatty connection that repeats itself
+ * compresses far better than message by message. The price is per-connection zlib state,
+ * allocated on first use: roughly 256 KB to compress and 40 KB to decompress.
+ *
+ * The deflater is only used by the connection's writer and the inflater only by its reader,
+ * so neither needs locking, and each side frees its own state when it finishes.
+ */
+public class PerMessageDeflate {
+    public static final String EXTENSION = "permessage-deflate";
+
+    private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+    private final boolean serverNoContextTakeover;
+    private final boolean clientNoContextTakeover;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] deflated = new byte[1024];
+
+    private PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+    }
+
+    /**
+     * Picks the first acceptable {@code permessage-deflate} offer from a
+     * Sec-WebSocket-Extensions request header.
+     *
+     * @return null if there is no offer this server can honour
+     */
+    public static PerMessageDeflate negotiate(String extensions) {
+        if (extensions == null) {
+            return null;
+        }
+        for (String offer : extensions.split(",")) {
+            String[] params = offer.split(";");
+            if (!params[0].trim().equalsIgnoreCase(EXTENSION)) {
+                continue;
+            }
+            PerMessageDeflate accepted = accept(params);
+            if (accepted != null) {
+                return accepted;
+            }
+        }
+        return null;
+    }
+
+    // Checks the parameters of one offer; null if any is unknown, repeated or unsupported
+    private static PerMessageDeflate accept(String[] params) {
+        boolean serverNoContextTakeover = false;
+        boolean clientNoContextTakeover = false;
+        boolean serverMaxWindowBits = false;
+        boolean clientMaxWindowBits = false;
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            String value = null;
+            int equals = param.indexOf('=');
+            if (equals >= 0) {
+                value = param.substring(equals + 1).trim().replace("\"", "");
+                param = param.substring(0, equals).trim();
+            }
+            switch (param.toLowerCase()) {
+                case "server_no_context_takeover":
+                    if (serverNoContextTakeover || value != null) return null;
+                    serverNoContextTakeover = true;
+                    break;
+                case "client_no_context_takeover":
+                    if (clientNoContextTakeover || value != null) return null;
+                    clientNoContextTakeover = true;
+                    break;
+                case "server_max_window_bits":
+                    // java.util.zip always deflates with a 32 KB window, so only 15 can be honoured
+                    if (serverMaxWindowBits || !"15".equals(value)) return null;
+                    serverMaxWindowBits = true;
+                    break;
+                case "client_max_window_bits":
+                    // Any client window fits the 32 KB inflater window, so the value is not echoed
+                    if (clientMaxWindowBits || (value != null && !isWindowBits(value))) return null;
+                    clientMaxWindowBits = true;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return new PerMessageDeflate(serverNoContextTakeover, clientNoContextTakeover);
+    }
+
+    private static boolean isWindowBits(String value) {
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= 15;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** The Sec-WebSocket-Extensions value that accepts this configuration. */
+    public String responseHeader() {
+        StringBuilder header = new StringBuilder(EXTENSION);
+        if (serverNoContextTakeover) {
+            header.append("; server_no_context_takeover");
+        }
+        if (clientNoContextTakeover) {
+            header.append("; client_no_context_takeover");
+        }
+        return header.toString();
+    }
+
+    /**
+     * Compresses the payload of an unfragmented data frame into a new frame with RSV1 set.
+     * Frames must be compressed in the order they are sent, as each one may refer back to
+     * the ones before it.
+     */
+    public ByteBuffer compress(ByteBuffer frame) {
+        if (deflater == null) {
+            deflater = new Deflater(ServerConfig.COMPRESSION_LEVEL, true);
+        }
+        ByteBuffer payload = WebSocketCodec.payloadOf(frame);
+        deflater.setInput(payload);
+
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(deflated, length, deflated.length - length, Deflater.SYNC_FLUSH);
+            if (length < deflated.length) {
+                break;
+            }
+            deflated = Arrays.copyOf(deflated, deflated.length * 2);
+        }
+        if (serverNoContextTakeover) {
+            deflater.reset();
+        }
+
+        // A sync flush always ends with an empty stored block, which the receiver adds back
+        return WebSocketCodec.encodeFrame(frame.get(frame.position()) & 0x0F, true, deflated, 0, length - TAIL.length);
+    }
+
+    /**
+     * Decompresses a complete message into {@code out}, replacing its contents.
+     *
+     * @throws WebSocketCodec.ProtocolException if the data is corrupt or inflates past {@code maxBytes}
+     */
+    public void decompress(byte[] data, int length, WebSocketCodec.Message out, int maxBytes) throws WebSocketCodec.ProtocolException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        out.length = 0;
+        try {
+            inflater.setInput(data, 0, length);
+            inflate(out, maxBytes);
+            inflater.setInput(TAIL);
+            inflate(out, maxBytes);
+        } catch (DataFormatException e) {
+            throw new WebSocketCodec.ProtocolException(WebSocketCodec.CLOSE_INVALID_DATA, "Corrupt compressed message");
+        }
+        if (clientNoContextTakeover) {
+            inflater.reset();
+        }
+    }
+
+    private void inflate(WebSocketCodec.Message out, int maxBytes) throws DataFormatException, WebSocketCodec.ProtocolException {
+        while (true) {
+            if (out.length == out.data.length) {
+                out.grow(out.length + 1, maxBytes);
+            }
+            int n = inflater.inflate(out.data, out.length, out.data.length - out.length);
+            out.length += n;
+            if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+                return;
+            }
+        }
+    }
+
+    /** Frees the compressing side; called by the connection's writer once it is done. */
+    public void releaseDeflater() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    /** Frees the decompressing side; called by the connection's reader once it is done. */
+    public void releaseInflater() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
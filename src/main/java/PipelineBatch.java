@@ -0,0 +1,141 @@
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Collects the requests of a pipelined burst that can be answered independently: GETs and
+ * HEADs without a body. Anything else (an upload, an upgrade) ends the batch, so side
+ * effects still happen in request order. When a batch holds several requests they are
+ * handled in parallel, and responses are always queued in request order.
+ *
+ * A batch belongs to one connection and owns one reusable {@link HttpRequest} per slot.
+ * Thread-per-connection engines wait for the batch with {@link #runInto}; the nio engine
+ * starts it with {@link #runAsync} so its event loop never blocks on a handler.
+ */
+public class PipelineBatch {
+    private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final HttpRequest[] requests;
+    private final SocketAddress remoteAddress;
+    private int size;
+
+    // Filled by the handlers of a batch started with runAsync
+    private final HttpResponse[] responses;
+    private final AtomicInteger unanswered = new AtomicInteger();
+
+    public PipelineBatch(int depth, SocketAddress remoteAddress) {
+        this.requests = new HttpRequest[Math.max(1, depth)];
+        this.responses = new HttpResponse[requests.length];
+        this.remoteAddress = remoteAddress;
+    }
+
+    /** The request object the next request should be parsed into. */
+    public HttpRequest slot() {
+        if (requests[size] == null) {
+            requests[size] = new HttpRequest();
+            requests[size].setRemoteAddress(remoteAddress);
+        }
+        return requests[size];
+    }
+
+    /** Keeps the request in the current {@link #slot} as part of the batch. */
+    public void add() {
+        size++;
+    }
+
+    public int size() { return size; }
+    public boolean isFull() { return size == requests.length; }
+
+    /** Whether the batch holds several requests that are to be handled in parallel. */
+    public boolean isParallel() {
+        return size > 1 && ServerConfig.PIPELINE_PARALLEL;
+    }
+
+    public static boolean canBatch(HttpRequest request) {
+        String method = request.getMethod();
+        return ("GET".equals(method) || "HEAD".equals(method)) &&
+               request.getContentLength() == 0 && !request.isChunked() &&
+               !request.isWebSocketUpgrade() && !request.isH2cUpgrade();
+    }
+
+    /** Handles every batched request and appends the responses, in request order, to {@code out}. */
+    public void runInto(ArrayDeque<HttpResponse> out, Function<HttpRequest, HttpResponse> handler) {
+        if (size == 0) {
+            return;
+        }
+        if (!isParallel()) {
+            for (int i = 0; i < size; i++) {
+                out.add(handler.apply(requests[i]));
+            }
+            size = 0;
+            return;
+        }
+
+        List<Future<HttpResponse>> pending = new ArrayList<>(size - 1);
+        for (int i = 1; i < size; i++) {
+            HttpRequest request = requests[i];
+            pending.add(executor.submit(() -> handler.apply(request)));
+        }
+        out.add(handler.apply(requests[0]));
+        for (Future<HttpResponse> response : pending) {
+            out.add(await(response));
+        }
+        size = 0;
+    }
+
+    /**
+     * Handles every batched request on its own virtual thread and returns at once. When the
+     * last response is ready, {@code done} runs on the thread that produced it; the responses
+     * are then collected with {@link #takeResponses}. The batch must not be touched meanwhile.
+     */
+    public void runAsync(Function<HttpRequest, HttpResponse> handler, Runnable done) {
+        unanswered.set(size);
+        for (int i = 0; i < size; i++) {
+            int slot = i;
+            executor.execute(() -> {
+                responses[slot] = handle(handler, requests[slot]);
+                if (unanswered.decrementAndGet() == 0) {
+                    done.run();
+                }
+            });
+        }
+    }
+
+    /** Appends the responses of a batch started with {@link #runAsync}, in request order. */
+    public void takeResponses(ArrayDeque<HttpResponse> out) {
+        for (int i = 0; i < size; i++) {
+            out.add(responses[i]);
+        }
+        Arrays.fill(responses, 0, size, null);
+        size = 0;
+    }
+
+    private static HttpResponse handle(Function<HttpRequest, HttpResponse> handler, HttpRequest request) {
+        try {
+            return handler.apply(request);
+        } catch (RuntimeException e) {
+            ServerLog.error("Error handling pipelined request: ", e);
+            return HttpResponse.serverError();
+        }
+    }
+
+    private static HttpResponse await(Future<HttpResponse> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return HttpResponse.serverError();
+        } catch (ExecutionException e) {
+            ServerLog.error("Error handling pipelined request: ", e.getCause());
+            return HttpResponse.serverError();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Incrementally decodes a request body, fixed-length or {@code Transfer-Encoding: chunked},
+ * into a sink channel. Callers feed it whatever bytes they have; it consumes only body bytes
+ * and leaves anything after the body (a pipelined request) in the buffer. Memory use is the
+ * caller's read buffer regardless of the body size.
+ */
+public class RequestBodyDecoder {
+    private enum State { DATA, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILER, DONE }
+
+    private final boolean chunked;
+    private final long maxBytes;
+    private State state;
+    private long remaining;
+    private long received;
+
+    // Chunk-size and trailer lines can straddle reads, so they are collected here
+    private final StringBuilder line = new StringBuilder();
+
+    private RequestBodyDecoder(boolean chunked, long length, long maxBytes) {
+        this.chunked = chunked;
+        this.maxBytes = maxBytes;
+        this.remaining = length;
+        this.state = chunked ? State.CHUNK_SIZE : (length > 0 ? State.DATA : State.DONE);
+    }
+
+    /** Returns a decoder for the request's body, or null if the request has no body. */
+    public static RequestBodyDecoder forRequest(HttpRequest request, long maxBytes) throws BodyTooLargeException {
+        if (request.isChunked()) {
+            return new RequestBodyDecoder(true, 0, maxBytes);
+        }
+        long length = request.getContentLength();
+        if (length <= 0) {
+            return null;
+        }
+        if (length > maxBytes) {
+            throw new BodyTooLargeException();
+        }
+        return new RequestBodyDecoder(false, length, maxBytes);
+    }
+
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Consumes body bytes from {@code in} and writes the decoded data to {@code sink}.
+     *
+     * @return true once the whole body has been read
+     */
+    public boolean decode(ByteBuffer in, WritableByteChannel sink) throws IOException {
+        while (state != State.DONE && in.hasRemaining()) {
+            switch (state) {
+                case DATA:
+                case CHUNK_DATA:
+                    copy(in, sink);
+                    if (remaining == 0) {
+                        state = chunked ? State.CHUNK_DATA_END : State.DONE;
+                    }
+                    break;
+
+                case CHUNK_SIZE:
+                    if (readLine(in)) {
+                        startChunk(line.toString());
+                        line.setLength(0);
+                    }
+                    break;
+
+                case CHUNK_DATA_END:
+                    if (readLine(in)) {
+                        if (line.length() != 0) {
+                            throw new IOException("Malformed chunk terminator");
+                        }
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+
+                case TRAILER:
+                    if (readLine(in)) {
+                        // Trailer fields are ignored; an empty line ends the body
+                        if (line.length() == 0) {
+                            state = State.DONE;
+                        }
+                        line.setLength(0);
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        return state == State.DONE;
+    }
+
+    private void copy(ByteBuffer in, WritableByteChannel sink) throws IOException {
+        int count = (int) Math.min(in.remaining(), remaining);
+        ByteBuffer slice = in.slice(in.position(), count);
+        while (slice.hasRemaining()) {
+            sink.write(slice);
+        }
+        in.position(in.position() + count);
+        remaining -= count;
+    }
+
+    private void startChunk(String sizeLine) throws IOException {
+        int extension = sizeLine.indexOf(';');
+        String hex = (extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim();
+        long size;
+        try {
+            size = Long.parseLong(hex, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + sizeLine);
+        }
+        if (size < 0) {
+            throw new IOException("Malformed chunk size: " + sizeLine);
+        }
+
+        received += size;
+        if (received > maxBytes) {
+            throw new BodyTooLargeException();
+        }
+        remaining = size;
+        state = size == 0 ? State.TRAILER : State.CHUNK_DATA;
+    }
+
+    // Appends bytes up to the next CRLF to line; true once the whole line has been read
+    private boolean readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                int last = line.length() - 1;
+                if (last >= 0 && line.charAt(last) == '\r') {
+                    line.setLength(last);
+                }
+                return true;
+            }
+            if (line.length() >= 8192) {
+                throw new IOException("Chunk line too long");
+            }
+            line.append((char) b);
+        }
+        return false;
+    }
+
+    /** Thrown when a body is larger than the configured maximum. */
+    public static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public BodyTooLargeException() {
+            super("Request body exceeds " + ServerConfig.MAX_BODY_BYTES + " bytes");
+        }
+    }
+}
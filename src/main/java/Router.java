@@ -0,0 +1,235 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dispatches requests to {@link HttpHandler}s by path and method.
+ *
+ * Routes are path patterns such as {@code /files/{name}}: literal segments, and
+ * {@code {name}} segments that match any single segment and are passed to the handler as
+ * path parameters. They are compiled into a trie with one level per segment. A lookup walks
+ * the request path once, finding each literal segment in a small hash table keyed by the
+ * segment's characters, so its cost depends on the length of the path and not on how many
+ * routes there are, and it allocates nothing but the parameter values. Literal segments are
+ * preferred over parameters; a parameter is only tried if the literal branch leads nowhere.
+ *
+ * The query string is not part of the match. A path that matches a route but not its
+ * methods is answered with 405 and an {@code Allow} header; HEAD falls back to the GET
+ * handler, whose response is sent without its body (see {@link HttpResponse#omitBody}).
+ * Every route has its own {@link Metrics.Route}, which is set on matched requests.
+ *
+ * Routes are added while the server starts; lookups are not synchronised against that.
+ */
+public class Router {
+    private final Node root = new Node();
+
+    /** Registers {@code handler} for {@code method} requests to paths matching {@code pattern}. */
+    public Router add(String method, String pattern, HttpHandler handler) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Route must start with '/': " + pattern);
+        }
+        Node node = root;
+        List<String> parameterNames = new ArrayList<>();
+        if (pattern.length() > 1) {
+            for (String segment : pattern.substring(1).split("/", -1)) {
+                if (segment.startsWith("{") && segment.endsWith("}")) {
+                    String name = segment.substring(1, segment.length() - 1);
+                    node = node.parameterChild(name, pattern);
+                    parameterNames.add(name);
+                } else {
+                    node = node.literalChild(segment);
+                }
+            }
+        }
+        if (node.route == null) {
+            node.route = new Route(pattern, parameterNames.toArray(new String[0]));
+        }
+        node.route.add(method, handler);
+        return this;
+    }
+
+    public Router get(String pattern, HttpHandler handler) { return add("GET", pattern, handler); }
+    public Router post(String pattern, HttpHandler handler) { return add("POST", pattern, handler); }
+
+    /** The matched handler's response, 405 if the path matched but the method did not, or null. */
+    public HttpResponse route(HttpRequest request) {
+        String path = request.getPath();
+        if (path == null || path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        int end = path.indexOf('?');
+        if (end < 0) {
+            end = path.length();
+        }
+        Route route = end == 1 ? root.route : match(root, path, 1, end, request, 0);
+        if (route == null) {
+            return null;
+        }
+
+        request.setRoute(route.metrics);
+        request.setPathParameterNames(route.parameterNames);
+        HttpHandler handler = route.handler(request.getMethod());
+        if (handler == null) {
+            return HttpResponse.methodNotAllowed().header(HttpResponse.ALLOW, route.allow);
+        }
+        return handler.handle(request);
+    }
+
+    // Matches the path from start, one segment per level; parameter values are stored on
+    // the way back out, so branches that fail leave nothing behind
+    private static Route match(Node node, String path, int start, int end, HttpRequest request, int parameter) {
+        int slash = path.indexOf('/', start);
+        int segmentEnd = slash < 0 || slash > end ? end : slash;
+        boolean last = segmentEnd == end;
+
+        Node literal = node.findLiteral(path, start, segmentEnd);
+        if (literal != null) {
+            Route route = last ? literal.route : match(literal, path, segmentEnd + 1, end, request, parameter);
+            if (route != null) {
+                return route;
+            }
+        }
+        Node child = node.parameter;
+        if (child != null) {
+            Route route = last ? child.route : match(child, path, segmentEnd + 1, end, request, parameter + 1);
+            if (route != null) {
+                request.setPathParameter(parameter, path.substring(start, segmentEnd));
+                return route;
+            }
+        }
+        return null;
+    }
+
+    /** A pattern with its handlers by method. */
+    private static final class Route {
+        final String pattern;
+        final String[] parameterNames;
+        final Metrics.Route metrics;
+        // Parallel arrays; methods are the parser's interned names, and there are only a few
+        String[] methods = new String[0];
+        HttpHandler[] handlers = new HttpHandler[0];
+        String allow = "";
+
+        Route(String pattern, String[] parameterNames) {
+            this.pattern = pattern;
+            this.parameterNames = parameterNames;
+            this.metrics = Metrics.route(pattern);
+        }
+
+        void add(String method, HttpHandler handler) {
+            for (String existing : methods) {
+                if (existing.equals(method)) {
+                    throw new IllegalArgumentException("Duplicate route: " + method + " " + pattern);
+                }
+            }
+            methods = Arrays.copyOf(methods, methods.length + 1);
+            handlers = Arrays.copyOf(handlers, handlers.length + 1);
+            methods[methods.length - 1] = method;
+            handlers[handlers.length - 1] = handler;
+            allow = allow(methods);
+        }
+
+        /** The {@code Allow} value for {@code methods}: HEAD is served by GET, so it is listed with it. */
+        private static String allow(String[] methods) {
+            List<String> allowed = new ArrayList<>(Arrays.asList(methods));
+            if (allowed.contains("GET") && !allowed.contains("HEAD")) {
+                allowed.add(allowed.indexOf("GET") + 1, "HEAD");
+            }
+            return String.join(", ", allowed);
+        }
+
+        HttpHandler handler(String method) {
+            HttpHandler get = null;
+            for (int i = 0; i < methods.length; i++) {
+                if (methods[i].equals(method)) {
+                    return handlers[i];
+                }
+                if ("GET".equals(methods[i])) {
+                    get = handlers[i];
+                }
+            }
+            return "HEAD".equals(method) ? get : null;
+        }
+    }
+
+    /** One path segment of the trie. */
+    private static final class Node {
+        // Literal children in an open-addressed table, looked up by a segment of the path
+        // without cutting it out as a string
+        private String[] keys = new String[4];
+        private Node[] children = new Node[4];
+        private int size;
+
+        private Node parameter;
+        private String parameterName;
+        private Route route;
+
+        Node findLiteral(String path, int start, int end) {
+            int length = end - start;
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            int mask = keys.length - 1;
+            for (int slot = spread(hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                String key = keys[slot];
+                if (key.length() == length && path.regionMatches(start, key, 0, length)) {
+                    return children[slot];
+                }
+            }
+            return null;
+        }
+
+        Node literalChild(String segment) {
+            Node existing = findLiteral(segment, 0, segment.length());
+            if (existing != null) {
+                return existing;
+            }
+            // Kept at most half full so probes stay short
+            if ((size + 1) * 2 > keys.length) {
+                rehash(keys.length * 2);
+            }
+            Node child = new Node();
+            insert(segment, child);
+            size++;
+            return child;
+        }
+
+        Node parameterChild(String name, String pattern) {
+            if (parameter == null) {
+                parameter = new Node();
+                parameterName = name;
+            } else if (!parameterName.equals(name)) {
+                throw new IllegalArgumentException("Parameter {" + name + "} of " + pattern +
+                        " conflicts with {" + parameterName + "} at the same position");
+            }
+            return parameter;
+        }
+
+        private void rehash(int capacity) {
+            String[] oldKeys = keys;
+            Node[] oldChildren = children;
+            keys = new String[capacity];
+            children = new Node[capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    insert(oldKeys[i], oldChildren[i]);
+                }
+            }
+        }
+
+        private void insert(String key, Node child) {
+            int mask = keys.length - 1;
+            int slot = spread(key.hashCode()) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            children[slot] = child;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
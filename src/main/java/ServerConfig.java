@@ -0,0 +1,162 @@
+/**
+ * Startup options, read once from system properties.
+ *
+ * Example: {@code java -Dserver.engine=nio -Dserver.ioThreads=8 -jar target/networking-http-server.jar}
+ */
+public final class ServerConfig {
+    public static final int PORT = Integer.getInteger("server.port", 4221);
+
+    // Port for TLS connections, served next to the plain-text port by the same engine; 0 disables TLS
+    public static final int TLS_PORT = Integer.getInteger("server.tlsPort", 0);
+
+    // PKCS#12 keystore holding the server's key and certificate chain (gen-keystore.sh makes a self-signed one)
+    public static final String TLS_KEYSTORE = System.getProperty("server.tlsKeystore", "keystore.p12");
+    public static final String TLS_KEYSTORE_PASSWORD = System.getProperty("server.tlsKeystorePassword", "changeit");
+
+    // TLS versions accepted
+    public static final String[] TLS_PROTOCOLS = System.getProperty("server.tlsProtocols", "TLSv1.3,TLSv1.2").split(",");
+
+    // Sessions remembered for resumption, and how long a session may be resumed
+    public static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("server.tlsSessionCacheSize", 20000);
+    public static final int TLS_SESSION_TIMEOUT_SECONDS = Integer.getInteger("server.tlsSessionTimeoutSeconds", 3600);
+
+    // Whether sessions are resumed from stateless tickets held by the client rather than the server's cache
+    public static final boolean TLS_SESSION_TICKETS = Boolean.parseBoolean(System.getProperty("server.tlsSessionTickets", "true"));
+
+    // Whether cleartext HTTP/2 is served, to clients that send the HTTP/2 connection preface
+    // straight away or ask for it with Upgrade: h2c
+    public static final boolean H2C = Boolean.parseBoolean(System.getProperty("server.h2c", "true"));
+
+    // Streams a client may have open at once on one HTTP/2 connection; more are refused
+    public static final int H2_MAX_CONCURRENT_STREAMS = Integer.getInteger("server.h2MaxConcurrentStreams", 100);
+
+    // Request body bytes a client may send on each HTTP/2 stream, and on the connection as a
+    // whole, before it has to wait for the server to catch up (the flow-control window)
+    public static final int H2_INITIAL_WINDOW_BYTES = Integer.getInteger("server.h2InitialWindowBytes", 1024 * 1024);
+
+    // "blocking" (one platform thread per connection), "virtual" (one virtual thread per
+    // connection) or "nio" (selector event loops)
+    public static final String ENGINE = System.getProperty("server.engine", "blocking");
+
+    // Pending-connection queue length passed to the listening socket
+    public static final int ACCEPT_BACKLOG = Integer.getInteger("server.acceptBacklog", 50);
+
+    // Acceptor threads per listening port; with SO_REUSEPORT each has a listening socket of its own
+    public static final int ACCEPTORS = Integer.getInteger("server.acceptors", Runtime.getRuntime().availableProcessors());
+
+    // Whether listening sockets are bound with SO_REUSEPORT where the platform supports it, which
+    // spreads accepts across the acceptors and lets a new server start on the port while the old one
+    // drains. Off by default: with it, a second server started on the port by mistake binds without
+    // error and takes a share of the connections
+    public static final boolean REUSE_PORT = Boolean.parseBoolean(System.getProperty("server.reusePort", "false"));
+
+    // How long a graceful shutdown waits for in-flight requests and connections to finish
+    public static final int SHUTDOWN_TIMEOUT_MILLIS = Integer.getInteger("server.shutdownTimeoutMillis", 20000);
+
+    // Cap on requests being handled at once, by every engine and HTTP/2; 0 disables it
+    public static final int MAX_IN_FLIGHT = Integer.getInteger("server.maxInFlight", 0);
+
+    // How long a request waits for an in-flight slot before it is rejected with 503; requests
+    // handled on a nio event loop never wait, since that would hold up the loop
+    public static final int ADMISSION_TIMEOUT_MILLIS = Integer.getInteger("server.admissionTimeoutMillis", 100);
+
+    // Number of selector event-loop threads used by the nio engine
+    public static final int IO_THREADS = Integer.getInteger("server.ioThreads", Runtime.getRuntime().availableProcessors());
+
+    // Idle keep-alive connections are closed after this many milliseconds
+    public static final int IDLE_TIMEOUT_MILLIS = Integer.getInteger("server.idleTimeoutMillis", 30000);
+
+    // Largest request head (request line + headers) the nio engine will buffer
+    public static final int MAX_HEADER_BYTES = Integer.getInteger("server.maxHeaderBytes", 64 * 1024);
+
+    // Largest request body accepted, fixed-length or chunked; larger uploads get 413
+    public static final long MAX_BODY_BYTES = Long.getLong("server.maxBodyBytes", 1024L * 1024 * 1024);
+
+    // Most pipelined requests a connection may have parsed but not yet fully answered;
+    // further requests stay unread until responses drain
+    public static final int PIPELINE_DEPTH = Integer.getInteger("server.pipelineDepth", 16);
+
+    // Whether a burst of pipelined GETs is handled in parallel (responses stay in order)
+    public static final boolean PIPELINE_PARALLEL = Boolean.parseBoolean(System.getProperty("server.pipelineParallel", "true"));
+
+    // Bodies shorter than this are sent uncompressed; the coding overhead outweighs the savings
+    public static final int COMPRESSION_MIN_BYTES = Integer.getInteger("server.compressionMinBytes", 256);
+
+    // In-memory bodies longer than this are compressed while they are sent, in chunks
+    public static final int COMPRESSION_STREAM_BYTES = Integer.getInteger("server.compressionStreamBytes", 64 * 1024);
+
+    // Deflate level, 1 (fastest) to 9 (smallest)
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("server.compressionLevel", 6);
+
+    // Frames a WebSocket connection may have queued for sending before its peer counts as slow
+    public static final int WS_OUTBOUND_QUEUE_FRAMES = Integer.getInteger("server.wsOutboundQueueFrames", 1024);
+
+    // "drop" (discard new frames), "coalesce" (discard the oldest queued ones) or "disconnect"
+    public static final WebSocketConnection.SlowConsumerPolicy WS_SLOW_CONSUMER_POLICY =
+            WebSocketConnection.SlowConsumerPolicy.valueOf(System.getProperty("server.wsSlowConsumerPolicy", "drop").toUpperCase());
+
+    // A WebSocket connection that has sent nothing for this long is pinged; 0 disables pings,
+    // leaving idle connections to the idle timeout instead
+    public static final long WS_PING_INTERVAL_MILLIS = Long.getLong("server.wsPingIntervalMillis", 30000);
+
+    // A pinged WebSocket connection that sends nothing back within this long is closed
+    public static final long WS_PONG_TIMEOUT_MILLIS = Long.getLong("server.wsPongTimeoutMillis", 10000);
+
+    // Largest WebSocket frame payload accepted; larger frames close the connection with 1009
+    public static final int WS_MAX_FRAME_BYTES = Integer.getInteger("server.wsMaxFrameBytes", 1024 * 1024);
+
+    // Largest WebSocket message accepted after reassembly and decompression
+    public static final int WS_MAX_MESSAGE_BYTES = Integer.getInteger("server.wsMaxMessageBytes", 4 * 1024 * 1024);
+
+    // Whether permessage-deflate is offered to WebSocket clients that ask for it
+    public static final boolean WS_DEFLATE = Boolean.parseBoolean(System.getProperty("server.wsDeflate", "true"));
+
+    // Least severe messages that are logged: "off", "error", "info" (includes the access log) or "debug"
+    public static final ServerLog.Level LOG_LEVEL =
+            ServerLog.Level.valueOf(System.getProperty("server.logLevel", "info").toUpperCase());
+
+    // Fraction of requests written to the access log, from 0.0 to 1.0
+    public static final double ACCESS_LOG_SAMPLE = Double.parseDouble(System.getProperty("server.accessLogSample", "1.0"));
+
+    // Log entries buffered for the writer thread
+    public static final int LOG_BUFFER_ENTRIES = Integer.getInteger("server.logBufferEntries", 8192);
+
+    // "drop" (discard entries while the buffer is full, never blocking) or "block" (wait for room)
+    public static final ServerLog.Overflow LOG_OVERFLOW =
+            ServerLog.Overflow.valueOf(System.getProperty("server.logOverflow", "drop").toUpperCase());
+
+    // Log file; empty logs to stdout
+    public static final String LOG_FILE = System.getProperty("server.logFile", "");
+
+    // The log file is rotated once it would grow past this size
+    public static final long LOG_FILE_MAX_BYTES = Long.getLong("server.logFileMaxBytes", 64L * 1024 * 1024);
+
+    // Rotated log files kept (server.log.1 ... server.log.N)
+    public static final int LOG_FILE_COUNT = Integer.getInteger("server.logFileCount", 5);
+
+    // How durable an upload to /files/ is when it is answered: "async" (renamed into place, left
+    // to the OS to write back), "batched" (journaled in group commits that share one sync) or
+    // "sync" (synced on its own before the response)
+    public static final FileStore.Durability FILE_DURABILITY =
+            FileStore.Durability.valueOf(System.getProperty("server.fileDurability", "async").toUpperCase());
+
+    // Most uploads synced together in one group commit
+    public static final int FILE_COMMIT_BATCH = Integer.getInteger("server.fileCommitBatch", 256);
+
+    // Size the upload journal grows to before its files are synced and it is emptied (batched only)
+    public static final long FILE_JOURNAL_BYTES = Long.getLong("server.fileJournalBytes", 64L * 1024 * 1024);
+
+    // Larger uploads are fsynced in place instead of journaled (batched only). A journaled upload
+    // is written twice, to the journal and to its file, which for a large one costs more than the
+    // fsync it saves; 1 MiB keeps each copy to around a millisecond, the order of one fsync
+    public static final long FILE_JOURNAL_MAX_ENTRY_BYTES = Long.getLong("server.fileJournalMaxEntryBytes", 1024 * 1024);
+
+    // Byte budget of the /files/ response cache; 0 disables it
+    public static final long FILE_CACHE_BYTES = Long.getLong("server.fileCacheBytes", 64L * 1024 * 1024);
+
+    // Files larger than this are always streamed from disk instead of cached
+    public static final long FILE_CACHE_MAX_ENTRY_BYTES = Long.getLong("server.fileCacheMaxEntryBytes", 1024 * 1024);
+
+    private ServerConfig() {
+    }
+}
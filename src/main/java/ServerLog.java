@@ -0,0 +1,330 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log: diagnostic messages and one access line per request.
+ *
+ * Logging threads never write. They claim a slot in a bounded ring with a single
+ * compare-and-set, fill it in and publish it; formatting and I/O happen on one background
+ * thread that drains the ring in batches into stdout or a size-rotated file. When the ring
+ * is full the entry is dropped and counted ({@code server.logOverflow=drop}, the default),
+ * or the logging thread waits for room ({@code block}).
+ *
+ * Messages take an optional detail object that is only turned into text on the writer
+ * thread, so {@code debug("Received: ", message)} costs nothing when debug is off.
+ */
+public final class ServerLog {
+    public enum Level { OFF, ERROR, INFO, DEBUG }
+
+    public enum Overflow {
+        // Discard the entry; logging never blocks a request thread
+        DROP,
+        // Wait for the writer to make room; nothing is lost
+        BLOCK
+    }
+
+    private static final Level LEVEL = ServerConfig.LOG_LEVEL;
+    private static final double ACCESS_SAMPLE = ServerConfig.ACCESS_LOG_SAMPLE;
+    private static final Overflow OVERFLOW = ServerConfig.LOG_OVERFLOW;
+
+    private static final int BATCH_ENTRIES = 1024;
+    private static final long IDLE_PARK_NANOS = 2_000_000;
+    private static final DateTimeFormatter SECONDS =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    private static final Entry[] ring;
+    private static final int mask;
+    // Next slot to claim; the writer alone advances head
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head;
+
+    private static final LongAdder droppedEntries = new LongAdder();
+    private static final Thread writer;
+    private static volatile boolean stopping;
+
+    static {
+        int capacity = Integer.highestOneBit(Math.max(2, ServerConfig.LOG_BUFFER_ENTRIES - 1)) << 1;
+        ring = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Entry(i);
+        }
+        mask = capacity - 1;
+        writer = Thread.ofPlatform().name("server-log").daemon().start(new Writer());
+    }
+
+    private ServerLog() {
+    }
+
+    // One ring slot. sequence == position: free for the producer claiming position;
+    // sequence == position + 1: published and waiting for the writer
+    private static final class Entry {
+        volatile long sequence;
+        long time;
+        Level level;
+        String text;
+        Object detail;
+        // Access entries only (text == null)
+        String method;
+        String path;
+        String status;
+        long bytes;
+        long nanos;
+        SocketAddress remote;
+
+        Entry(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void clear() {
+            text = null;
+            detail = null;
+            method = null;
+            path = null;
+            status = null;
+            remote = null;
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level != Level.OFF && level.ordinal() <= LEVEL.ordinal();
+    }
+
+    public static void error(String message) { log(Level.ERROR, message, null); }
+    public static void error(String message, Object detail) { log(Level.ERROR, message, detail); }
+    public static void info(String message) { log(Level.INFO, message, null); }
+    public static void info(String message, Object detail) { log(Level.INFO, message, detail); }
+    public static void debug(String message) { log(Level.DEBUG, message, null); }
+    public static void debug(String message, Object detail) { log(Level.DEBUG, message, detail); }
+
+    private static void log(Level level, String message, Object detail) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Entry entry = claim();
+        if (entry == null) {
+            return;
+        }
+        entry.level = level;
+        entry.text = message;
+        entry.detail = detail;
+        publish(entry);
+    }
+
+    /**
+     * Records one handled request at INFO, subject to {@code server.accessLogSample}.
+     *
+     * @param nanos time taken to produce the response
+     */
+    public static void access(HttpRequest request, HttpResponse response, long nanos) {
+        if (!isEnabled(Level.INFO) ||
+                (ACCESS_SAMPLE < 1.0 && ThreadLocalRandom.current().nextDouble() >= ACCESS_SAMPLE)) {
+            return;
+        }
+        Entry entry = claim();
+        if (entry == null) {
+            return;
+        }
+        entry.level = Level.INFO;
+        entry.method = request.getMethod();
+        entry.path = request.getPath();
+        entry.remote = request.getRemoteAddress();
+        entry.status = response.getStatus();
+        entry.bytes = response.getContentLength();
+        entry.nanos = nanos;
+        publish(entry);
+    }
+
+    public static long getDroppedEntries() { return droppedEntries.sum(); }
+
+    // Claims the next slot, or returns null if the ring is full and entries are dropped
+    private static Entry claim() {
+        while (true) {
+            long position = tail.get();
+            Entry entry = ring[(int) (position & mask)];
+            long sequence = entry.sequence;
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    entry.time = System.currentTimeMillis();
+                    return entry;
+                }
+            } else if (sequence < position) {
+                // The writer has not freed this slot yet: the ring is full
+                if (OVERFLOW == Overflow.DROP || stopping) {
+                    droppedEntries.increment();
+                    return null;
+                }
+                LockSupport.parkNanos(50_000);
+            }
+            // Otherwise another producer claimed the position first; retry with the new tail
+        }
+    }
+
+    // Hands a filled slot to the writer: its sequence goes from position to position + 1
+    private static void publish(Entry entry) {
+        entry.sequence = entry.sequence + 1;
+    }
+
+    /**
+     * Stops the writer once it has written everything logged so far. Called last by
+     * {@link GracefulShutdown}, so the drain is logged too; entries logged afterwards are lost.
+     */
+    public static void shutdown() {
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Writer implements Runnable {
+        private final StringBuilder text = new StringBuilder(64 * 1024);
+        private long second = -1;
+        private String secondText;
+
+        private WritableByteChannel out;
+        private Path file;
+        private long fileBytes;
+
+        @Override
+        public void run() {
+            try {
+                open();
+            } catch (IOException e) {
+                System.err.println("Cannot open log file, logging to stdout: " + e.getMessage());
+                file = null;
+                out = new FileOutputStream(FileDescriptor.out).getChannel();
+            }
+            while (true) {
+                int count = drain();
+                if (count > 0) {
+                    write();
+                } else if (stopping) {
+                    return;
+                } else {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }
+
+        // Formats up to a batch of published entries and frees their slots
+        private int drain() {
+            int count = 0;
+            while (count < BATCH_ENTRIES) {
+                Entry entry = ring[(int) (head & mask)];
+                if (entry.sequence != head + 1) {
+                    break;
+                }
+                format(entry);
+                entry.clear();
+                entry.sequence = head + ring.length;
+                head++;
+                count++;
+            }
+            return count;
+        }
+
+        private void format(Entry entry) {
+            long entrySecond = entry.time / 1000;
+            if (entrySecond != second) {
+                second = entrySecond;
+                secondText = SECONDS.format(Instant.ofEpochSecond(entrySecond));
+            }
+            long millis = entry.time % 1000;
+            text.append(secondText).append('.')
+                .append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10))
+                .append("Z ").append(entry.level).append(' ');
+            if (entry.text != null) {
+                text.append(entry.text);
+                if (entry.detail != null) {
+                    text.append(entry.detail);
+                }
+            } else {
+                text.append("access remote=").append(entry.remote)
+                    .append(" method=").append(entry.method)
+                    .append(" path=").append(entry.path)
+                    .append(" status=").append(entry.status, 0, statusCodeLength(entry.status))
+                    .append(" bytes=").append(entry.bytes)
+                    .append(" micros=").append(entry.nanos / 1000);
+            }
+            text.append('\n');
+        }
+
+        // "404 Not Found" is logged as 404
+        private int statusCodeLength(String status) {
+            int space = status.indexOf(' ');
+            return space < 0 ? status.length() : space;
+        }
+
+        private void write() {
+            ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            text.setLength(0);
+            try {
+                if (file != null && fileBytes + bytes.remaining() > ServerConfig.LOG_FILE_MAX_BYTES && fileBytes > 0) {
+                    rotate();
+                }
+                while (bytes.hasRemaining()) {
+                    fileBytes += out.write(bytes);
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing log: " + e.getMessage());
+            }
+        }
+
+        private void open() throws IOException {
+            if (ServerConfig.LOG_FILE.isEmpty()) {
+                out = new FileOutputStream(FileDescriptor.out).getChannel();
+                return;
+            }
+            file = Paths.get(ServerConfig.LOG_FILE);
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileBytes = channel.size();
+            out = channel;
+        }
+
+        // log -> log.1 -> log.2 ...; the oldest beyond the configured count is deleted
+        private void rotate() throws IOException {
+            out.close();
+            int count = ServerConfig.LOG_FILE_COUNT;
+            Files.deleteIfExists(rotated(count));
+            for (int i = count - 1; i >= 1; i--) {
+                if (Files.exists(rotated(i))) {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (count > 0) {
+                Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(file);
+            }
+            open();
+        }
+
+        private Path rotated(int index) {
+            return file.resolveSibling(file.getFileName() + "." + index);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Conditional and range request support for files served under /files/.
+ *
+ * Validators come from file metadata alone: the ETag combines size and modification time,
+ * so answering If-None-Match or If-Modified-Since never touches the file contents. A
+ * compressed variant carries the same ETag with the coding appended.
+ *
+ * Files are compressed unless they are small or already in a compressed format. For gzip,
+ * a {@code name.gz} sibling at least as new as the file is sent as is, with sendfile. Files
+ * larger than {@code server.fileCacheMaxEntryBytes} are never compressed on the fly: that
+ * would cost deflate CPU on every download and give up sendfile and Content-Length. They are
+ * sent as is unless they have such a sibling.
+ */
+public final class StaticFiles {
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final String BOUNDARY = "3d6b6a416f9b5f7a";
+
+    // Requests asking for more ranges than this are answered with the whole file
+    private static final int MAX_RANGES = 16;
+
+    // Extensions of formats that are compressed already and gain nothing from gzip
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "gz", "tgz", "zip", "bz2", "xz", "zst", "br", "7z", "rar",
+            "png", "jpg", "jpeg", "gif", "webp", "avif", "mp3", "mp4", "webm", "ogg", "woff", "woff2", "pdf");
+
+    private StaticFiles() {
+    }
+
+    public static String etag(BasicFileAttributes attributes) {
+        return etag(attributes, null);
+    }
+
+    /** ETag of the file sent with {@code coding}, or of the file itself when it is null. */
+    public static String etag(BasicFileAttributes attributes, Compression.Coding coding) {
+        return "\"" + Long.toHexString(attributes.size()) + "-" +
+               Long.toHexString(attributes.lastModifiedTime().toMillis()) +
+               (coding != null ? "-" + coding.token() : "") + "\"";
+    }
+
+    public static String lastModified(BasicFileAttributes attributes) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(attributes.lastModifiedTime().toInstant().atOffset(ZoneOffset.UTC));
+    }
+
+    /** Validator headers sent with every 200, 206 and 304 for a file. */
+    public static String validatorHeaders(BasicFileAttributes attributes, Compression.Coding coding) {
+        return "ETag: " + etag(attributes, coding) + "\r\n" +
+               "Last-Modified: " + lastModified(attributes) + "\r\n" +
+               "Accept-Ranges: bytes\r\n";
+    }
+
+    public static boolean isNotModified(HttpRequest request, BasicFileAttributes attributes) {
+        String ifNoneMatch = request.getIfNoneMatch();
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence; comparison is weak, so W/ prefixes are ignored
+            if ("*".equals(ifNoneMatch.trim())) {
+                return true;
+            }
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (matchesAnyVariant(tag, attributes)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Instant since = parseDate(request.getIfModifiedSince());
+        if (since == null) {
+            return false;
+        }
+        // HTTP dates have one-second resolution
+        return attributes.lastModifiedTime().toInstant().getEpochSecond() <= since.getEpochSecond();
+    }
+
+    // Any variant's tag validates the client's copy, since all variants decode to the same bytes
+    private static boolean matchesAnyVariant(String tag, BasicFileAttributes attributes) {
+        if (tag.equals(etag(attributes))) {
+            return true;
+        }
+        for (Compression.Coding coding : Compression.Coding.values()) {
+            if (tag.equals(etag(attributes, coding))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static HttpResponse notModified(BasicFileAttributes attributes, Compression.Coding coding) {
+        return HttpResponse.notModified()
+                .header(HttpResponse.ETAG, etag(attributes, coding))
+                .header(HttpResponse.LAST_MODIFIED, lastModified(attributes));
+    }
+
+    /** Whether the file is large enough, and not already compressed, to be worth compressing. */
+    public static boolean isCompressible(Path filePath, BasicFileAttributes attributes) {
+        if (attributes.size() < ServerConfig.COMPRESSION_MIN_BYTES) {
+            return false;
+        }
+        String name = filePath.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    /** Whether the file is small enough to be compressed while it is sent. */
+    public static boolean isCompressibleOnTheFly(BasicFileAttributes attributes) {
+        return attributes.size() <= ServerConfig.FILE_CACHE_MAX_ENTRY_BYTES;
+    }
+
+    /**
+     * The coding to send a file with, or null for the file as is. Range requests always get
+     * the file as is, since ranges refer to its bytes. A file too large to be compressed on
+     * the fly only gets gzip, and only from its {@code .gz} sibling.
+     */
+    public static Compression.Coding coding(HttpRequest request, Path filePath, BasicFileAttributes attributes,
+                                            boolean compressible) throws IOException {
+        if (!compressible || request.getRange() != null) {
+            return null;
+        }
+        Compression.Coding coding = Compression.negotiate(request.getAcceptEncoding());
+        if (coding == null || isCompressibleOnTheFly(attributes)) {
+            return coding;
+        }
+        return coding == Compression.Coding.GZIP && precompressedAttributes(filePath, attributes) != null ? coding : null;
+    }
+
+    /**
+     * Returns a 200 sending the {@code .gz} sibling of a file as its gzip variant, or null if
+     * there is no sibling or it is older than the file.
+     */
+    public static HttpResponse precompressedResponse(Path filePath, BasicFileAttributes attributes) throws IOException {
+        BasicFileAttributes siblingAttributes = precompressedAttributes(filePath, attributes);
+        if (siblingAttributes == null) {
+            return null;
+        }
+
+        FileChannel file = FileChannel.open(precompressedPath(filePath), StandardOpenOption.READ);
+        return HttpResponse.ok()
+                .header(HttpResponse.CONTENT_TYPE, CONTENT_TYPE)
+                .header(HttpResponse.CONTENT_ENCODING, Compression.Coding.GZIP.token())
+                .header(HttpResponse.VARY, "Accept-Encoding")
+                .header(HttpResponse.ETAG, etag(attributes, Compression.Coding.GZIP))
+                .header(HttpResponse.LAST_MODIFIED, lastModified(attributes))
+                .header(HttpResponse.ACCEPT_RANGES, "bytes")
+                .body(file, 0, siblingAttributes.size());
+    }
+
+    private static Path precompressedPath(Path filePath) {
+        return filePath.resolveSibling(filePath.getFileName() + ".gz");
+    }
+
+    // The attributes of the .gz sibling, or null if there is none at least as new as the file
+    private static BasicFileAttributes precompressedAttributes(Path filePath, BasicFileAttributes attributes) throws IOException {
+        BasicFileAttributes siblingAttributes;
+        try {
+            siblingAttributes = Files.readAttributes(precompressedPath(filePath), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!siblingAttributes.isRegularFile() ||
+            siblingAttributes.lastModifiedTime().compareTo(attributes.lastModifiedTime()) < 0) {
+            return null;
+        }
+        return siblingAttributes;
+    }
+
+    /**
+     * Returns a 206 or 416 response when the request carries a usable Range header, or null
+     * when the whole file should be sent.
+     */
+    public static HttpResponse rangeResponse(HttpRequest request, Path filePath, BasicFileAttributes attributes) throws IOException {
+        String range = request.getRange();
+        if (range == null || !ifRangeMatches(request.getIfRange(), attributes)) {
+            return null;
+        }
+
+        long size = attributes.size();
+        List<long[]> ranges = parseRanges(range, size);
+        if (ranges == null) {
+            return null;
+        }
+        if (ranges.isEmpty()) {
+            return HttpResponse.rangeNotSatisfiable()
+                    .header(HttpResponse.CONTENT_RANGE, "bytes */" + size);
+        }
+
+        FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ);
+        HttpResponse response = HttpResponse.partialContent()
+                .header(HttpResponse.ETAG, etag(attributes))
+                .header(HttpResponse.LAST_MODIFIED, lastModified(attributes))
+                .header(HttpResponse.ACCEPT_RANGES, "bytes")
+                .fileBody(file);
+
+        if (ranges.size() == 1) {
+            long[] only = ranges.get(0);
+            return response.header(HttpResponse.CONTENT_TYPE, CONTENT_TYPE)
+                    .header(HttpResponse.CONTENT_RANGE, contentRange(only, size))
+                    .appendFileRegion(only[0], only[1] - only[0] + 1);
+        }
+
+        response.header(HttpResponse.CONTENT_TYPE, "multipart/byteranges; boundary=" + BOUNDARY);
+        for (long[] part : ranges) {
+            String partHead = "\r\n--" + BOUNDARY + "\r\n" +
+                              "Content-Type: " + CONTENT_TYPE + "\r\n" +
+                              "Content-Range: " + contentRange(part, size) + "\r\n" +
+                              "\r\n";
+            response.appendBody(partHead.getBytes())
+                    .appendFileRegion(part[0], part[1] - part[0] + 1);
+        }
+        return response.appendBody(("\r\n--" + BOUNDARY + "--\r\n").getBytes());
+    }
+
+    private static boolean ifRangeMatches(String ifRange, BasicFileAttributes attributes) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag(attributes));
+        }
+        Instant date = parseDate(ifRange);
+        return date != null && attributes.lastModifiedTime().toInstant().getEpochSecond() == date.getEpochSecond();
+    }
+
+    /**
+     * Parses a {@code bytes=} Range header into inclusive [first, last] pairs clamped to the
+     * file size. Returns null if the header is malformed or asks for too many ranges (the
+     * header is then ignored) and an empty list if no range overlaps the file.
+     */
+    static List<long[]> parseRanges(String header, long size) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                String trimmed = spec.trim();
+                int dash = trimmed.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = trimmed.substring(0, dash).trim();
+                String last = trimmed.substring(dash + 1).trim();
+
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // Suffix range: the final N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = size - 1;
+                    if (!last.isEmpty()) {
+                        long lastByte = Long.parseLong(last);
+                        if (lastByte < start) {
+                            return null;
+                        }
+                        end = Math.min(lastByte, size - 1);
+                    }
+                }
+                if (start < size && start <= end) {
+                    ranges.add(new long[] { start, end });
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    private static String contentRange(long[] range, long size) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + size;
+    }
+
+    private static Instant parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(value));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
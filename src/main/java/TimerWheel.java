@@ -0,0 +1,117 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel: timers are kept in a ring of slots by deadline, and one thread
+ * advances through the ring a slot per tick, firing the timers that are due. A tick only
+ * touches the timers in its own slot, so its cost depends on how many timers fall due rather
+ * than on how many exist. Deadlines further out than one turn of the wheel stay in their
+ * slot until a later turn reaches them.
+ *
+ * The wheel thread runs once {@link #start} is called; timers scheduled before that wait for it.
+ * Timers fire up to one tick late. Cancelling is left to the timer: it simply does nothing
+ * (and does not reschedule) when it fires after its owner has gone.
+ */
+public class TimerWheel {
+    /** Work to run at a deadline. Each instance may be scheduled only once at a time. */
+    public abstract static class Timer {
+        long deadline;
+
+        /** Runs on the wheel thread; may reschedule itself. */
+        protected abstract void expire(TimerWheel wheel, long now);
+    }
+
+    private final long tickMillis;
+    private final List<ArrayDeque<Timer>> slots;
+    private final int mask;
+    // Timers scheduled from other threads, moved into their slots at the next tick
+    private final ConcurrentLinkedQueue<Timer> pending = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+
+    private long tick;
+
+    private final String name;
+
+    public TimerWheel(String name, long tickMillis, int slotCount) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        }
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayDeque<>());
+        }
+        this.mask = slotCount - 1;
+        this.tick = System.currentTimeMillis() / tickMillis;
+    }
+
+    /** Starts the wheel thread. Returns this wheel. */
+    public TimerWheel start() {
+        if (thread != null) {
+            throw new IllegalStateException("Timer wheel " + name + " already started");
+        }
+        thread = Thread.ofPlatform().name(name).daemon().start(this::run);
+        return this;
+    }
+
+    /** Schedules the timer to fire at {@code deadline} (epoch milliseconds). Thread-safe. */
+    public void schedule(Timer timer, long deadline) {
+        timer.deadline = deadline;
+        if (Thread.currentThread() == thread) {
+            place(timer);
+        } else {
+            pending.add(timer);
+        }
+    }
+
+    private void place(Timer timer) {
+        // A deadline already past goes into the next slot rather than back into the current one
+        long due = Math.max(tickOf(timer.deadline), tick + 1);
+        slots.get((int) (due & mask)).add(timer);
+    }
+
+    // The first tick at or after the deadline
+    private long tickOf(long deadline) {
+        return (deadline + tickMillis - 1) / tickMillis;
+    }
+
+    private void run() {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long target = now / tickMillis;
+            Timer timer;
+            while ((timer = pending.poll()) != null) {
+                place(timer);
+            }
+            // Catches up slot by slot if the thread was held up for more than a tick
+            while (tick < target) {
+                tick++;
+                fire(slots.get((int) (tick & mask)), now);
+            }
+            try {
+                Thread.sleep(tickMillis - now % tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void fire(ArrayDeque<Timer> slot, long now) {
+        // Only the timers present now; ones rescheduled into this slot wait for its next turn
+        for (int i = slot.size(); i > 0; i--) {
+            Timer timer = slot.poll();
+            if (tickOf(timer.deadline) > tick) {
+                slot.add(timer);
+                continue;
+            }
+            try {
+                timer.expire(this, now);
+            } catch (RuntimeException e) {
+                ServerLog.error("Timer failed: ", e);
+            }
+        }
+    }
+}
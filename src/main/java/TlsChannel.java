@@ -0,0 +1,468 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Server side of a TLS connection, run by an {@link SSLEngine} over an accepted socket
+ * channel. It stands in for the channel itself, so the engines read requests from it and
+ * write responses (file bodies included, through {@code transferTo}) exactly as they do for
+ * plain-text connections.
+ *
+ * The channel follows the blocking mode of the socket. In blocking mode reads go through the
+ * socket's stream, so the read timeout still applies, and writes return once everything is
+ * sent. In non-blocking mode a read returns 0 until a whole record has arrived, a write
+ * returns 0 while encrypted output is still waiting, and {@link #flush} sends that output
+ * once the socket is writable again. The handshake runs on the first read.
+ *
+ * Reading and writing may happen on different threads, as WebSocket connections do: each
+ * direction has its own lock, and the read side only takes the write lock to send handshake
+ * messages, never the other way round.
+ *
+ * Sessions are kept for resumption, from stateless tickets or the server's session cache,
+ * and ALPN selects {@code http/1.1}. Connections are closed without a close_notify alert;
+ * every response is delimited by its own length, so truncation cannot go unnoticed.
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer[] NOTHING = { ByteBuffer.allocate(0) };
+    private static final String HTTP_1_1 = "http/1.1";
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final LongAdder handshakes = new LongAdder();
+    private static final LongAdder resumedHandshakes = new LongAdder();
+    private static final LongAdder failedHandshakes = new LongAdder();
+    private static final LongAdder handshakeCpuNanos = new LongAdder();
+
+    private static volatile SSLContext context;
+
+    private final SocketChannel channel;
+    private final InputStream socketIn;
+    private final SSLEngine engine;
+    private final long createdMillis = System.currentTimeMillis();
+
+    // Locks rather than monitors, so a virtual thread blocked reading does not pin its carrier
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Encrypted bytes received but not yet unwrapped, in write mode
+    private ByteBuffer netIn;
+    // Decrypted bytes not yet handed to the reader, in read mode
+    private ByteBuffer appIn;
+    // Encrypted bytes not yet sent, in read mode
+    private final ByteBuffer netOut;
+
+    private volatile boolean handshakeComplete;
+
+    private TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        this.channel = channel;
+        this.socketIn = channel.socket().getInputStream();
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+    }
+
+    /**
+     * Loads the keystore and sets up session resumption. Called once at startup, so a missing
+     * or unreadable keystore stops the server instead of failing every connection.
+     */
+    public static synchronized void initialize() throws IOException {
+        if (context != null) {
+            return;
+        }
+        // Read by the JDK when its TLS configuration is first loaded, just below
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(ServerConfig.TLS_SESSION_TICKETS));
+        char[] password = ServerConfig.TLS_KEYSTORE_PASSWORD.toCharArray();
+        try {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(Paths.get(ServerConfig.TLS_KEYSTORE))) {
+                keyStore.load(in, password);
+            }
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+
+            SSLContext tls = SSLContext.getInstance("TLS");
+            tls.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = tls.getServerSessionContext();
+            sessions.setSessionCacheSize(ServerConfig.TLS_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(ServerConfig.TLS_SESSION_TIMEOUT_SECONDS);
+            context = tls;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load TLS keystore " + ServerConfig.TLS_KEYSTORE + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** Wraps an accepted connection; {@link #initialize} must have been called. */
+    public static TlsChannel server(SocketChannel channel) throws IOException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(ServerConfig.TLS_PROTOCOLS);
+        engine.setSSLParameters(parameters);
+        // HTTP/1.1 is all that is spoken here; clients offering only other protocols get no ALPN answer
+        engine.setHandshakeApplicationProtocolSelector((e, offered) -> offered.contains(HTTP_1_1) ? HTTP_1_1 : "");
+        engine.beginHandshake();
+        return new TlsChannel(channel, engine);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        readLock.lock();
+        try {
+            while (true) {
+                if (appIn.hasRemaining()) {
+                    return transfer(appIn, dst);
+                }
+                if (!handshakeComplete && !handshake(true)) {
+                    return 0;
+                }
+                SSLEngineResult result = unwrap();
+                switch (result.getStatus()) {
+                    case OK -> afterUnwrap();
+                    case BUFFER_UNDERFLOW -> {
+                        int read = readNetwork();
+                        if (read <= 0) {
+                            return read;
+                        }
+                    }
+                    case BUFFER_OVERFLOW -> appIn = ByteBuffer.allocate(appIn.capacity() * 2).flip();
+                    case CLOSED -> {
+                        return -1;
+                    }
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!handshakeComplete) {
+            readLock.lock();
+            try {
+                if (!handshakeComplete && !handshake(channel.isBlocking())) {
+                    return 0;
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+        writeLock.lock();
+        try {
+            // Records collect in netOut until it is full, so small responses go out in one write
+            long written = 0;
+            while (hasRemaining(srcs, offset, length)) {
+                int consumed = wrap(srcs, offset, length);
+                if (consumed < 0 && !flushNetwork()) {
+                    break;
+                }
+                written += Math.max(consumed, 0);
+            }
+            flushNetwork();
+            return written;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends encrypted output left over from a non-blocking write or handshake step, and
+     * carries on with a handshake that was waiting for it to be sent. It never reads: input
+     * taken here would sit in this channel without the selector knowing it is there.
+     *
+     * @return true once no output is waiting
+     */
+    public boolean flush() throws IOException {
+        writeLock.lock();
+        try {
+            if (!flushNetwork()) {
+                return false;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (!handshakeComplete) {
+            readLock.lock();
+            try {
+                handshake(false);
+            } finally {
+                readLock.unlock();
+            }
+        }
+        writeLock.lock();
+        try {
+            return !netOut.hasRemaining();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * A stream over {@link #read}, for connections served by a thread. Unlike
+     * {@link java.nio.channels.Channels#newInputStream} it holds no monitor while reading, so a
+     * virtual thread waiting for input does not pin its carrier.
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return length == 0 ? 0 : TlsChannel.this.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+        };
+    }
+
+    /** Whether input has been received that a read has not returned yet. */
+    public boolean hasBufferedInput() {
+        readLock.lock();
+        try {
+            return appIn.hasRemaining() || netIn.position() > 0;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static long getHandshakes() { return handshakes.sum(); }
+    public static long getResumedHandshakes() { return resumedHandshakes.sum(); }
+    public static long getFailedHandshakes() { return failedHandshakes.sum(); }
+    public static long getHandshakeCpuNanos() { return handshakeCpuNanos.sum(); }
+
+    // Runs the handshake as far as it can go without blocking, or until it needs input if
+    // it may not read; true once it is complete. Each flight of messages is sent in one
+    // write. Called with the read lock held.
+    private boolean handshake(boolean mayRead) throws IOException {
+        long started = cpuTime();
+        try {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK -> runDelegatedTasks();
+                    case NEED_WRAP -> {
+                        writeLock.lock();
+                        try {
+                            if (wrap(NOTHING, 0, 1) < 0 && !flushNetwork()) {
+                                return false;
+                            }
+                        } finally {
+                            writeLock.unlock();
+                        }
+                    }
+                    case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                        if (!flushHandshake() || !mayRead) {
+                            return false;
+                        }
+                        SSLEngineResult result = unwrap();
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            // Waiting for the peer is not handshake work
+                            handshakeCpuNanos.add(cpuTime() - started);
+                            int read = readNetwork();
+                            started = cpuTime();
+                            if (read < 0) {
+                                throw new EOFException("Connection closed during TLS handshake");
+                            }
+                            if (read == 0) {
+                                return false;
+                            }
+                        } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("Connection closed during TLS handshake");
+                        }
+                    }
+                    case FINISHED, NOT_HANDSHAKING -> {
+                        // Session tickets may still be waiting; a non-blocking flush finishes them later
+                        flushHandshake();
+                        completeHandshake();
+                        return true;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failedHandshakes.increment();
+            throw e;
+        } finally {
+            handshakeCpuNanos.add(cpuTime() - started);
+        }
+    }
+
+    private boolean flushHandshake() throws IOException {
+        writeLock.lock();
+        try {
+            return flushNetwork();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void completeHandshake() {
+        handshakeComplete = true;
+        handshakes.increment();
+        SSLSession session = engine.getSession();
+        // A resumed session was created by an earlier connection
+        boolean resumed = session.getCreationTime() < createdMillis;
+        if (resumed) {
+            resumedHandshakes.increment();
+        }
+        if (ServerLog.isEnabled(ServerLog.Level.DEBUG)) {
+            ServerLog.debug("TLS handshake completed: ", session.getProtocol() + " " + session.getCipherSuite() +
+                    (resumed ? " resumed" : "") + " alpn=" + engine.getApplicationProtocol());
+        }
+    }
+
+    // Handles handshake work that follows a record after the handshake, such as a key update
+    private void afterUnwrap() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK -> runDelegatedTasks();
+                case NEED_WRAP -> {
+                    writeLock.lock();
+                    try {
+                        if (wrap(NOTHING, 0, 1) < 0 && !flushNetwork()) {
+                            return;
+                        }
+                        flushNetwork();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+                default -> {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Unwraps one record from netIn into appIn, which must be empty
+    private SSLEngineResult unwrap() throws SSLException {
+        netIn.flip();
+        appIn.compact();
+        try {
+            return engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+    }
+
+    // Wraps as much of srcs as one record holds onto the end of netOut; -1 if netOut has no
+    // room for another record and must be flushed first. Called with the write lock held.
+    private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        netOut.compact();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(srcs, offset, length, netOut);
+        } finally {
+            netOut.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            return -1;
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("TLS connection already closed");
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        }
+        return result.bytesConsumed();
+    }
+
+    // Sends what is waiting in netOut; false if the socket would block first
+    private boolean flushNetwork() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads more encrypted bytes into netIn; -1 at end of stream, 0 if none are available yet
+    private int readNetwork() throws IOException {
+        if (!netIn.hasRemaining()) {
+            // A record larger than the buffer, which only a misbehaving peer sends
+            ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() * 2);
+            netIn.flip();
+            netIn = larger.put(netIn);
+        }
+        if (!channel.isBlocking()) {
+            return channel.read(netIn);
+        }
+        int read = socketIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (read > 0) {
+            netIn.position(netIn.position() + read);
+        }
+        return read;
+    }
+
+    // Certificate signing and verification; run inline, they take well under a millisecond with EC keys
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static int transfer(ByteBuffer from, ByteBuffer to) {
+        int count = Math.min(from.remaining(), to.remaining());
+        to.put(from.slice(from.position(), count));
+        from.position(from.position() + count);
+        return count;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long cpuTime() {
+        long nanos = threads.getCurrentThreadCpuTime();
+        return nanos >= 0 ? nanos : System.nanoTime();
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * RFC 6455 framing: encoding of server frames and a {@link Decoder} for client frames.
+ *
+ * The decoder reads through its own buffer, so a frame header costs no system call of its
+ * own, and it copes with reads that stop anywhere in a frame. Fragmented messages are
+ * reassembled into a buffer that is reused from message to message, and control frames
+ * interleaved with the fragments are returned as they arrive. Everything a client may get
+ * wrong (unmasked frames, reserved bits and opcodes, oversized control frames, stray
+ * continuations, invalid UTF-8) ends in a {@link ProtocolException} carrying the close
+ * code to send back.
+ */
+public final class WebSocketCodec {
+    public static final int OP_CONTINUATION = 0x0;
+    public static final int OP_TEXT = 0x1;
+    public static final int OP_BINARY = 0x2;
+    public static final int OP_CLOSE = 0x8;
+    public static final int OP_PING = 0x9;
+    public static final int OP_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_INVALID_DATA = 1007;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    private static final int FIN = 0x80;
+    private static final int RSV1 = 0x40;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    // Reads and writes eight bytes of a byte[] at any offset, for unmasking a word at a time
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** A violation of the protocol by the peer; the connection is closed with {@link #getCloseCode}. */
+    public static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int closeCode;
+
+        public ProtocolException(int closeCode, String message) {
+            super(message);
+            this.closeCode = closeCode;
+        }
+
+        public int getCloseCode() { return closeCode; }
+    }
+
+    private WebSocketCodec() {
+    }
+
+    /** Encodes an unmasked, unfragmented server frame. */
+    public static ByteBuffer encodeFrame(int opcode, byte[] payload) {
+        return encodeFrame(opcode, false, payload, 0, payload.length);
+    }
+
+    /**
+     * Encodes an unmasked, unfragmented server frame, with RSV1 set if the payload is
+     * compressed. The returned buffer is read-only so it can be shared between connections.
+     */
+    public static ByteBuffer encodeFrame(int opcode, boolean compressed, byte[] payload, int offset, int length) {
+        int headerLength = length < 126 ? 2 : length < 65536 ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(headerLength + length);
+
+        // First byte: FIN (1) + RSV1 (compressed) + RSV2, RSV3 (00) + opcode (4 bits)
+        frame.put((byte) (FIN | (compressed ? RSV1 : 0) | opcode));
+
+        // Second byte: MASK (0) + payload length, then the extended length if any
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length < 65536) {
+            frame.put((byte) 126).putShort((short) length);
+        } else {
+            frame.put((byte) 127).putLong(length);
+        }
+
+        return frame.put(payload, offset, length).flip().asReadOnlyBuffer();
+    }
+
+    /** Encodes a close frame with a status code and an optional reason. */
+    public static ByteBuffer encodeClose(int code, String reason) {
+        byte[] text = reason == null ? new byte[0] : reason.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + Math.min(text.length, MAX_CONTROL_PAYLOAD - 2)];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, payload.length - 2);
+        return encodeFrame(OP_CLOSE, payload);
+    }
+
+    /** Opcode of an encoded server frame. */
+    public static int opcodeOf(ByteBuffer frame) {
+        return frame.get(frame.position()) & 0x0F;
+    }
+
+    /** Whether an encoded server frame has RSV1 set, that is, carries a compressed message. */
+    public static boolean isCompressed(ByteBuffer frame) {
+        return (frame.get(frame.position()) & RSV1) != 0;
+    }
+
+    /** The payload of an encoded server frame, as a view that shares its content. */
+    public static ByteBuffer payloadOf(ByteBuffer frame) {
+        int lengthByte = frame.get(frame.position() + 1) & 0x7F;
+        int headerLength = lengthByte < 126 ? 2 : lengthByte == 126 ? 4 : 10;
+        return frame.duplicate().position(frame.position() + headerLength);
+    }
+
+    /**
+     * XORs {@code length} bytes at {@code offset} with a masking key, whose first byte is the
+     * low byte of {@code mask}. Eight bytes are handled per step; only the tail goes byte by byte.
+     */
+    public static void unmask(byte[] data, int offset, int length, int mask) {
+        long wideMask = (mask & 0xFFFFFFFFL) | ((long) mask << 32);
+        int end = offset + length;
+        int i = offset;
+        for (; i <= end - 8; i += 8) {
+            LONGS.set(data, i, (long) LONGS.get(data, i) ^ wideMask);
+        }
+        for (; i < end; i++) {
+            data[i] ^= (byte) (mask >>> (((i - offset) & 3) << 3));
+        }
+    }
+
+    /**
+     * A received message or control frame. The content stays valid only until the decoder
+     * reads the next one.
+     */
+    public static class Message {
+        private static final int INITIAL_BYTES = 1024;
+        // A buffer grown past this for one large message is dropped rather than kept
+        private static final int RETAINED_BYTES = 64 * 1024;
+
+        int opcode;
+        byte[] data;
+        int length;
+        private CharsetDecoder utf8;
+
+        Message(int capacity) {
+            data = new byte[capacity];
+        }
+
+        public int getOpcode() { return opcode; }
+        public byte[] getData() { return data; }
+        public int getLength() { return length; }
+
+        /** A copy of the payload. */
+        public byte[] getPayload() {
+            return Arrays.copyOf(data, length);
+        }
+
+        /** The payload as text; invalid UTF-8 is a protocol error. */
+        public String getText() throws ProtocolException {
+            if (utf8 == null) {
+                utf8 = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT);
+            }
+            try {
+                return utf8.reset().decode(ByteBuffer.wrap(data, 0, length)).toString();
+            } catch (CharacterCodingException e) {
+                throw new ProtocolException(CLOSE_INVALID_DATA, "Invalid UTF-8 in text message");
+            }
+        }
+
+        /**
+         * The status code of a close frame: {@link #CLOSE_NORMAL} if the frame has none.
+         *
+         * @throws ProtocolException if the code is malformed or one a peer may not send
+         */
+        public int getCloseCode() throws ProtocolException {
+            if (length == 0) {
+                return CLOSE_NORMAL;
+            }
+            int code = length >= 2 ? ((data[0] & 0xFF) << 8) | (data[1] & 0xFF) : -1;
+            boolean valid = (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1011) || (code >= 3000 && code <= 4999);
+            if (!valid) {
+                throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Invalid close code " + code);
+            }
+            return code;
+        }
+
+        void grow(int capacity, int maxBytes) throws ProtocolException {
+            if (capacity > maxBytes) {
+                throw new ProtocolException(CLOSE_TOO_BIG, "Message exceeds " + maxBytes + " bytes");
+            }
+            if (capacity > data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(maxBytes, Math.max(capacity, data.length * 2L)));
+            }
+        }
+
+        void shrink() {
+            if (data.length > RETAINED_BYTES) {
+                data = new byte[INITIAL_BYTES];
+            }
+        }
+    }
+
+    /**
+     * Reads client frames from one connection. Not thread-safe; it belongs to the
+     * connection's reader.
+     */
+    public static class Decoder {
+        private final InputStream in;
+        private final PerMessageDeflate deflate;
+        private final int maxFrameBytes;
+        private final int maxMessageBytes;
+
+        private final byte[] input = new byte[8192];
+        private int inputPosition;
+        private int inputLimit;
+
+        private final Message control = new Message(MAX_CONTROL_PAYLOAD);
+        private final Message message = new Message(Message.INITIAL_BYTES);
+        private final Message inflated;
+
+        // Opcode of the data message being reassembled, or -1 between messages
+        private int messageOpcode = -1;
+        private boolean messageCompressed;
+
+        public Decoder(InputStream in, PerMessageDeflate deflate, int maxFrameBytes, int maxMessageBytes) {
+            this.in = in;
+            this.deflate = deflate;
+            this.maxFrameBytes = maxFrameBytes;
+            this.maxMessageBytes = maxMessageBytes;
+            this.inflated = deflate != null ? new Message(Message.INITIAL_BYTES) : null;
+        }
+
+        /**
+         * Reads the next complete data message or control frame.
+         *
+         * @return null if the peer closed the stream between frames
+         * @throws ProtocolException if the peer broke the protocol or a size limit
+         * @throws EOFException if the stream ended inside a frame
+         */
+        public Message next() throws IOException {
+            while (true) {
+                if (!fill(2, messageOpcode < 0)) {
+                    return null;
+                }
+                int first = input[inputPosition++] & 0xFF;
+                int second = input[inputPosition++] & 0xFF;
+                boolean fin = (first & FIN) != 0;
+                boolean rsv1 = (first & RSV1) != 0;
+                int opcode = first & 0x0F;
+                boolean isControl = (opcode & 0x08) != 0;
+
+                if ((first & 0x30) != 0) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Reserved bits set");
+                }
+                if (opcode > OP_BINARY && opcode < OP_CLOSE || opcode > OP_PONG) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Reserved opcode " + opcode);
+                }
+                if (rsv1 && (deflate == null || isControl || opcode == OP_CONTINUATION)) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Unexpected RSV1");
+                }
+                if ((second & 0x80) == 0) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Client frames must be masked");
+                }
+
+                long length = second & 0x7F;
+                if (length == 126) {
+                    fill(2, false);
+                    length = ((input[inputPosition] & 0xFF) << 8) | (input[inputPosition + 1] & 0xFF);
+                    inputPosition += 2;
+                } else if (length == 127) {
+                    fill(8, false);
+                    length = ByteBuffer.wrap(input, inputPosition, 8).getLong();
+                    inputPosition += 8;
+                    if (length < 0) {
+                        throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Frame length has the high bit set");
+                    }
+                }
+                if (isControl && (!fin || length > MAX_CONTROL_PAYLOAD)) {
+                    throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Control frames must be short and unfragmented");
+                }
+                if (length > maxFrameBytes) {
+                    throw new ProtocolException(CLOSE_TOO_BIG, "Frame exceeds " + maxFrameBytes + " bytes");
+                }
+
+                fill(4, false);
+                int mask = (input[inputPosition] & 0xFF) | (input[inputPosition + 1] & 0xFF) << 8 |
+                           (input[inputPosition + 2] & 0xFF) << 16 | (input[inputPosition + 3] & 0xFF) << 24;
+                inputPosition += 4;
+
+                if (isControl) {
+                    // Control frames may arrive between the fragments of a message
+                    control.opcode = opcode;
+                    control.length = (int) length;
+                    readPayload(control.data, 0, control.length, mask);
+                    return control;
+                }
+
+                if (opcode == OP_CONTINUATION) {
+                    if (messageOpcode < 0) {
+                        throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "Continuation without a message");
+                    }
+                } else {
+                    if (messageOpcode >= 0) {
+                        throw new ProtocolException(CLOSE_PROTOCOL_ERROR, "New message before the previous one finished");
+                    }
+                    messageOpcode = opcode;
+                    messageCompressed = rsv1;
+                    message.shrink();
+                    message.length = 0;
+                }
+
+                message.grow(message.length + (int) length, maxMessageBytes);
+                readPayload(message.data, message.length, (int) length, mask);
+                message.length += (int) length;
+
+                if (fin) {
+                    return finishMessage();
+                }
+            }
+        }
+
+        private Message finishMessage() throws ProtocolException {
+            int opcode = messageOpcode;
+            messageOpcode = -1;
+            if (!messageCompressed) {
+                message.opcode = opcode;
+                return message;
+            }
+            inflated.shrink();
+            deflate.decompress(message.data, message.length, inflated, maxMessageBytes);
+            inflated.opcode = opcode;
+            return inflated;
+        }
+
+        private void readPayload(byte[] target, int offset, int length, int mask) throws IOException {
+            int buffered = Math.min(length, inputLimit - inputPosition);
+            System.arraycopy(input, inputPosition, target, offset, buffered);
+            inputPosition += buffered;
+            int read = buffered;
+            while (read < length) {
+                int remaining = length - read;
+                if (remaining >= input.length) {
+                    // Large payloads skip the buffer and land where they belong
+                    int n = in.read(target, offset + read, remaining);
+                    if (n < 0) {
+                        throw new EOFException("Stream ended inside a frame");
+                    }
+                    Metrics.webSocketBytesIn(n);
+                    read += n;
+                } else {
+                    fill(1, false);
+                    int n = Math.min(remaining, inputLimit - inputPosition);
+                    System.arraycopy(input, inputPosition, target, offset + read, n);
+                    inputPosition += n;
+                    read += n;
+                }
+            }
+            unmask(target, offset, length, mask);
+        }
+
+        // Makes at least n bytes available; false only if the stream ended with nothing buffered
+        private boolean fill(int n, boolean endAllowed) throws IOException {
+            if (inputLimit - inputPosition >= n) {
+                return true;
+            }
+            System.arraycopy(input, inputPosition, input, 0, inputLimit - inputPosition);
+            inputLimit -= inputPosition;
+            inputPosition = 0;
+            while (inputLimit < n) {
+                int read = in.read(input, inputLimit, input.length - inputLimit);
+                if (read < 0) {
+                    if (endAllowed && inputLimit == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Stream ended inside a frame");
+                }
+                Metrics.webSocketBytesIn(read);
+                inputLimit += read;
+            }
+            return true;
+        }
+
+        /** Frees the decompression state; the decoder must not be used afterwards. */
+        public void close() {
+            if (deflate != null) {
+                deflate.releaseInflater();
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One upgraded WebSocket connection. Frames sent to it are queued rather than written by
+ * the sending thread: a writer drains the queue in batches with gathering writes, so a
+ * broadcast only enqueues a shared, already encoded frame on each peer and a slow peer
+ * stalls nobody but itself.
+ *
+ * The queue is bounded. When a data frame arrives at a full queue the connection's
+ * {@link SlowConsumerPolicy} decides what happens; control frames are always queued.
+ *
+ * Writers run on virtual threads started only while a queue has frames, so idle
+ * connections cost no thread on the sending side.
+ *
+ * With permessage-deflate negotiated, the writer compresses data frames just before writing
+ * them. Frames therefore stay shareable while queued, and a frame the policy discards never
+ * reaches the compression context the peer has to mirror.
+ */
+public class WebSocketConnection {
+    /** What to do with a data frame sent to a connection whose outbound queue is full. */
+    public enum SlowConsumerPolicy {
+        // Discard the new frame
+        DROP,
+        // Discard the oldest queued data frame, so the peer catches up on the latest messages
+        COALESCE,
+        // Close the connection
+        DISCONNECT
+    }
+
+    private static final ExecutorService writers = Executors.newVirtualThreadPerTaskExecutor();
+    private static final int MAX_FRAMES_PER_WRITE = 64;
+    // Payloads shorter than this are sent uncompressed even with permessage-deflate
+    private static final int MIN_DEFLATE_BYTES = 32;
+    // How long the reader waits for a queued close frame to be written before dropping the socket
+    static final int CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private static final LongAdder droppedFrames = new LongAdder();
+    private static final LongAdder coalescedFrames = new LongAdder();
+    private static final LongAdder slowConsumerDisconnects = new LongAdder();
+
+    private final Socket socket;
+    // The socket's channel, or the TLS channel over it
+    private final GatheringByteChannel channel;
+    private final InputStream in;
+    private final String path;
+    private final int maxQueuedFrames;
+    private final SlowConsumerPolicy policy;
+    private final PerMessageDeflate deflate;
+
+    // Topics this connection is subscribed to; see WebSocketTopics
+    private final Set<String> topics = ConcurrentHashMap.newKeySet();
+
+    // Frames not yet handed to the writer; guarded by this
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private boolean draining;
+    // Set once a close frame is queued; the socket closes when it has been written
+    private boolean closing;
+    private volatile boolean closed;
+    // When the reader last got a frame; read by the heartbeat
+    private volatile long lastReceivedMillis = System.currentTimeMillis();
+
+    public WebSocketConnection(Socket socket, GatheringByteChannel channel, InputStream in, String path, PerMessageDeflate deflate) {
+        this(socket, channel, in, path, deflate, ServerConfig.WS_OUTBOUND_QUEUE_FRAMES, ServerConfig.WS_SLOW_CONSUMER_POLICY);
+    }
+
+    public WebSocketConnection(Socket socket, GatheringByteChannel channel, InputStream in, String path,
+                               PerMessageDeflate deflate, int maxQueuedFrames, SlowConsumerPolicy policy) {
+        this.socket = socket;
+        this.channel = channel;
+        this.in = in;
+        this.path = path;
+        this.deflate = deflate;
+        this.maxQueuedFrames = maxQueuedFrames;
+        this.policy = policy;
+    }
+
+    public void sendMessage(String message) {
+        send(WebSocketCodec.encodeFrame(WebSocketCodec.OP_TEXT, message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void sendPong(byte[] payload) {
+        send(WebSocketCodec.encodeFrame(WebSocketCodec.OP_PONG, payload));
+    }
+
+    /**
+     * Starts the closing handshake: queues a close frame behind the frames already queued and
+     * closes the socket once it is written. Later frames are refused.
+     */
+    public void close(int code, String reason) {
+        ByteBuffer frame = WebSocketCodec.encodeClose(code, reason);
+        synchronized (this) {
+            if (closed || closing) {
+                return;
+            }
+            closing = true;
+            outbound.add(frame);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        writers.execute(this::drain);
+    }
+
+    /**
+     * Queues an encoded frame. The buffer is not modified, so one frame can be sent to any
+     * number of connections.
+     *
+     * @return false if the frame was dropped or the connection is closed
+     */
+    public boolean send(ByteBuffer frame) {
+        synchronized (this) {
+            if (closed || closing) {
+                return false;
+            }
+            if (outbound.size() >= maxQueuedFrames && !isControlFrame(frame)) {
+                if (!makeRoom()) {
+                    return false;
+                }
+            }
+            outbound.add(frame.duplicate());
+            if (draining) {
+                return true;
+            }
+            draining = true;
+        }
+        writers.execute(this::drain);
+        return true;
+    }
+
+    // Applies the slow-consumer policy to a full queue; true if the new frame may be queued
+    private boolean makeRoom() {
+        switch (policy) {
+            case COALESCE:
+                for (Iterator<ByteBuffer> queued = outbound.iterator(); queued.hasNext(); ) {
+                    if (!isControlFrame(queued.next())) {
+                        queued.remove();
+                        coalescedFrames.increment();
+                        return true;
+                    }
+                }
+                droppedFrames.increment();
+                return false;
+            case DISCONNECT:
+                slowConsumerDisconnects.increment();
+                ServerLog.info("Disconnecting slow WebSocket consumer: ", socket.getRemoteSocketAddress());
+                writers.execute(this::closeQuietly);
+                closed = true;
+                return false;
+            default:
+                droppedFrames.increment();
+                return false;
+        }
+    }
+
+    private static boolean isControlFrame(ByteBuffer frame) {
+        // Control opcodes (close, ping, pong) have the high opcode bit set
+        return (frame.get(frame.position()) & 0x08) != 0;
+    }
+
+    // Writes queued frames until the queue is empty, several frames per system call
+    private void drain() {
+        ByteBuffer[] batch = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+        while (true) {
+            int count = 0;
+            synchronized (this) {
+                ByteBuffer frame;
+                while (count < batch.length && (frame = outbound.poll()) != null) {
+                    batch[count++] = frame;
+                }
+                if (count == 0 || closed) {
+                    draining = false;
+                    if (closed && deflate != null) {
+                        deflate.releaseDeflater();
+                    }
+                    if (closed || !closing) {
+                        return;
+                    }
+                }
+            }
+            if (count == 0) {
+                // Everything up to and including the close frame has been written
+                closeQuietly();
+                return;
+            }
+
+            try {
+                if (deflate != null) {
+                    compress(batch, count);
+                }
+                long remaining = 0;
+                for (int i = 0; i < count; i++) {
+                    remaining += batch[i].remaining();
+                }
+                long bytes = remaining;
+                while (remaining > 0) {
+                    remaining -= channel.write(batch, 0, count);
+                }
+                Metrics.webSocketFramesOut(count, bytes);
+            } catch (IOException e) {
+                ServerLog.error("Error writing WebSocket frame: ", e.getMessage());
+                synchronized (this) {
+                    draining = false;
+                }
+                closeQuietly();
+                return;
+            }
+            Arrays.fill(batch, 0, count, null);
+        }
+    }
+
+    private void compress(ByteBuffer[] batch, int count) {
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = batch[i];
+            int opcode = WebSocketCodec.opcodeOf(frame);
+            if ((opcode == WebSocketCodec.OP_TEXT || opcode == WebSocketCodec.OP_BINARY) &&
+                    !WebSocketCodec.isCompressed(frame) && frame.remaining() >= MIN_DEFLATE_BYTES) {
+                batch[i] = deflate.compress(frame);
+            }
+        }
+    }
+
+    public static long getDroppedFrames() { return droppedFrames.sum(); }
+    public static long getCoalescedFrames() { return coalescedFrames.sum(); }
+    public static long getSlowConsumerDisconnects() { return slowConsumerDisconnects.sum(); }
+
+    public synchronized int getQueuedFrames() { return outbound.size(); }
+    public boolean isClosed() { return closed || socket.isClosed(); }
+    public Socket getSocket() { return socket; }
+    public InputStream getInputStream() { return in; }
+    public String getPath() { return path; }
+    public Set<String> getTopics() { return topics; }
+
+    public PerMessageDeflate getDeflate() { return deflate; }
+    public long getLastReceivedMillis() { return lastReceivedMillis; }
+
+    /** Records that a frame arrived, which is what keeps the connection alive. */
+    public void markReceived() {
+        lastReceivedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Waits until the connection is closed, giving a closing handshake started with
+     * {@link #close(int, String)} time to write its frame, then closes it regardless.
+     */
+    public void awaitClose(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            long remaining;
+            while (closing && !closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        close();
+    }
+
+    /** Closes the socket at once, discarding queued frames. */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            outbound.clear();
+            if (!draining && deflate != null) {
+                deflate.releaseDeflater();
+            }
+            notifyAll();
+        }
+        socket.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            ServerLog.error("Error closing WebSocket: ", e.getMessage());
+        }
+    }
+}
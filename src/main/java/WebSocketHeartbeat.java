@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps WebSocket connections honest. A connection that has received nothing for the ping
+ * interval is sent a ping; if nothing at all (pong or otherwise) arrives within the pong
+ * timeout after that, the connection is closed, which ends its reader and removes it from
+ * every broadcast.
+ *
+ * Each connection has one timer on a shared {@link TimerWheel}. Receiving a frame only
+ * stamps the connection; the timer reads the stamp when it fires and moves itself forward,
+ * so busy connections cost nothing per message and a tick only visits connections that
+ * are due.
+ */
+public class WebSocketHeartbeat {
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SLOTS = 1024;
+
+    // Empty ping, shared by every connection
+    private static final ByteBuffer PING = WebSocketCodec.encodeFrame(WebSocketCodec.OP_PING, new byte[0]);
+
+    private static final LongAdder pingsSent = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private final long intervalMillis;
+    private final long timeoutMillis;
+    private volatile TimerWheel wheel;
+
+    /** @param intervalMillis idle time before a ping; 0 disables the heartbeat */
+    public WebSocketHeartbeat(long intervalMillis, long timeoutMillis) {
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public boolean isEnabled() {
+        return intervalMillis > 0;
+    }
+
+    /** Starts watching a newly upgraded connection. */
+    public void register(WebSocketConnection connection) {
+        if (!isEnabled()) {
+            return;
+        }
+        wheel().schedule(new Beat(connection), System.currentTimeMillis() + intervalMillis);
+    }
+
+    // The wheel's thread is only started once the first WebSocket connects
+    private TimerWheel wheel() {
+        TimerWheel wheel = this.wheel;
+        if (wheel == null) {
+            synchronized (this) {
+                wheel = this.wheel;
+                if (wheel == null) {
+                    wheel = new TimerWheel("websocket-heartbeat", TICK_MILLIS, WHEEL_SLOTS).start();
+                    this.wheel = wheel;
+                }
+            }
+        }
+        return wheel;
+    }
+
+    public static long getPingsSent() { return pingsSent.sum(); }
+    public static long getEvictions() { return evictions.sum(); }
+
+    private final class Beat extends TimerWheel.Timer {
+        private final WebSocketConnection connection;
+        // When the unanswered ping went out, or -1 if none is outstanding
+        private long pingSentAt = -1;
+
+        Beat(WebSocketConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        protected void expire(TimerWheel wheel, long now) {
+            if (connection.isClosed()) {
+                return;
+            }
+            long lastReceived = connection.getLastReceivedMillis();
+            if (pingSentAt >= 0) {
+                if (lastReceived < pingSentAt) {
+                    evict();
+                    return;
+                }
+                pingSentAt = -1;
+            }
+
+            if (now - lastReceived >= intervalMillis) {
+                connection.send(PING);
+                pingsSent.increment();
+                pingSentAt = now;
+                wheel.schedule(this, now + timeoutMillis);
+            } else {
+                wheel.schedule(this, lastReceived + intervalMillis);
+            }
+        }
+
+        private void evict() {
+            evictions.increment();
+            ServerLog.info("Closing unresponsive WebSocket: ", connection.getSocket().getRemoteSocketAddress());
+            try {
+                connection.close();
+            } catch (IOException e) {
+                ServerLog.error("Error closing WebSocket: ", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of WebSocket subscribers by topic. A connection starts out subscribed to the topic
+ * named by its upgrade path and can join or leave others with control messages (see
+ * {@link Main#handleWebSocketCommunication}).
+ *
+ * Publishing looks up one topic's subscriber set, so its cost depends on that topic's size
+ * rather than on the number of connections on the server. A topic disappears when its last
+ * subscriber leaves.
+ */
+public class WebSocketTopics {
+    /** Topics a single connection may subscribe to at once. */
+    public static final int MAX_TOPICS_PER_CONNECTION = 64;
+
+    private final ConcurrentHashMap<String, Set<WebSocketConnection>> subscribers = new ConcurrentHashMap<>();
+
+    /** Adds the connection to the topic; false if it already has the maximum number of topics. */
+    public boolean subscribe(String topic, WebSocketConnection connection) {
+        Set<String> topics = connection.getTopics();
+        if (!topics.contains(topic) && topics.size() >= MAX_TOPICS_PER_CONNECTION) {
+            return false;
+        }
+        topics.add(topic);
+        // compute() keeps a concurrent unsubscribe from dropping the set while we add to it
+        subscribers.compute(topic, (name, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(connection);
+            return set;
+        });
+        return true;
+    }
+
+    public void unsubscribe(String topic, WebSocketConnection connection) {
+        connection.getTopics().remove(topic);
+        subscribers.computeIfPresent(topic, (name, set) -> {
+            set.remove(connection);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /** Removes the connection from every topic it is subscribed to. */
+    public void unsubscribeAll(WebSocketConnection connection) {
+        for (String topic : connection.getTopics()) {
+            unsubscribe(topic, connection);
+        }
+    }
+
+    /**
+     * Queues an encoded frame on every subscriber of the topic except {@code sender}.
+     *
+     * @return the number of subscribers the frame was queued on
+     */
+    public int publish(String topic, ByteBuffer frame, WebSocketConnection sender) {
+        Set<WebSocketConnection> set = subscribers.get(topic);
+        if (set == null) {
+            return 0;
+        }
+        int delivered = 0;
+        for (WebSocketConnection connection : set) {
+            if (connection != sender && connection.send(frame)) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    public int getTopicCount() {
+        return subscribers.size();
+    }
+
+    public int getSubscriberCount(String topic) {
+        Set<WebSocketConnection> set = subscribers.get(topic);
+        return set == null ? 0 : set.size();
+    }
+}